@@ -0,0 +1,217 @@
+package edu.trevecca.flare.aggregator;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small fixed-size JDBC connection pool.
+ * <p>
+ * Connections are opened lazily up to the pool size, validated when borrowed after sitting idle, and each keeps its own
+ * cache of prepared statements so the statements used for every dump are only prepared once per connection. Connections
+ * are handed out with auto-commit disabled.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    /**
+     * Connections idle for longer than this are checked with {@link Connection#isValid(int)} before being handed out.
+     */
+    private static final long VALIDATE_AFTER_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final int VALIDATE_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int size;
+    private final BlockingQueue<Lease> idle;
+    private final AtomicInteger opened = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param url      JDBC URL of the database
+     * @param user     database user
+     * @param password database password
+     * @param size     maximum number of open connections
+     */
+    public ConnectionPool(String url, String user, String password, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.size = size;
+        this.idle = new ArrayBlockingQueue<>(size);
+    }
+
+    /**
+     * Borrow a connection, opening a new one if none are idle and the pool isn't full yet. Close the returned lease to give
+     * the connection back.
+     *
+     * @param timeout how long to wait for a connection
+     * @param unit    unit of {@code timeout}
+     * @return a valid connection
+     * @throws SQLException if a connection couldn't be opened or none became free in time
+     */
+    public Lease acquire(long timeout, TimeUnit unit) throws SQLException, InterruptedException {
+        if (this.closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            Lease lease = this.idle.poll();
+            if (lease == null) {
+                lease = tryOpen();
+            }
+            if (lease == null) {
+                lease = this.idle.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (lease == null) {
+                    throw new SQLException("Timed out waiting for a database connection");
+                }
+            }
+
+            if (lease.validate()) {
+                lease.inUse = true;
+                return lease;
+            }
+            lease.discard();
+        }
+    }
+
+    /**
+     * @return number of currently open connections
+     */
+    public int opened() {
+        return this.opened.get();
+    }
+
+    @Override public void close() {
+        this.closed = true;
+        Lease lease;
+        while ((lease = this.idle.poll()) != null) {
+            lease.discard();
+        }
+    }
+
+    private Lease tryOpen() throws SQLException {
+        int current;
+        do {
+            current = this.opened.get();
+            if (current >= this.size) {
+                return null;
+            }
+        } while (!this.opened.compareAndSet(current, current + 1));
+
+        try {
+            Connection connection = DriverManager.getConnection(this.url, this.user, this.password);
+            connection.setAutoCommit(false);
+            return new Lease(connection);
+        }
+        catch (SQLException ex) {
+            this.opened.decrementAndGet();
+            throw ex;
+        }
+    }
+
+    /**
+     * A borrowed connection. Closing it returns the connection to the pool, or throws it away if it was marked broken.
+     */
+    public class Lease implements AutoCloseable {
+
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private long lastUsed = System.currentTimeMillis();
+        private boolean broken;
+        private boolean inUse;
+
+        private Lease(Connection connection) {
+            this.connection = connection;
+        }
+
+        public Connection connection() {
+            return this.connection;
+        }
+
+        /**
+         * Get a prepared statement for this connection, preparing it on first use. Parameters and batches left over from the
+         * previous use are cleared.
+         *
+         * @param sql statement text, also used as the cache key
+         * @return the prepared statement, which must not be closed by the caller
+         */
+        public PreparedStatement statement(String sql) throws SQLException {
+            PreparedStatement statement = this.statements.get(sql);
+            if (statement == null) {
+                statement = this.connection.prepareStatement(sql);
+                this.statements.put(sql, statement);
+            }
+            else {
+                statement.clearParameters();
+                statement.clearBatch();
+            }
+            return statement;
+        }
+
+        /**
+         * Roll back the current transaction, marking the connection broken if even that fails.
+         */
+        public void rollback() {
+            try {
+                this.connection.rollback();
+            }
+            catch (SQLException ex) {
+                this.broken = true;
+            }
+        }
+
+        /**
+         * Don't return this connection to the pool when the lease is closed.
+         */
+        public void markBroken() {
+            this.broken = true;
+        }
+
+        @Override public void close() {
+            if (!this.inUse) {
+                return;
+            }
+            this.inUse = false;
+            this.lastUsed = System.currentTimeMillis();
+            if (this.broken || closed || !idle.offer(this)) {
+                discard();
+            }
+        }
+
+        private boolean validate() {
+            if (System.currentTimeMillis() - this.lastUsed < VALIDATE_AFTER_MILLIS) {
+                return true;
+            }
+            try {
+                return this.connection.isValid(VALIDATE_TIMEOUT_SECONDS);
+            }
+            catch (SQLException ex) {
+                return false;
+            }
+        }
+
+        private void discard() {
+            opened.decrementAndGet();
+            try {
+                // Closing the connection also closes its statements
+                this.connection.close();
+            }
+            catch (SQLException ignored) {
+            }
+        }
+    }
+}
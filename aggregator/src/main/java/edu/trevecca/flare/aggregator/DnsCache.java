@@ -0,0 +1,105 @@
+package edu.trevecca.flare.aggregator;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded in-memory copy of the latest domain recorded in {@code dns_dump} for each IP.
+ * <p>
+ * Entries are evicted least-recently-used once the cache is full and expire after a fixed time, so a domain recorded by
+ * another aggregator is picked up eventually. IPs with no recorded domain are cached too, which saves a query for every
+ * unresolved host in every window.
+ */
+public class DnsCache {
+
+    private static final String WARM_QUERY = "SELECT ip_address, domain FROM dns_dump ORDER BY time DESC LIMIT ?";
+    /**
+     * Cached value for IPs which have no domain recorded.
+     */
+    private static final String UNRESOLVED = "";
+
+    private final Cache<String, String> cache;
+    private final int maximumSize;
+
+    /**
+     * Constructor.
+     *
+     * @param maximumSize maximum number of IPs to keep
+     * @param ttl         how long an entry is trusted
+     * @param unit        unit of {@code ttl}
+     */
+    public DnsCache(int maximumSize, long ttl, TimeUnit unit) {
+        this.maximumSize = maximumSize;
+        this.cache = CacheBuilder.newBuilder()
+                                 .maximumSize(maximumSize)
+                                 .expireAfterWrite(ttl, unit)
+                                 .recordStats()
+                                 .build();
+    }
+
+    /**
+     * Fill the cache with the most recently recorded resolutions.
+     *
+     * @param connection connection to read {@code dns_dump} from
+     * @return number of IPs loaded
+     */
+    public int warm(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(WARM_QUERY)) {
+            statement.setInt(1, this.maximumSize);
+            try (ResultSet results = statement.executeQuery()) {
+                Map<String, String> map = this.cache.asMap();
+                while (results.next()) {
+                    // Newest first, so only the first row for each IP is its latest domain
+                    map.putIfAbsent(results.getString(1), results.getString(2));
+                }
+            }
+        }
+        return (int) this.cache.size();
+    }
+
+    /**
+     * Get the latest domain recorded for an IP, querying the database only on a cache miss.
+     *
+     * @param ip     address to look up
+     * @param lookup statement selecting the latest domain for the IP given as its only parameter
+     * @return the domain, or {@code null} if none has been recorded
+     */
+    public String latest(String ip, PreparedStatement lookup) throws SQLException {
+        String domain = this.cache.getIfPresent(ip);
+        if (domain == null) {
+            domain = UNRESOLVED;
+            lookup.setString(1, ip);
+            try (ResultSet res = lookup.executeQuery()) {
+                if (res.next()) {
+                    domain = res.getString(1);
+                }
+            }
+            this.cache.put(ip, domain);
+        }
+        return domain.equals(UNRESOLVED) ? null : domain;
+    }
+
+    /**
+     * Record that a domain is now the latest for every listed IP. Only call this once the writes have been committed.
+     *
+     * @param latest ip -> domain
+     */
+    public void updateAll(Map<String, String> latest) {
+        this.cache.putAll(latest);
+    }
+
+    public long size() {
+        return this.cache.size();
+    }
+
+    public CacheStats stats() {
+        return this.cache.stats();
+    }
+}
@@ -0,0 +1,72 @@
+package edu.trevecca.flare.aggregator;
+
+import edu.trevecca.flare.core.net.IpAddresses;
+import edu.trevecca.flare.core.transfer.PacketDump;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * IP -> domain index over the resolutions of a single dump, built in one pass so host lookups are constant time.
+ * <p>
+ * An IP which was resolved for more than one domain during the window is ambiguous. It is indexed once, under the last
+ * domain it was seen with, and counted so the ambiguity can be reported.
+ */
+class DnsIndex {
+
+    private final Map<String, String> domains;
+    private final int ambiguous;
+
+    private DnsIndex(Map<String, String> domains, int ambiguous) {
+        this.domains = domains;
+        this.ambiguous = ambiguous;
+    }
+
+    /**
+     * Index a dump's resolutions.
+     *
+     * @param resolutions resolutions seen during the window
+     * @return the index
+     */
+    static DnsIndex of(PacketDump.Resolutions resolutions) {
+        Map<String, String> domains = new HashMap<>(Math.max(16, (int) (resolutions.size() / 0.75f) + 1));
+        // Only count each IP once, however many domains it turns out to have
+        Set<String> ambiguous = new HashSet<>();
+        for (int i = 0; i < resolutions.size(); i++) {
+            String ip = IpAddresses.toString(resolutions.address(i));
+            String domain = resolutions.domain(i);
+            String previous = domains.put(ip, domain);
+            if (previous != null && !previous.equals(domain)) {
+                ambiguous.add(ip);
+            }
+        }
+        return new DnsIndex(domains, ambiguous.size());
+    }
+
+    /**
+     * @param ip address to look up
+     * @return the domain the IP was resolved for during the window, or {@code null} if it wasn't
+     */
+    String domain(String ip) {
+        return this.domains.get(ip);
+    }
+
+    /**
+     * @return ip -> domain for every indexed IP
+     */
+    Map<String, String> entries() {
+        return this.domains;
+    }
+
+    int size() {
+        return this.domains.size();
+    }
+
+    /**
+     * @return number of IPs resolved for more than one domain
+     */
+    int ambiguous() {
+        return this.ambiguous;
+    }
+}
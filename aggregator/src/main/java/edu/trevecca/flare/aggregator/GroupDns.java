@@ -0,0 +1,139 @@
+package edu.trevecca.flare.aggregator;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The {@code dns_dump} rows of a group being written by an {@link IngestWriter}, and the domains its hosts are given.
+ * <p>
+ * A domain recorded by an earlier dump in the group is seen by later ones before it reaches the database, and IPs whose
+ * latest row already names the same domain only have its time moved forward. The database is only queried for IPs the
+ * {@link DnsCache} doesn't know.
+ */
+class GroupDns {
+
+    private static final String DNS_UPDATE = "UPDATE dns_dump SET time = (?) WHERE ip_address = (?) ORDER BY time DESC LIMIT 1";
+
+    private final DnsCache dnsCache;
+    private final MultiRowInsert inserts = new MultiRowInsert("dns_dump", "domain", "ip_address", "time");
+    /**
+     * ip -> time of the latest {@code dns_dump} row to bump, for IPs whose latest row already exists.
+     */
+    private final Map<String, Timestamp> updates = new LinkedHashMap<>();
+    /**
+     * ip -> latest domain recorded by the group.
+     */
+    private final Map<String, String> latest = new HashMap<>();
+    /**
+     * ip -> the group's newest {@code dns_dump} row for that IP.
+     */
+    private final Map<String, Object[]> latestRows = new HashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param dnsCache latest known domain of each IP, updated by {@link #committed()}
+     */
+    GroupDns(DnsCache dnsCache) {
+        this.dnsCache = dnsCache;
+    }
+
+    /**
+     * Find the domain of a host for its {@code dump_info} row.
+     *
+     * @param address   IP of the host
+     * @param dns       resolutions of the host's dump
+     * @param dnsSearch statement selecting the latest domain of an IP, only used on a cache miss
+     * @return the domain the host was resolved for in its dump, or else the latest one recorded, or else its IP
+     */
+    String host(String address, DnsIndex dns, PreparedStatement dnsSearch) {
+        String domain = dns.domain(address);
+        if (domain != null) {
+            return domain;
+        }
+        try {
+            domain = currentDomain(address, dnsSearch);
+            if (domain != null) {
+                return domain;
+            }
+        }
+        catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return address;
+    }
+
+    /**
+     * Record a dump's resolutions.
+     *
+     * @param dns       resolutions of the dump
+     * @param time      start of the dump
+     * @param dnsSearch statement selecting the latest domain of an IP, only used on a cache miss
+     */
+    void add(DnsIndex dns, Timestamp time, PreparedStatement dnsSearch) throws SQLException {
+        // The index holds a single domain per IP, so each IP is recorded once per dump
+        for (Entry<String, String> entry : dns.entries().entrySet()) {
+            String ip = entry.getKey();
+            String domain = entry.getValue();
+            String current = currentDomain(ip, dnsSearch);
+            if (current != null && current.equalsIgnoreCase(domain)) {
+                Object[] row = this.latestRows.get(ip);
+                if (row != null) {
+                    // The latest row hasn't been written yet, just move its time forward
+                    row[2] = time;
+                }
+                else {
+                    this.updates.put(ip, time);
+                }
+                continue;
+            }
+            this.latestRows.put(ip, this.inserts.add(domain, ip, time));
+            this.latest.put(ip, domain);
+        }
+    }
+
+    /**
+     * Write the group's rows using the connection's current transaction.
+     *
+     * @return rows updated and rows inserted
+     */
+    int[] write(ConnectionPool.Lease con) throws SQLException {
+        PreparedStatement update = con.statement(DNS_UPDATE);
+        for (Entry<String, Timestamp> entry : this.updates.entrySet()) {
+            update.setTimestamp(1, entry.getValue());
+            update.setString(2, entry.getKey());
+            update.addBatch();
+        }
+        // Updates only touch rows which existed before this group, so they can't be affected by the inserts
+        int updated = Arrays.stream(update.executeBatch()).sum();
+        return new int[]{updated, this.inserts.execute(con)};
+    }
+
+    /**
+     * Tell the cache what the group recorded, once it has been committed.
+     */
+    void committed() {
+        this.dnsCache.updateAll(this.latest);
+    }
+
+    void clear() {
+        this.inserts.clear();
+        this.updates.clear();
+        this.latest.clear();
+        this.latestRows.clear();
+    }
+
+    /**
+     * Latest domain of an IP, including what earlier dumps in the group recorded.
+     */
+    private String currentDomain(String ip, PreparedStatement dnsSearch) throws SQLException {
+        String domain = this.latest.get(ip);
+        return domain != null ? domain : this.dnsCache.latest(ip, dnsSearch);
+    }
+}
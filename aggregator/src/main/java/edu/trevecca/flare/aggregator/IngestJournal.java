@@ -0,0 +1,77 @@
+package edu.trevecca.flare.aggregator;
+
+import edu.trevecca.flare.core.journal.SegmentJournal;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Write-ahead log of received dumps, so dumps which were received but not committed to the database are recorded after a
+ * restart.
+ * <p>
+ * Every dump is appended before it is queued for the {@link IngestWriter}, which records dumps in the order they were
+ * queued. The writer flushes the journal to disk once per group, before writing the group, and commits the group's
+ * entries once the database transaction has committed. Entries left at startup are handed to {@link #recover()}'s caller
+ * before anything new is received.
+ * <p>
+ * Appends come from the dispatch threads while the writer commits, so every call is synchronised.
+ */
+class IngestJournal implements AutoCloseable {
+
+    /**
+     * Channel stored with every entry, the journal only holds packet dumps.
+     */
+    private static final String CHANNEL = "packet-data";
+
+    private final SegmentJournal journal;
+
+    /**
+     * Constructor, opens the journal and finds the entries left by an earlier run.
+     *
+     * @param directory    where segments are kept
+     * @param segmentBytes size of each segment
+     */
+    IngestJournal(Path directory, long segmentBytes) throws IOException {
+        // Never thrown away: entries are only appended while the writer's queue has room, so the journal stays small
+        this.journal = new SegmentJournal(directory, segmentBytes, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return the next entry left by an earlier run, {@code null} once there are none
+     */
+    synchronized byte[] recover() {
+        return this.journal.hasNext() ? this.journal.next().body() : null;
+    }
+
+    synchronized void append(byte[] dump) throws IOException {
+        this.journal.append(CHANNEL, dump);
+    }
+
+    /**
+     * Flush every appended entry to disk.
+     */
+    synchronized void sync() {
+        this.journal.sync();
+    }
+
+    /**
+     * Drop the oldest entries, once the dumps they hold are in the database.
+     *
+     * @param count number of entries
+     */
+    synchronized void commit(int count) {
+        for (int i = 0; i < count; i++) {
+            this.journal.commit();
+        }
+    }
+
+    /**
+     * @return number of entries not committed yet
+     */
+    synchronized long pending() {
+        return this.journal.pending();
+    }
+
+    @Override public synchronized void close() {
+        this.journal.close();
+    }
+}
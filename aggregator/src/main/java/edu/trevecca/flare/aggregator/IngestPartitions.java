@@ -0,0 +1,223 @@
+package edu.trevecca.flare.aggregator;
+
+import edu.trevecca.flare.core.logging.Logging;
+import edu.trevecca.flare.core.transfer.PacketDump;
+import edu.trevecca.flare.core.transfer.PacketDumpRedisMessage;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.logging.Logger;
+
+/**
+ * Records received dumps on several {@link IngestWriter}s at once, partitioned by the collector which sent them.
+ * <p>
+ * Every dump from a collector goes to the same partition, so each collector's dumps are recorded in the order they were
+ * received while different collectors' dumps are recorded in parallel. Dumps from collectors which don't send an ID all
+ * go to the first partition. Each partition has its own database connection and its own journal, in a {@code
+ * partition-<n>} directory under the journal directory. Journals left by a run with more partitions, or by a run from
+ * before partitioning (segments directly in the journal directory), are moved into the current partitions on startup.
+ */
+public class IngestPartitions implements TrafficSink {
+
+    private static final Logger logger = Logging.getLogger("Ingest");
+    private static final String PARTITION_PREFIX = "partition-";
+
+    private final IngestWriter[] writers;
+    private final ConnectionPool[] pools;
+    /**
+     * {@code null} when recording without journals.
+     */
+    private final IngestJournal[] journals;
+    private final Path journalDirectory;
+    private final long segmentBytes;
+
+    /**
+     * Constructor, opens each partition's journal and starts its writer.
+     *
+     * @param partitions       number of partitions recording at once
+     * @param jdbcUrl          JDBC URL of the database
+     * @param user             database user
+     * @param password         database password
+     * @param dnsCache         latest known domain of each IP, shared by every partition
+     * @param rootDomainSize   maximum number of hosts to cache the root domain of, per partition
+     * @param batchRows        rows to gather before committing
+     * @param maxDelayMillis   longest a dump waits before its group is committed, however small
+     * @param queueSize        number of dumps which can wait to be written, per partition
+     * @param journalDirectory directory of the partitions' journals, {@code null} to record without them
+     * @param segmentBytes     size of each journal segment
+     * @param rollups          rollups to add recorded rows to, shared by every partition, {@code null} for none
+     */
+    public IngestPartitions(int partitions, String jdbcUrl, String user, String password, DnsCache dnsCache,
+                            int rootDomainSize, int batchRows, long maxDelayMillis, int queueSize, Path journalDirectory,
+                            long segmentBytes, Rollups rollups) throws IOException {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("There must be at least 1 partition");
+        }
+        this.writers = new IngestWriter[partitions];
+        this.pools = new ConnectionPool[partitions];
+        this.journals = journalDirectory != null ? new IngestJournal[partitions] : null;
+        this.journalDirectory = journalDirectory;
+        this.segmentBytes = segmentBytes;
+
+        // Distinct hosts are merged across collectors, so they have to be shared across partitions too
+        WindowHosts windowHosts = new WindowHosts(IngestWriter.HOST_WINDOWS);
+        for (int i = 0; i < partitions; i++) {
+            this.pools[i] = new ConnectionPool(jdbcUrl, user, password, 1);
+            IngestJournal journal = null;
+            if (this.journals != null) {
+                journal = new IngestJournal(journalDirectory.resolve(PARTITION_PREFIX + i), segmentBytes);
+                this.journals[i] = journal;
+            }
+            this.writers[i] = new IngestWriter(this.pools[i], dnsCache, rootDomainSize, batchRows, maxDelayMillis,
+                                               queueSize, journal, windowHosts, rollups, "ingest-writer-" + i);
+        }
+    }
+
+    /**
+     * Journal a dump and queue it on its collector's partition, waiting for room if the partition is behind.
+     *
+     * @param dump    decoded dump
+     * @param message payload the dump was decoded from, which is what gets journaled
+     */
+    @Override public void submit(PacketDump dump, byte[] message) throws InterruptedException, IOException {
+        this.writers[partition(dump)].submit(dump, message);
+    }
+
+    /**
+     * Queue the dumps left in the journals by an earlier run. Must be called before anything is submitted.
+     *
+     * @return number of dumps recovered
+     */
+    @Override public int recover() throws InterruptedException, IOException {
+        if (this.journals == null) {
+            return 0;
+        }
+        int recovered = 0;
+        for (IngestWriter writer : this.writers) {
+            recovered += writer.recover();
+        }
+        for (Path orphan : orphans()) {
+            recovered += adopt(orphan);
+        }
+        return recovered;
+    }
+
+    /**
+     * @return number of dumps waiting to be written, across every partition
+     */
+    @Override public int backlog() {
+        int backlog = 0;
+        for (IngestWriter writer : this.writers) {
+            backlog += writer.backlog();
+        }
+        return backlog;
+    }
+
+    /**
+     * @return number of journaled dumps which aren't in the database yet, across every partition
+     */
+    @Override public long pending() {
+        long pending = 0;
+        if (this.journals != null) {
+            for (IngestJournal journal : this.journals) {
+                pending += journal.pending();
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Write everything already submitted, then close the journals and connections.
+     */
+    @Override public void close() {
+        // Every writer drains at once, rather than one after another
+        for (IngestWriter writer : this.writers) {
+            writer.stop();
+        }
+        for (IngestWriter writer : this.writers) {
+            writer.close();
+        }
+        if (this.journals != null) {
+            for (IngestJournal journal : this.journals) {
+                journal.close();
+            }
+        }
+        for (ConnectionPool pool : this.pools) {
+            pool.close();
+        }
+    }
+
+    private int partition(PacketDump dump) {
+        return Math.floorMod(Objects.hashCode(dump.collector()), this.writers.length);
+    }
+
+    /**
+     * @return journal directories which don't belong to a current partition
+     */
+    private List<Path> orphans() throws IOException {
+        List<Path> orphans = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.journalDirectory)) {
+            for (Path path : stream) {
+                if (Files.isRegularFile(path)) {
+                    // Segments from before partitioning
+                    if (!orphans.contains(this.journalDirectory)) {
+                        orphans.add(this.journalDirectory);
+                    }
+                    continue;
+                }
+                String name = path.getFileName().toString();
+                if (name.matches(PARTITION_PREFIX + "\\d+")
+                    && Integer.parseInt(name.substring(PARTITION_PREFIX.length())) >= this.writers.length) {
+                    orphans.add(path);
+                }
+            }
+        }
+        return orphans;
+    }
+
+    /**
+     * Move the dumps in a journal which no current partition owns to the partitions they belong to now.
+     *
+     * @return number of dumps moved
+     */
+    private int adopt(Path directory) throws InterruptedException, IOException {
+        IngestJournal orphan = new IngestJournal(directory, this.segmentBytes);
+        int adopted = 0;
+        try {
+            byte[] entry;
+            while ((entry = orphan.recover()) != null) {
+                PacketDump dump;
+                try {
+                    dump = PacketDumpRedisMessage.read(entry);
+                }
+                catch (IOException | RuntimeException ex) {
+                    logger.severe("Failed to read journaled dump in " + directory + ", dropping it!");
+                    ex.printStackTrace();
+                    orphan.commit(1);
+                    continue;
+                }
+                // Journaled by its new partition before it leaves the old journal
+                submit(dump, entry);
+                orphan.commit(1);
+                adopted++;
+            }
+        }
+        finally {
+            orphan.close();
+        }
+        logger.info("Moved " + adopted + " dumps from " + directory + " to the current partitions");
+        if (!directory.equals(this.journalDirectory)) {
+            try {
+                Files.deleteIfExists(directory);
+            }
+            catch (DirectoryNotEmptyException ignored) {
+            }
+        }
+        return adopted;
+    }
+}
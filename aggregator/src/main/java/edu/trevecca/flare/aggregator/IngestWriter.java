@@ -0,0 +1,532 @@
+package edu.trevecca.flare.aggregator;
+
+import com.google.common.cache.CacheStats;
+import edu.trevecca.flare.core.logging.Logging;
+import edu.trevecca.flare.core.metrics.Counter;
+import edu.trevecca.flare.core.metrics.LatencyHistogram;
+import edu.trevecca.flare.core.metrics.MetricsRegistry;
+import edu.trevecca.flare.core.net.IpAddresses;
+import edu.trevecca.flare.core.transfer.PacketDump;
+import edu.trevecca.flare.core.transfer.PacketDumpRedisMessage;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLNonTransientException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind stage between received dumps and the database.
+ * <p>
+ * Dumps are queued by {@link #submit(PacketDump, byte[])} and written by a single thread, which gathers the rows of every
+ * dump queued so far and commits them together once enough rows are waiting or the oldest dump has waited long enough.
+ * Rows are written with multi-row inserts. A group which fails to commit is rolled back and retried with exponential backoff;
+ * errors which retrying can't fix (bad data rather than a lost connection) drop the group after a few attempts.
+ * <p>
+ * Dumps in a group are recorded in the order they were received, with the same results as committing them one at a time:
+ * a domain recorded by an earlier dump in the group is seen by later ones before it reaches the database.
+ * <p>
+ * Each {@code dumps} row records the distinct hosts of its window, merged across every collector's dumps so far (see
+ * {@link WindowHosts}), along with the dump's own serialised counters.
+ * <p>
+ * With {@link Rollups}, each committed group's {@code dump_info} rows are also added to the rollups.
+ * <p>
+ * With an {@link IngestJournal}, every dump is journaled before it is queued and its entry is committed along with its
+ * group, so dumps which were received but not recorded when the aggregator stopped are recorded by {@link #recover()}
+ * on the next start. Groups which are dropped for bad data are committed too, since they would fail again.
+ */
+public class IngestWriter implements AutoCloseable {
+
+    private static final Logger logger = Logging.getLogger("Ingest");
+    /**
+     * Time to write and commit a group, counting only attempts which succeed.
+     */
+    private static final LatencyHistogram commitTime = MetricsRegistry.global().histogram("aggregator.commit");
+    private static final Counter committedRows = MetricsRegistry.global().counter("aggregator.rows");
+    private static final Counter failedCommits = MetricsRegistry.global().counter("aggregator.commit-failures");
+
+    private static final String DNS_LOOKUP = "SELECT domain from dns_dump where ip_address = (?) ORDER BY time DESC LIMIT 1";
+    /**
+     * Columns of {@code dumps} holding each window's distinct hosts, and their types. Databases from before they were
+     * recorded get them added by the first write.
+     */
+    private static final String[][] HOST_COLUMNS = {
+        {"outbound_hosts", "BIGINT"}, {"inbound_hosts", "BIGINT"},
+        // A precision 16 register set is 64 KiB, one byte more than a BLOB holds
+        {"outbound_registers", "MEDIUMBLOB"}, {"inbound_registers", "MEDIUMBLOB"}
+    };
+
+    /**
+     * How long to wait for a free database connection before failing the attempt.
+     */
+    private static final long ACQUIRE_TIMEOUT_SECONDS = 30;
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    /**
+     * Attempts before a group failing with a non-transient error is dropped.
+     */
+    private static final int MAX_NON_TRANSIENT_ATTEMPTS = 3;
+    /**
+     * Attempts before a failing group is dropped once the writer is closing.
+     */
+    private static final int MAX_CLOSING_ATTEMPTS = 3;
+    /**
+     * How long the writer thread waits for a dump when nothing is pending.
+     */
+    private static final long POLL_MILLIS = 100;
+    /**
+     * Recent stats windows to merge distinct hosts of, late dumps for older windows only count their own hosts.
+     */
+    static final int HOST_WINDOWS = 64;
+
+    private final ConnectionPool pool;
+    private final DnsCache dnsCache;
+    private final RootDomains rootDomains;
+    private final int batchRows;
+    private final long maxDelayMillis;
+    private final BlockingQueue<PacketDump> queue;
+    private final Thread thread;
+    private volatile boolean running = true;
+    /**
+     * {@code null} to record without a journal.
+     */
+    private final IngestJournal journal;
+    /**
+     * Keeps journal entries in the same order as the queue when several threads submit.
+     */
+    private final Object submitLock = new Object();
+    /**
+     * Dumps queued but not yet recorded or dropped.
+     */
+    private final AtomicInteger unwritten = new AtomicInteger();
+    /**
+     * Set once a group is left in the journal while closing, after which nothing else may be committed: entries are
+     * committed oldest first, so a later group's commit would take the earlier group's entries instead.
+     */
+    private boolean journalHeld;
+
+    private final MultiRowInsert dumps = new MultiRowInsert("dumps", "time", "error", "total", "outbound_hosts",
+                                                            "inbound_hosts", "outbound_registers", "inbound_registers"
+    );
+    /**
+     * {@code dumps} without the distinct host columns, for databases they couldn't be added to.
+     */
+    private final MultiRowInsert plainDumps = new MultiRowInsert("dumps", "time", "error", "total");
+    /**
+     * Whether {@code dumps} has the distinct host columns, {@code null} until the first write has checked.
+     */
+    private Boolean hostColumns;
+    private final MultiRowInsert info =
+        new MultiRowInsert("dump_info", "ip_address", "direction", "ip_count", "dns", "time", "ratio", "dns_root");
+    private final GroupDns dns;
+    private final WindowHosts windowHosts;
+    /**
+     * {@code null} to record without rollups.
+     */
+    private final Rollups rollups;
+    /**
+     * Rows of the group being written, added to the rollups once it commits.
+     */
+    private final Rollups.Batch rollup = new Rollups.Batch();
+
+    /**
+     * Constructor, starts the writer thread.
+     *
+     * @param pool           connections to write with
+     * @param dnsCache       latest known domain of each IP, updated once a group commits
+     * @param rootDomainSize maximum number of hosts to cache the root domain of
+     * @param batchRows      rows to gather before committing
+     * @param maxDelayMillis longest a dump waits before its group is committed, however small
+     * @param queueSize      number of dumps which can wait to be written before {@link #submit(PacketDump, byte[])}
+     *                       blocks
+     * @param journal        journal of received dumps, {@code null} to record without one
+     */
+    public IngestWriter(ConnectionPool pool, DnsCache dnsCache, int rootDomainSize, int batchRows, long maxDelayMillis,
+                        int queueSize, IngestJournal journal) {
+        this(pool, dnsCache, rootDomainSize, batchRows, maxDelayMillis, queueSize, journal,
+             new WindowHosts(HOST_WINDOWS), null, "ingest-writer");
+    }
+
+    /**
+     * Constructor, for one of several writers recording at once, see {@link IngestPartitions}.
+     *
+     * @param windowHosts distinct hosts of recent windows, shared with the other writers
+     * @param rollups     rollups to add committed rows to, shared with the other writers, {@code null} for none
+     * @param name        name of the writer thread
+     */
+    IngestWriter(ConnectionPool pool, DnsCache dnsCache, int rootDomainSize, int batchRows, long maxDelayMillis,
+                 int queueSize, IngestJournal journal, WindowHosts windowHosts, Rollups rollups, String name) {
+        this.pool = pool;
+        this.dnsCache = dnsCache;
+        this.dns = new GroupDns(dnsCache);
+        this.rootDomains = new RootDomains(rootDomainSize);
+        this.batchRows = batchRows;
+        this.maxDelayMillis = maxDelayMillis;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.journal = journal;
+        this.windowHosts = windowHosts;
+        this.rollups = rollups;
+        this.thread = new Thread(this::run, name);
+        this.thread.start();
+    }
+
+    /**
+     * Journal a dump and queue it to be recorded, waiting for room if the writer is behind.
+     *
+     * @param dump    decoded dump
+     * @param message payload the dump was decoded from, which is what gets journaled
+     */
+    public void submit(PacketDump dump, byte[] message) throws InterruptedException, IOException {
+        if (!this.running) {
+            throw new IllegalStateException("Ingest writer is closed");
+        }
+        if (this.journal == null) {
+            enqueue(dump);
+            return;
+        }
+        synchronized (this.submitLock) {
+            this.journal.append(message);
+            enqueue(dump);
+        }
+    }
+
+    /**
+     * Queue the dumps left in the journal by an earlier run. Must be called before anything is submitted.
+     *
+     * @return number of dumps recovered
+     */
+    public int recover() throws InterruptedException {
+        if (this.journal == null) {
+            return 0;
+        }
+        int recovered = 0;
+        byte[] entry;
+        while ((entry = this.journal.recover()) != null) {
+            recovered++;
+            PacketDump dump;
+            try {
+                dump = PacketDumpRedisMessage.read(entry);
+            }
+            catch (Exception ex) {
+                logger.severe("Failed to read journaled dump, dropping it!");
+                ex.printStackTrace();
+                // Entries are committed oldest first, so wait until everything before this one is
+                while (this.unwritten.get() > 0) {
+                    Thread.sleep(POLL_MILLIS);
+                }
+                this.journal.commit(1);
+                continue;
+            }
+            enqueue(dump);
+        }
+        return recovered;
+    }
+
+    private void enqueue(PacketDump dump) throws InterruptedException {
+        this.unwritten.incrementAndGet();
+        try {
+            this.queue.put(dump);
+        }
+        catch (InterruptedException ex) {
+            this.unwritten.decrementAndGet();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return number of dumps waiting to be written
+     */
+    public int backlog() {
+        return this.queue.size();
+    }
+
+    /**
+     * Stop accepting dumps and let the writer thread finish what is queued, without waiting for it.
+     */
+    void stop() {
+        this.running = false;
+    }
+
+    /**
+     * Write everything already submitted and stop the writer thread. If interrupted, returns without waiting for the
+     * writer, which carries on in the background, and leaves the thread's interrupt status set.
+     */
+    @Override public void close() {
+        stop();
+        try {
+            this.thread.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<PacketDump> group = new ArrayList<>();
+        int rows = 0;
+        long deadline = 0;
+        while (true) {
+            PacketDump dump;
+            try {
+                long wait = group.isEmpty() ? POLL_MILLIS : Math.max(0, deadline - System.currentTimeMillis());
+                dump = this.queue.poll(wait, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException ex) {
+                return;
+            }
+            if (dump != null) {
+                if (group.isEmpty()) {
+                    deadline = System.currentTimeMillis() + this.maxDelayMillis;
+                }
+                group.add(dump);
+                rows += 1 + dump.outbound().size() + dump.inbound().size() + dump.dns().size();
+            }
+
+            boolean closing = !this.running && this.queue.isEmpty();
+            if (!group.isEmpty() && (rows >= this.batchRows || System.currentTimeMillis() >= deadline || closing)) {
+                write(group, rows);
+                group.clear();
+                rows = 0;
+            }
+            if (closing && group.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Commit a group, retrying until it succeeds or is given up on.
+     */
+    private void write(List<PacketDump> group, int rows) {
+        try {
+            if (writeGroup(group, rows) && this.journal != null && !this.journalHeld) {
+                this.journal.commit(group.size());
+            }
+        }
+        finally {
+            this.unwritten.addAndGet(-group.size());
+        }
+    }
+
+    /**
+     * @return {@code false} if the group's dumps should stay in the journal
+     */
+    private boolean writeGroup(List<PacketDump> group, int rows) {
+        if (this.journal != null) {
+            // One flush covers every dump journaled so far
+            this.journal.sync();
+        }
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            long started = System.nanoTime();
+            try (ConnectionPool.Lease con = this.pool.acquire(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                try {
+                    record(con, group);
+                    con.connection().commit();
+                }
+                catch (Exception ex) {
+                    con.rollback();
+                    if (retryable(ex)) {
+                        // Start over on a fresh connection
+                        con.markBroken();
+                    }
+                    throw ex;
+                }
+                commitTime.recordSince(started);
+                committedRows.add(rows);
+                // Only trust what actually made it into the database
+                this.dns.committed();
+                if (this.rollups != null) {
+                    this.rollups.add(this.rollup);
+                }
+                logger.info("Recorded " + group.size() + " dumps (" + rows + " rows) in "
+                            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + "ms");
+                return true;
+            }
+            catch (Exception ex) {
+                failedCommits.increment();
+                int limit = !retryable(ex) ? MAX_NON_TRANSIENT_ATTEMPTS
+                                           : this.running ? Integer.MAX_VALUE : MAX_CLOSING_ATTEMPTS;
+                if (attempt >= limit) {
+                    logger.severe("Giving up on " + group.size() + " dumps after " + attempt + " attempts!");
+                    ex.printStackTrace();
+                    if (retryable(ex) && this.journal != null) {
+                        // Only happens while closing, the next start records them
+                        logger.warning("Leaving the rest of this run's dumps in the ingest journal");
+                        this.journalHeld = true;
+                        return false;
+                    }
+                    return true;
+                }
+                logger.warning("Failed to record " + group.size() + " dumps (attempt " + attempt + "), retrying in "
+                               + backoff + "ms: " + ex);
+                try {
+                    Thread.sleep(backoff);
+                }
+                catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    this.journalHeld = true;
+                    return false;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+            finally {
+                clear();
+            }
+        }
+    }
+
+    /**
+     * Write a group using the connection's current transaction.
+     */
+    private void record(ConnectionPool.Lease con, List<PacketDump> group) throws SQLException {
+        addHostColumns(con);
+        PreparedStatement dnsSearch = con.statement(DNS_LOOKUP);
+        int ambiguous = 0;
+        for (PacketDump dump : group) {
+            Timestamp time = Timestamp.from(dump.start());
+            DnsIndex dns = DnsIndex.of(dump.dns());
+            ambiguous += dns.ambiguous();
+
+            // Log window information
+            addDump(dump, time);
+            this.rollup.windowEnd(time.getTime() + Math.max(1, dump.statsWindow()) * 1000L);
+
+            // Save traffic
+            for (int i = 0; i < dump.outbound().size(); i++) {
+                addInfo(dump.outbound(), i, false, time, dns, dnsSearch);
+            }
+            for (int i = 0; i < dump.inbound().size(); i++) {
+                addInfo(dump.inbound(), i, true, time, dns, dnsSearch);
+            }
+
+            // Save DNS
+            this.dns.add(dns, time, dnsSearch);
+        }
+
+        this.dumps.execute(con);
+        this.plainDumps.execute(con);
+        int infoRows = this.info.execute(con);
+        int[] dnsRows = this.dns.write(con);
+
+        logger.info(infoRows + " info entries inserted");
+        logger.info(dnsRows[1] + " DNS entries inserted");
+        logger.info(dnsRows[0] + " DNS entries updated");
+        logger.info(ambiguous + " IPs resolved for more than one domain");
+        CacheStats stats = this.dnsCache.stats();
+        logger.info("DNS cache: " + this.dnsCache.size() + " entries, " + stats.hitCount() + " hits, " + stats.missCount()
+                    + " misses");
+        stats = this.rootDomains.stats();
+        logger.info("Root domain cache: " + this.rootDomains.size() + " entries, " + stats.hitCount() + " hits, "
+                    + stats.missCount() + " misses");
+    }
+
+    private void addDump(PacketDump dump, Timestamp time) {
+        WindowHosts.Window hosts = this.windowHosts.merge(dump);
+        if (!this.hostColumns) {
+            long total = hosts != null ? hosts.outbound() + hosts.inbound()
+                                       : dump.outbound().size() + dump.inbound().size();
+            this.plainDumps.add(time, dump.badNets(), total);
+            return;
+        }
+        if (hosts == null) {
+            // Older collectors send every host, so counting them is exact
+            this.dumps.add(time, dump.badNets(), dump.outbound().size() + dump.inbound().size(), null, null, null, null);
+            return;
+        }
+        // The registers are this dump's own, so windows can be merged again later across any collectors or time range
+        this.dumps.add(time, dump.badNets(), hosts.outbound() + hosts.inbound(), hosts.outbound(), hosts.inbound(),
+                       dump.outbound().hosts().toBytes(), dump.inbound().hosts().toBytes()
+                      );
+    }
+
+    private void addInfo(PacketDump.Traffic data, int index, boolean in, Timestamp time, DnsIndex dns,
+                         PreparedStatement dnsSearch) throws SQLException {
+        String address = IpAddresses.toString(data.address(index));
+        String host = this.dns.host(address, dns, dnsSearch);
+        String root = this.rootDomains.of(host);
+        this.info.add(address, in ? 1 : 0, data.bytes(index), host, time, (float) data.percent(index), root);
+        if (this.rollups != null) {
+            this.rollup.add(time.getTime(), root, data.address(index), in, data.bytes(index));
+        }
+    }
+
+    /**
+     * Add whichever distinct host columns {@code dumps} is missing, the first time a group is written. If they can't be
+     * added, dumps are recorded without them from then on rather than failing every group.
+     */
+    private void addHostColumns(ConnectionPool.Lease con) throws SQLException {
+        if (this.hostColumns != null) {
+            return;
+        }
+        Set<String> existing = dumpColumns(con);
+        List<String> added = new ArrayList<>();
+        try (Statement statement = con.connection().createStatement()) {
+            for (String[] column : HOST_COLUMNS) {
+                if (!existing.contains(column[0])) {
+                    statement.execute("ALTER TABLE dumps ADD COLUMN " + column[0] + " " + column[1]);
+                    added.add(column[0]);
+                }
+            }
+            con.connection().commit();
+        }
+        catch (SQLException ex) {
+            con.rollback();
+            // Another writer may have added them first, if this fails too the group is retried as usual
+            existing = dumpColumns(con);
+            for (String[] column : HOST_COLUMNS) {
+                if (!existing.contains(column[0])) {
+                    logger.warning("Failed to add distinct host columns to dumps, recording without them: " + ex);
+                    this.hostColumns = false;
+                    return;
+                }
+            }
+        }
+        if (!added.isEmpty()) {
+            logger.info("Added " + added + " to dumps");
+        }
+        this.hostColumns = true;
+    }
+
+    /**
+     * @return lower case names of the columns of {@code dumps}
+     */
+    private static Set<String> dumpColumns(ConnectionPool.Lease con) throws SQLException {
+        Set<String> columns = new HashSet<>();
+        try (Statement statement = con.connection().createStatement();
+             ResultSet results = statement.executeQuery("SELECT * FROM dumps WHERE 1 = 0")) {
+            ResultSetMetaData meta = results.getMetaData();
+            for (int i = 1; i <= meta.getColumnCount(); i++) {
+                columns.add(meta.getColumnName(i).toLowerCase());
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * @return {@code false} if the error is caused by what is being written, so trying again won't help
+     */
+    private static boolean retryable(Exception ex) {
+        return !(ex instanceof SQLNonTransientException) || ex instanceof SQLNonTransientConnectionException;
+    }
+
+    private void clear() {
+        this.dumps.clear();
+        this.plainDumps.clear();
+        this.info.clear();
+        this.dns.clear();
+        this.rollup.clear();
+    }
+}
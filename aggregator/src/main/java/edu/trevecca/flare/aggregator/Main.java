@@ -2,8 +2,19 @@ package edu.trevecca.flare.aggregator;
 
 import static edu.trevecca.flare.core.logging.Logging.getLogger;
 
+import edu.trevecca.flare.aggregator.store.SegmentStore;
+import edu.trevecca.flare.core.metrics.MetricsRegistry;
+import edu.trevecca.flare.core.metrics.PrometheusEndpoint;
+import edu.trevecca.flare.core.metrics.RedisMetricsExporter;
+import edu.trevecca.flare.core.redis.Backpressure;
+import edu.trevecca.flare.core.redis.DispatchOptions;
+import edu.trevecca.flare.core.redis.HandlerDispatcher;
 import edu.trevecca.flare.core.redis.Redis;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.SQLException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
@@ -14,6 +25,14 @@ public class Main implements Callable<Void> {
      * Console logging
      */
     public static final Logger logger = getLogger("Main");
+    /**
+     * How often to log the dump queue while it isn't empty.
+     */
+    private static final int QUEUE_LOG_SECONDS = 60;
+    /**
+     * Environment variable the database password is read from, so it needn't show up in the process list.
+     */
+    private static final String DB_PASSWORD_ENV = "FLARE_DB_PASSWORD";
     /**
      * Set to false by a shutdown handler which ends the main program loop.
      */
@@ -28,10 +47,180 @@ public class Main implements Callable<Void> {
      */
     @Option(names = "-rp, --redis-port", defaultValue = "6379",
             description = "Port of the redis server used for cross-node communication") private int redisPort;
+    /**
+     * JDBC URL of the database dumps are recorded to
+     */
+    @Option(names = {"-db", "--jdbc-url"}, defaultValue = "jdbc:mysql://localhost/flare",
+            description = "JDBC URL of the database dumps are recorded to") private String jdbcUrl;
+    /**
+     * Database user
+     */
+    @Option(names = {"-du", "--db-user"}, defaultValue = "flare",
+            description = "Database user") private String dbUser;
+    /**
+     * Database password, {@link #DB_PASSWORD_ENV} when not given
+     */
+    @Option(names = {"-dp", "--db-password"},
+            description = "Database password, read from " + DB_PASSWORD_ENV + " if not given") private String dbPassword;
+    /**
+     * Storage sink
+     */
+    @Option(names = {"-sk", "--sink"}, defaultValue = "MYSQL",
+            description = "Where received dumps are recorded, MYSQL or SEGMENTS (local files, no database)")
+    private TrafficSink.Sink sink;
+    /**
+     * Segment store directory
+     */
+    @Option(names = {"-sg", "--segment-dir"}, defaultValue = "segments",
+            description = "Directory of the segment store, for the SEGMENTS sink") private String segmentDirectory;
+    /**
+     * Segment flush size
+     */
+    @Option(names = {"-sr", "--segment-rows"}, defaultValue = "1000000",
+            description = "Rows to buffer before writing a segment, for the SEGMENTS sink") private int segmentRows;
+    /**
+     * Segment compaction threshold
+     */
+    @Option(names = {"-sc", "--compact-rows"}, defaultValue = "500000",
+            description = "Segments with fewer rows are merged with the rest of their hour, for the SEGMENTS sink")
+    private int compactRows;
+    /**
+     * Database connection pool size
+     */
+    @Option(names = {"-ps", "--db-pool-size"}, defaultValue = "4",
+            description = "Maximum number of open database connections, besides one per ingest partition")
+    private int poolSize;
+    /**
+     * DNS cache size
+     */
+    @Option(names = {"-dc", "--dns-cache-size"}, defaultValue = "200000",
+            description = "Maximum number of IPs to cache the latest domain of") private int dnsCacheSize;
+    /**
+     * DNS cache TTL
+     */
+    @Option(names = {"-dt", "--dns-cache-ttl"}, defaultValue = "60",
+            description = "Time (in minutes) a cached domain is trusted for") private int dnsCacheTtl;
+    /**
+     * Root domain cache size
+     */
+    @Option(names = {"-rc", "--root-domain-cache-size"}, defaultValue = "100000",
+            description = "Maximum number of hosts to cache the root domain of") private int rootDomainCacheSize;
+    /**
+     * Ingest partitions
+     */
+    @Option(names = {"-ip", "--ingest-partitions"}, defaultValue = "4",
+            description = "Number of collector partitions recorded in parallel, each on its own database connection")
+    private int ingestPartitions;
+    /**
+     * Ingest group size
+     */
+    @Option(names = {"-ib", "--ingest-batch-rows"}, defaultValue = "20000",
+            description = "Rows to gather from received dumps before committing them together") private int batchRows;
+    /**
+     * Ingest group delay
+     */
+    @Option(names = {"-id", "--ingest-max-delay"}, defaultValue = "1000",
+            description = "Time (in milliseconds) a received dump may wait to be committed") private long maxDelay;
+    /**
+     * Ingest queue size
+     */
+    @Option(names = {"-iq", "--ingest-queue-size"}, defaultValue = "32",
+            description = "Number of dumps per partition which can wait to be written to the database")
+    private int ingestQueueSize;
+    /**
+     * Ingest journal directory
+     */
+    @Option(names = {"-ij", "--ingest-journal-dir"}, defaultValue = "ingest-journal",
+            description = "Directory of the journal which keeps received dumps until they are in the database")
+    private String ingestJournalDirectory;
+    /**
+     * Ingest journal segment size
+     */
+    @Option(names = {"-is", "--ingest-journal-segment-size"}, defaultValue = "64",
+            description = "Size (in MiB) of each ingest journal segment file") private int ingestJournalSegmentSize;
+    /**
+     * Rollup lateness
+     */
+    @Option(names = {"-rl", "--rollup-lateness"}, defaultValue = "120",
+            description = "Time (in seconds) after a rollup bucket ends that dumps for it are still expected")
+    private int rollupLateness;
+    /**
+     * Minute rollup retention
+     */
+    @Option(names = {"-rm", "--rollup-minute-retention"}, defaultValue = "48",
+            description = "Time (in hours) minute rollups are kept for, 0 to keep them forever")
+    private int minuteRetention;
+    /**
+     * Hour rollup retention
+     */
+    @Option(names = {"-ro", "--rollup-hour-retention"}, defaultValue = "90",
+            description = "Time (in days) hour rollups are kept for, 0 to keep them forever") private int hourRetention;
+    /**
+     * Day rollup retention
+     */
+    @Option(names = {"-ry", "--rollup-day-retention"}, defaultValue = "0",
+            description = "Time (in days) day rollups are kept for, 0 to keep them forever") private int dayRetention;
+    /**
+     * Top talkers window
+     */
+    @Option(names = {"-tw", "--top-talkers-window"}, defaultValue = "60",
+            description = "Time (in minutes) of recent traffic kept in memory for top talkers queries, 0 to disable")
+    private int topTalkersWindow;
+    /**
+     * Dispatch queue size
+     */
+    @Option(names = {"-qs", "--dispatch-queue-size"}, defaultValue = "16",
+            description = "Maximum number of received dumps waiting in memory to be recorded") private int queueSize;
+    /**
+     * Dispatch backpressure
+     */
+    @Option(names = {"-bp", "--dispatch-backpressure"}, defaultValue = "SPILL",
+            description = "What to do with dumps received while the queue is full (BLOCK, DROP_OLDEST or SPILL)")
+    private Backpressure backpressure;
+    /**
+     * Spill directory
+     */
+    @Option(names = {"-sd", "--spill-dir"}, defaultValue = "spill",
+            description = "Directory dumps which overflow the queue are spilled to") private String spillDirectory;
+    /**
+     * Use virtual threads
+     */
+    @Option(names = {"-vt", "--virtual-threads"},
+            description = "Record dumps on virtual threads, if the JVM supports them") private boolean virtualThreads;
+    /**
+     * Metrics export interval
+     */
+    @Option(names = {"-mi", "--metrics-interval"}, defaultValue = "10",
+            description = "Time (in seconds) between metrics exports to redis, 0 to disable") private int metricsInterval;
+    /**
+     * Metrics HTTP port
+     */
+    @Option(names = {"-mp", "--metrics-port"}, defaultValue = "0",
+            description = "Port to serve Prometheus metrics on, 0 to disable") private int metricsPort;
     /**
      * Redis
      */
     public static Redis redis;
+    /**
+     * Database connections
+     */
+    private ConnectionPool pool;
+    /**
+     * Records received dumps
+     */
+    private TrafficSink ingest;
+    /**
+     * Sums recorded traffic per minute, hour and day
+     */
+    private Rollups rollups;
+    /**
+     * Copies metrics to redis, if enabled
+     */
+    private RedisMetricsExporter metricsExporter;
+    /**
+     * Serves metrics over HTTP, if enabled
+     */
+    private PrometheusEndpoint metricsEndpoint;
 
     public static void main(String[] args) throws Exception {
         // Parse args (see above)
@@ -41,24 +230,136 @@ public class Main implements Callable<Void> {
 
     @Override
     public Void call() throws Exception {
+        if (dbPassword == null) {
+            dbPassword = System.getenv(DB_PASSWORD_ENV);
+        }
+        // There is no default, fail now rather than on the first connection
+        if (sink == TrafficSink.Sink.MYSQL && dbPassword == null) {
+            logger.severe("No database password, use --db-password or set " + DB_PASSWORD_ENV);
+            System.exit(1);
+        }
+
         // Run this when the process is terminated.
         Runtime.getRuntime().addShutdownHook(new Thread(this::finish));
 
         redis = Redis.builder(redisHost, redisPort).reconnect(true).build();
         redis.enable();
-        redis.register(new PacketRedisHandler());
+        // A single dispatch thread decodes dumps, so each collector's dumps reach their partition in the order received
+        DispatchOptions dispatch = DispatchOptions.builder()
+                                                  .queueSize(queueSize)
+                                                  .threads(1)
+                                                  .backpressure(backpressure)
+                                                  .spillDirectory(Paths.get(spillDirectory))
+                                                  .virtualThreads(virtualThreads)
+                                                  .build();
+        ingest = sink == TrafficSink.Sink.SEGMENTS ? openSegments() : openDatabase();
+        // Dumps from before a restart go first, in the same order as their journal entries
+        int recovered = ingest.recover();
+        if (recovered > 0) {
+            logger.info("Recovered " + recovered + " dumps from the ingest journal");
+        }
+        TopTalkers topTalkers = null;
+        if (topTalkersWindow > 0) {
+            topTalkers = new TopTalkers(topTalkersWindow, dnsCacheSize, rootDomainCacheSize);
+            // Stale queries aren't worth answering, and must never hold up the dumps
+            redis.register(new TopTalkersRedisHandler(redis, topTalkers),
+                           DispatchOptions.builder().queueSize(16).backpressure(Backpressure.DROP_OLDEST).build());
+        }
+        HandlerDispatcher dispatcher = redis.register(new PacketRedisHandler(ingest, topTalkers), dispatch);
+
+        MetricsRegistry metrics = MetricsRegistry.global();
+        metrics.registerJvm();
+        metrics.gauge("aggregator.dispatch.depth", dispatcher::depth);
+        metrics.gauge("aggregator.dispatch.spilled", dispatcher::spilled);
+        metrics.gauge("aggregator.dispatch.dropped", dispatcher::dropped);
+        metrics.gauge("aggregator.writer.backlog", ingest::backlog);
+        metrics.gauge("aggregator.journal.pending", ingest::pending);
+        if (rollups != null) {
+            metrics.gauge("aggregator.rollups.open", rollups::open);
+        }
+        if (topTalkers != null) {
+            metrics.gauge("aggregator.top-talkers.minutes", topTalkers::minutes);
+        }
+        if (metricsInterval > 0) {
+            metricsExporter = new RedisMetricsExporter(redis, metrics, RedisMetricsExporter.hashFor("aggregator"),
+                                                       metricsInterval);
+        }
+        if (metricsPort > 0) {
+            metricsEndpoint = new PrometheusEndpoint(metricsPort, metrics);
+        }
 
+        int tick = 0;
         while (doLoop) {
             Thread.sleep(1000);
+            if (++tick % QUEUE_LOG_SECONDS == 0 && (dispatcher.depth() > 0 || dispatcher.spilled() > 0)) {
+                logger.info("Dump queue: " + dispatcher.depth() + "/" + dispatcher.capacity() + ", spilled: "
+                            + dispatcher.spilled() + ", dropped: " + dispatcher.dropped() + ", writer backlog: "
+                            + ingest.backlog());
+            }
         }
 
         return null;
     }
 
+    /**
+     * Record dumps to the database, warming the DNS cache from it first.
+     */
+    private TrafficSink openDatabase() throws IOException, InterruptedException {
+        pool = new ConnectionPool(jdbcUrl, dbUser, dbPassword, poolSize);
+        DnsCache dnsCache = new DnsCache(dnsCacheSize, dnsCacheTtl, TimeUnit.MINUTES);
+        try (ConnectionPool.Lease con = pool.acquire(30, TimeUnit.SECONDS)) {
+            logger.info("Loaded " + dnsCache.warm(con.connection()) + " cached DNS entries");
+            // End the read transaction so later lookups on this connection don't see a stale snapshot
+            con.rollback();
+        }
+        catch (SQLException ex) {
+            // Not fatal, the cache fills itself as dumps come in
+            logger.warning("Failed to warm DNS cache!");
+            ex.printStackTrace();
+        }
+        rollups = new Rollups(pool, TimeUnit.SECONDS.toMillis(rollupLateness), TimeUnit.HOURS.toMillis(minuteRetention),
+                              TimeUnit.DAYS.toMillis(hourRetention), TimeUnit.DAYS.toMillis(dayRetention));
+        return new IngestPartitions(ingestPartitions, jdbcUrl, dbUser, dbPassword, dnsCache, rootDomainCacheSize,
+                                    batchRows, maxDelay, ingestQueueSize, Paths.get(ingestJournalDirectory),
+                                    (long) ingestJournalSegmentSize << 20, rollups);
+    }
+
+    /**
+     * Record dumps to local segment files, without a database.
+     */
+    private TrafficSink openSegments() throws IOException {
+        SegmentStore store = new SegmentStore(Paths.get(segmentDirectory));
+        // Kept apart from the partitions' journals, which are left for when the database sink is used again
+        IngestJournal journal = new IngestJournal(Paths.get(ingestJournalDirectory, "segments"),
+                                                  (long) ingestJournalSegmentSize << 20);
+        return new SegmentSink(store, journal, segmentRows, maxDelay, compactRows, dnsCacheSize);
+    }
+
     /**
      * Called when the JVM is shutting down.
      */
     private void finish() {
         this.doLoop = false;
+        if (metricsEndpoint != null) {
+            metricsEndpoint.close();
+        }
+        if (metricsExporter != null) {
+            // Last export while the connection is still open
+            metricsExporter.close();
+        }
+        if (redis != null) {
+            // Finishes handing queued dumps to the writer
+            redis.disable();
+        }
+        if (ingest != null) {
+            ingest.close();
+        }
+        if (rollups != null) {
+            // After the writers, so everything they recorded is written
+            rollups.close();
+        }
+        if (pool != null) {
+            pool.close();
+        }
     }
 }
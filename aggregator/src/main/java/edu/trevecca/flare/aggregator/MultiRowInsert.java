@@ -0,0 +1,129 @@
+package edu.trevecca.flare.aggregator;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Buffers rows for a table and writes them with multi-row {@code INSERT ... VALUES (...), (...)} statements, which cost a
+ * single round trip per statement instead of one per row.
+ */
+class MultiRowInsert {
+
+    /**
+     * Most rows written by a single statement. Also keeps the parameter count well below the server's limit of 65535.
+     */
+    private static final int MAX_ROWS_PER_STATEMENT = 1000;
+
+    private final String prefix;
+    private final String row;
+    /**
+     * Appended to every statement, such as an {@code ON DUPLICATE KEY UPDATE} clause.
+     */
+    private String suffix = "";
+    private final int columns;
+    private final int rowsPerStatement;
+    private final List<Object[]> rows = new ArrayList<>();
+
+    /**
+     * Constructor.
+     *
+     * @param table   table to insert into
+     * @param columns columns to set, in the order values are given to {@link #add(Object...)}
+     */
+    MultiRowInsert(String table, String... columns) {
+        this.prefix = "INSERT into " + table + " (" + String.join(", ", columns) + ") VALUES ";
+        this.row = "(" + String.join(", ", Collections.nCopies(columns.length, "?")) + ")";
+        this.columns = columns.length;
+        this.rowsPerStatement = Math.min(MAX_ROWS_PER_STATEMENT, 65535 / columns.length);
+    }
+
+    /**
+     * Add to the existing row instead of failing when a row with the same key is already in the table.
+     *
+     * @param columns columns whose values are added to the existing row's
+     * @return this
+     */
+    MultiRowInsert summing(String... columns) {
+        StringBuilder update = new StringBuilder(" ON DUPLICATE KEY UPDATE ");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                update.append(", ");
+            }
+            update.append(columns[i]).append(" = ").append(columns[i]).append(" + VALUES(").append(columns[i]).append(')');
+        }
+        this.suffix = update.toString();
+        return this;
+    }
+
+    /**
+     * Buffer a row.
+     *
+     * @param values one value per column, the array is kept and may be changed until the rows are written
+     * @return the buffered row
+     */
+    Object[] add(Object... values) {
+        if (values.length != this.columns) {
+            throw new IllegalArgumentException("Expected " + this.columns + " values, got " + values.length);
+        }
+        this.rows.add(values);
+        return values;
+    }
+
+    int size() {
+        return this.rows.size();
+    }
+
+    /**
+     * Write every buffered row using the lease's current transaction. The rows stay buffered until {@link #clear()}.
+     *
+     * @param con connection to write with
+     * @return number of rows inserted
+     */
+    int execute(ConnectionPool.Lease con) throws SQLException {
+        int inserted = 0;
+        int full = this.rows.size() / this.rowsPerStatement * this.rowsPerStatement;
+        if (full > 0) {
+            // Every full chunk has the same text, so the statement is prepared once per connection
+            PreparedStatement statement = con.statement(sql(this.rowsPerStatement));
+            for (int offset = 0; offset < full; offset += this.rowsPerStatement) {
+                inserted += bind(statement, offset, this.rowsPerStatement).executeUpdate();
+            }
+        }
+        int remainder = this.rows.size() - full;
+        if (remainder > 0) {
+            try (PreparedStatement statement = con.connection().prepareStatement(sql(remainder))) {
+                inserted += bind(statement, full, remainder).executeUpdate();
+            }
+        }
+        return inserted;
+    }
+
+    void clear() {
+        this.rows.clear();
+    }
+
+    private PreparedStatement bind(PreparedStatement statement, int offset, int count) throws SQLException {
+        int parameter = 1;
+        for (int i = offset; i < offset + count; i++) {
+            for (Object value : this.rows.get(i)) {
+                statement.setObject(parameter++, value);
+            }
+        }
+        return statement;
+    }
+
+    private String sql(int rows) {
+        StringBuilder sql = new StringBuilder(this.prefix.length() + rows * (this.row.length() + 2) + this.suffix.length());
+        sql.append(this.prefix);
+        for (int i = 0; i < rows; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(this.row);
+        }
+        return sql.append(this.suffix).toString();
+    }
+}
@@ -0,0 +1,423 @@
+package edu.trevecca.flare.aggregator;
+
+import edu.trevecca.flare.core.logging.Logging;
+import edu.trevecca.flare.core.net.IpAddresses;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Traffic of each root domain, IP and direction summed per minute, hour and day, in rollup tables next to {@code
+ * dump_info} so that queries over long ranges don't have to scan every window's rows.
+ * <p>
+ * Rollups are built in memory from the rows each {@link IngestWriter} commits, without reading anything back from the
+ * database. Minute buckets are filled from the rows themselves. When a bucket closes it is written to its table and folded
+ * into the bucket of the next granularity, so hours are built from their minutes and days from their hours. A bucket
+ * closes once a dump for a window ending past the bucket's end plus the allowed lateness has been committed.
+ * <p>
+ * Rows are added to what the table already holds rather than replacing it. A dump which arrives after its bucket closed
+ * reopens the bucket, and a bucket written in parts on either side of a restart adds up to the same totals. Buckets still
+ * open when the aggregator stops are written as they are. Buckets which were open when it died are missing from the
+ * rollups, although their rows are in {@code dump_info}.
+ * <p>
+ * Rows older than their granularity's retention are deleted every hour. Days are UTC days.
+ */
+public class Rollups implements AutoCloseable {
+
+    private static final Logger logger = Logging.getLogger("Rollups");
+    /**
+     * Time between checks for closed buckets.
+     */
+    private static final long FLUSH_SECONDS = 10;
+    private static final long PURGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long ACQUIRE_TIMEOUT_SECONDS = 30;
+
+    private final ConnectionPool pool;
+    private final long latenessMillis;
+    private final Map<Granularity, Long> retentionMillis = new EnumMap<>(Granularity.class);
+    /**
+     * Open buckets of each granularity, by start time.
+     */
+    private final Map<Granularity, NavigableMap<Long, Map<Key, Totals>>> open = new EnumMap<>(Granularity.class);
+    /**
+     * End of the latest window committed, in milliseconds.
+     */
+    private long watermark = Long.MIN_VALUE;
+    /**
+     * Only touched by the flushing thread.
+     */
+    private boolean tablesCreated;
+    private long lastPurge;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rollup-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructor, starts writing closed buckets. The rollup tables are created on the first write if they don't exist.
+     *
+     * @param pool                  connections to write with
+     * @param latenessMillis        how long after a bucket ends dumps for it are still expected
+     * @param minuteRetentionMillis how long minute rows are kept, 0 to keep them forever
+     * @param hourRetentionMillis   how long hour rows are kept, 0 to keep them forever
+     * @param dayRetentionMillis    how long day rows are kept, 0 to keep them forever
+     */
+    public Rollups(ConnectionPool pool, long latenessMillis, long minuteRetentionMillis, long hourRetentionMillis,
+                   long dayRetentionMillis) {
+        this.pool = pool;
+        this.latenessMillis = latenessMillis;
+        this.retentionMillis.put(Granularity.MINUTE, minuteRetentionMillis);
+        this.retentionMillis.put(Granularity.HOUR, hourRetentionMillis);
+        this.retentionMillis.put(Granularity.DAY, dayRetentionMillis);
+        for (Granularity granularity : Granularity.values()) {
+            this.open.put(granularity, new TreeMap<>());
+        }
+        this.executor.scheduleWithFixedDelay(() -> flush(false), FLUSH_SECONDS, FLUSH_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Add the rows of a group which was just committed.
+     */
+    synchronized void add(Batch batch) {
+        merge(Granularity.MINUTE, batch.minutes);
+        this.watermark = Math.max(this.watermark, batch.end);
+    }
+
+    /**
+     * @return number of rows in open buckets, across every granularity
+     */
+    public synchronized int open() {
+        int rows = 0;
+        for (NavigableMap<Long, Map<Key, Totals>> buckets : this.open.values()) {
+            for (Map<Key, Totals> bucket : buckets.values()) {
+                rows += bucket.size();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Stop checking for closed buckets and write every open one. Must be called after the writers are closed.
+     */
+    @Override public void close() {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException ex) {
+            // Still written below, each flush takes its own buckets so it can't clash with one still running
+            Thread.currentThread().interrupt();
+        }
+        if (!flush(true)) {
+            logger.severe("Failed to write open rollups before stopping, they are only in dump_info!");
+        }
+    }
+
+    /**
+     * Write closed buckets, coarsest last so that each granularity sees what the finer one just folded into it.
+     *
+     * @param all whether to write every bucket, closed or not
+     * @return {@code false} if writing failed, in which case the buckets stay open until the next attempt
+     */
+    private boolean flush(boolean all) {
+        for (Granularity granularity : Granularity.values()) {
+            NavigableMap<Long, Map<Key, Totals>> closed = take(granularity, all);
+            if (closed.isEmpty()) {
+                continue;
+            }
+            if (!write(granularity, closed)) {
+                synchronized (this) {
+                    merge(granularity, closed);
+                }
+                // Coarser granularities wait, so they never get ahead of what this one has written
+                return false;
+            }
+            Granularity next = granularity.next();
+            if (next != null) {
+                synchronized (this) {
+                    for (Entry<Long, Map<Key, Totals>> bucket : closed.entrySet()) {
+                        merge(this.open.get(next), next.bucket(bucket.getKey()), bucket.getValue());
+                    }
+                }
+            }
+        }
+        if (System.currentTimeMillis() - this.lastPurge >= PURGE_MILLIS && purge()) {
+            this.lastPurge = System.currentTimeMillis();
+        }
+        return true;
+    }
+
+    /**
+     * Remove the buckets which are due to be written.
+     */
+    private synchronized NavigableMap<Long, Map<Key, Totals>> take(Granularity granularity, boolean all) {
+        NavigableMap<Long, Map<Key, Totals>> buckets = this.open.get(granularity);
+        NavigableMap<Long, Map<Key, Totals>> closed;
+        if (all) {
+            closed = new TreeMap<>(buckets);
+        }
+        else if (this.watermark == Long.MIN_VALUE) {
+            return new TreeMap<>();
+        }
+        else {
+            // Buckets ending at or before the cutoff
+            long cutoff = this.watermark - this.latenessMillis - granularity.length;
+            closed = new TreeMap<>(buckets.headMap(cutoff, true));
+        }
+        buckets.keySet().removeAll(closed.keySet());
+        return closed;
+    }
+
+    private void merge(Granularity granularity, Map<Long, Map<Key, Totals>> buckets) {
+        NavigableMap<Long, Map<Key, Totals>> target = this.open.get(granularity);
+        for (Entry<Long, Map<Key, Totals>> bucket : buckets.entrySet()) {
+            merge(target, bucket.getKey(), bucket.getValue());
+        }
+    }
+
+    private static void merge(NavigableMap<Long, Map<Key, Totals>> target, long start, Map<Key, Totals> rows) {
+        Map<Key, Totals> bucket = target.get(start);
+        if (bucket == null) {
+            // Nothing else holds on to the rows, so they can be taken over as they are
+            target.put(start, rows);
+            return;
+        }
+        rows.forEach((key, totals) -> bucket.merge(key, totals, Totals::add));
+    }
+
+    /**
+     * Add buckets to their table in one transaction.
+     */
+    private boolean write(Granularity granularity, NavigableMap<Long, Map<Key, Totals>> buckets) {
+        MultiRowInsert insert = new MultiRowInsert(granularity.table, "time", "dns_root", "ip_address", "direction",
+                                                   "ip_count", "samples"
+        ).summing("ip_count", "samples");
+        for (Entry<Long, Map<Key, Totals>> bucket : buckets.entrySet()) {
+            Timestamp time = new Timestamp(bucket.getKey());
+            for (Entry<Key, Totals> row : bucket.getValue().entrySet()) {
+                Key key = row.getKey();
+                insert.add(time, key.root, IpAddresses.toString(key.address), key.inbound ? 1 : 0, row.getValue().bytes,
+                           row.getValue().samples
+                          );
+            }
+        }
+        long started = System.nanoTime();
+        try (ConnectionPool.Lease con = this.pool.acquire(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            try {
+                createTables(con);
+                insert.execute(con);
+                con.connection().commit();
+            }
+            catch (SQLException ex) {
+                con.rollback();
+                throw ex;
+            }
+            logger.info("Wrote " + insert.size() + " rows of " + buckets.size() + " " + granularity.name().toLowerCase()
+                        + " buckets in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + "ms");
+            return true;
+        }
+        catch (SQLException ex) {
+            logger.warning("Failed to write " + insert.size() + " " + granularity.name().toLowerCase() + " rollups: " + ex);
+            return false;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Delete rows older than their granularity's retention.
+     *
+     * @return {@code false} if deleting failed
+     */
+    private boolean purge() {
+        try (ConnectionPool.Lease con = this.pool.acquire(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            try {
+                createTables(con);
+                for (Granularity granularity : Granularity.values()) {
+                    long retention = this.retentionMillis.get(granularity);
+                    if (retention <= 0) {
+                        continue;
+                    }
+                    PreparedStatement delete = con.statement("DELETE FROM " + granularity.table + " WHERE time < (?)");
+                    delete.setTimestamp(1, new Timestamp(System.currentTimeMillis() - retention));
+                    int deleted = delete.executeUpdate();
+                    con.connection().commit();
+                    if (deleted > 0) {
+                        logger.info("Deleted " + deleted + " expired rows from " + granularity.table);
+                    }
+                }
+            }
+            catch (SQLException ex) {
+                con.rollback();
+                throw ex;
+            }
+            return true;
+        }
+        catch (SQLException ex) {
+            logger.warning("Failed to delete expired rollups: " + ex);
+            return false;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void createTables(ConnectionPool.Lease con) throws SQLException {
+        if (this.tablesCreated) {
+            return;
+        }
+        try (Statement statement = con.connection().createStatement()) {
+            for (Granularity granularity : Granularity.values()) {
+                // DATETIME rather than TIMESTAMP, which MySQL may update to the current time whenever a row changes
+                statement.execute("CREATE TABLE IF NOT EXISTS " + granularity.table + " (time DATETIME NOT NULL, "
+                                  + "dns_root VARCHAR(255) NOT NULL, ip_address VARCHAR(16) NOT NULL, "
+                                  + "direction INT NOT NULL, ip_count BIGINT NOT NULL, samples INT NOT NULL, "
+                                  + "PRIMARY KEY (time, dns_root, ip_address, direction))");
+            }
+        }
+        con.connection().commit();
+        this.tablesCreated = true;
+    }
+
+    /**
+     * Length of a rollup bucket and the table it is written to.
+     */
+    enum Granularity {
+        MINUTE("dump_info_minute", TimeUnit.MINUTES.toMillis(1)),
+        HOUR("dump_info_hour", TimeUnit.HOURS.toMillis(1)),
+        DAY("dump_info_day", TimeUnit.DAYS.toMillis(1));
+
+        private final String table;
+        private final long length;
+
+        Granularity(String table, long length) {
+            this.table = table;
+            this.length = length;
+        }
+
+        /**
+         * @return start of the bucket which a time falls in
+         */
+        long bucket(long millis) {
+            return Math.floorDiv(millis, this.length) * this.length;
+        }
+
+        /**
+         * @return the next coarser granularity, {@code null} for the coarsest
+         */
+        Granularity next() {
+            Granularity[] values = values();
+            return ordinal() + 1 < values.length ? values[ordinal() + 1] : null;
+        }
+    }
+
+    /**
+     * Rows of a group being recorded by one writer, added to the rollups once the group is committed.
+     * <p>
+     * Not thread safe.
+     */
+    static class Batch {
+
+        private Map<Long, Map<Key, Totals>> minutes = new HashMap<>();
+        private long end = Long.MIN_VALUE;
+        /**
+         * Bucket of the last row added, since consecutive rows almost always share one.
+         */
+        private long lastMinute = Long.MIN_VALUE;
+        private Map<Key, Totals> lastBucket;
+
+        /**
+         * Count a {@code dump_info} row.
+         *
+         * @param time    start of the row's window, in milliseconds
+         * @param root    root domain of the host
+         * @param address IP of the host
+         * @param inbound direction of the traffic
+         * @param bytes   bytes sent or received by the host
+         */
+        void add(long time, String root, int address, boolean inbound, long bytes) {
+            long minute = Granularity.MINUTE.bucket(time);
+            if (minute != this.lastMinute) {
+                this.lastBucket = this.minutes.computeIfAbsent(minute, k -> new HashMap<>());
+                this.lastMinute = minute;
+            }
+            Totals totals = this.lastBucket.computeIfAbsent(new Key(root, address, inbound), k -> new Totals());
+            totals.bytes += bytes;
+            totals.samples++;
+        }
+
+        /**
+         * @param millis end of a window recorded by the group, in milliseconds
+         */
+        void windowEnd(long millis) {
+            this.end = Math.max(this.end, millis);
+        }
+
+        void clear() {
+            // The rollups may have taken over the maps, so they are replaced rather than cleared
+            this.minutes = new HashMap<>();
+            this.end = Long.MIN_VALUE;
+            this.lastMinute = Long.MIN_VALUE;
+            this.lastBucket = null;
+        }
+    }
+
+    private static class Key {
+
+        private final String root;
+        private final int address;
+        private final boolean inbound;
+
+        private Key(String root, int address, boolean inbound) {
+            this.root = root;
+            this.address = address;
+            this.inbound = inbound;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return this.address == key.address && this.inbound == key.inbound && this.root.equals(key.root);
+        }
+
+        @Override public int hashCode() {
+            return Objects.hash(this.root, this.address, this.inbound);
+        }
+    }
+
+    private static class Totals {
+
+        private long bytes;
+        /**
+         * Number of {@code dump_info} rows summed.
+         */
+        private int samples;
+
+        private Totals add(Totals other) {
+            this.bytes += other.bytes;
+            this.samples += other.samples;
+            return this;
+        }
+    }
+}
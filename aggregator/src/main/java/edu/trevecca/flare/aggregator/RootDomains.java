@@ -0,0 +1,71 @@
+package edu.trevecca.flare.aggregator;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.net.InternetDomainName;
+import edu.trevecca.flare.core.net.IpAddresses;
+import java.util.List;
+
+/**
+ * Bounded cache of host -> root domain (its last two labels), as recorded in {@code dump_info.dns_root}.
+ * <p>
+ * Parsing a name with {@link InternetDomainName} is expensive and throws for anything which isn't a valid domain, so
+ * each host is only parsed once while it stays cached. Hosts without a root domain, such as single labels and invalid
+ * names, are cached as themselves. IP literals are their own root and are recognised before the cache, so they are never
+ * parsed or cached at all.
+ */
+class RootDomains {
+
+    private final Cache<String, String> cache;
+
+    /**
+     * Constructor.
+     *
+     * @param maximumSize maximum number of hosts to keep
+     */
+    RootDomains(int maximumSize) {
+        this.cache = CacheBuilder.newBuilder()
+                                 .maximumSize(maximumSize)
+                                 .recordStats()
+                                 .build();
+    }
+
+    /**
+     * @param host domain or IP literal
+     * @return the host's root domain, or the host itself if it doesn't have one
+     */
+    String of(String host) {
+        if (IpAddresses.parse(host) >= 0) {
+            return host;
+        }
+        String root = this.cache.getIfPresent(host);
+        if (root == null) {
+            root = parse(host);
+            this.cache.put(host, root);
+        }
+        return root;
+    }
+
+    long size() {
+        return this.cache.size();
+    }
+
+    CacheStats stats() {
+        return this.cache.stats();
+    }
+
+    private static String parse(String host) {
+        List<String> parts;
+        try {
+            parts = InternetDomainName.from(host).parts();
+        }
+        catch (IllegalArgumentException ignored) {
+            return host;
+        }
+        if (parts.size() < 2) {
+            return host;
+        }
+        return parts.get(parts.size() - 2) + "." + parts.get(parts.size() - 1);
+    }
+}
@@ -0,0 +1,235 @@
+package edu.trevecca.flare.aggregator;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import edu.trevecca.flare.aggregator.store.SegmentStore;
+import edu.trevecca.flare.core.logging.Logging;
+import edu.trevecca.flare.core.transfer.PacketDump;
+import edu.trevecca.flare.core.transfer.PacketDumpRedisMessage;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Records received dumps in a local {@link SegmentStore}, for running on a single box without a database.
+ * <p>
+ * Every host in a dump becomes a row. Its domain is the one the dump resolved it for, or else the last one seen for its
+ * IP since the aggregator started. Rows are buffered and flushed to new segments once enough are waiting or the oldest
+ * dump has waited long enough, and small segments are compacted in the background.
+ * <p>
+ * With an {@link IngestJournal}, every dump is journaled before its rows are buffered and its entry is committed once
+ * they are flushed, so dumps which were buffered when the aggregator stopped are stored by {@link #recover()} on the
+ * next start.
+ * <p>
+ * Unlike {@link IngestPartitions} there is no writer thread: submitting a dump only buffers its rows, and flushing them
+ * is one sequential write per hour they fall in.
+ */
+public class SegmentSink implements TrafficSink {
+
+    private static final Logger logger = Logging.getLogger("Ingest");
+    /**
+     * Time between checks for buffered rows which have waited long enough.
+     */
+    private static final long TICK_MILLIS = 100;
+    private static final long COMPACT_SECONDS = 60;
+
+    private final SegmentStore store;
+    /**
+     * {@code null} to store without a journal.
+     */
+    private final IngestJournal journal;
+    private final int flushRows;
+    private final long maxDelayMillis;
+    private final int compactRows;
+    /**
+     * IP -> ID of the latest domain it was resolved for.
+     */
+    private final Cache<Integer, Integer> latestDomains;
+    /**
+     * Dumps, or unreadable journal entries, whose rows are buffered.
+     */
+    private int unflushed;
+    /**
+     * When the oldest unflushed dump was buffered.
+     */
+    private long oldest;
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "segment-sink");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructor, opens the store and starts flushing and compacting it.
+     *
+     * @param store          where rows are stored
+     * @param journal        journal of received dumps, {@code null} to store without one
+     * @param flushRows      rows to buffer before flushing them
+     * @param maxDelayMillis longest a dump's rows are buffered, however few there are
+     * @param compactRows    segments with fewer rows are merged with the rest of their hour
+     * @param dnsCacheSize   maximum number of IPs to remember the latest domain of
+     */
+    public SegmentSink(SegmentStore store, IngestJournal journal, int flushRows, long maxDelayMillis, int compactRows,
+                       int dnsCacheSize) {
+        this.store = store;
+        this.journal = journal;
+        this.flushRows = flushRows;
+        this.maxDelayMillis = maxDelayMillis;
+        this.compactRows = compactRows;
+        this.latestDomains = CacheBuilder.newBuilder().maximumSize(dnsCacheSize).build();
+        this.executor.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        this.executor.scheduleWithFixedDelay(this::compact, COMPACT_SECONDS, COMPACT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override public synchronized void submit(PacketDump dump, byte[] message) throws IOException {
+        if (this.journal != null) {
+            this.journal.append(message);
+        }
+        buffer(dump);
+    }
+
+    @Override public synchronized int recover() {
+        if (this.journal == null) {
+            return 0;
+        }
+        int recovered = 0;
+        byte[] entry;
+        while ((entry = this.journal.recover()) != null) {
+            recovered++;
+            try {
+                buffer(PacketDumpRedisMessage.read(entry));
+            }
+            catch (Exception ex) {
+                logger.severe("Failed to read journaled dump, dropping it!");
+                ex.printStackTrace();
+                // Committed along with the dumps around it
+                this.unflushed++;
+            }
+        }
+        flush();
+        return recovered;
+    }
+
+    @Override public synchronized int backlog() {
+        return this.unflushed;
+    }
+
+    @Override public long pending() {
+        return this.journal != null ? this.journal.pending() : 0;
+    }
+
+    /**
+     * @return the store dumps are recorded to
+     */
+    public SegmentStore store() {
+        return this.store;
+    }
+
+    /**
+     * Flush every buffered row, then close the journal and the store.
+     */
+    @Override public void close() {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            flush();
+            if (this.journal != null) {
+                this.journal.close();
+            }
+            try {
+                this.store.close();
+            }
+            catch (IOException ex) {
+                logger.severe("Failed to close the segment store!");
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void buffer(PacketDump dump) {
+        Map<Integer, Integer> resolved = new HashMap<>();
+        PacketDump.Resolutions dns = dump.dns();
+        for (int i = 0; i < dns.size(); i++) {
+            int id = this.store.domainId(dns.domain(i));
+            resolved.put(dns.address(i), id);
+            this.latestDomains.put(dns.address(i), id);
+        }
+        long time = dump.start().toEpochMilli();
+        buffer(dump.outbound(), false, time, resolved);
+        buffer(dump.inbound(), true, time, resolved);
+
+        if (this.unflushed++ == 0) {
+            this.oldest = System.currentTimeMillis();
+        }
+        if (this.store.buffered() >= this.flushRows) {
+            flush();
+        }
+    }
+
+    private void buffer(PacketDump.Traffic traffic, boolean inbound, long time, Map<Integer, Integer> resolved) {
+        for (int i = 0; i < traffic.size(); i++) {
+            int address = traffic.address(i);
+            Integer domain = resolved.get(address);
+            if (domain == null) {
+                domain = this.latestDomains.getIfPresent(address);
+            }
+            this.store.add(time, address, inbound, traffic.bytes(i), domain != null ? domain : -1);
+        }
+    }
+
+    private synchronized void tick() {
+        if (this.journal != null) {
+            // One flush covers every dump journaled since the last tick
+            this.journal.sync();
+        }
+        if (this.unflushed > 0 && System.currentTimeMillis() - this.oldest >= this.maxDelayMillis) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the buffered rows and commit their dumps' journal entries. Rows which fail to be written stay buffered, and
+     * are written along with the next ones.
+     */
+    private void flush() {
+        if (this.unflushed == 0) {
+            return;
+        }
+        long started = System.nanoTime();
+        int rows = this.store.buffered();
+        try {
+            this.store.flush();
+        }
+        catch (IOException ex) {
+            logger.severe("Failed to write " + rows + " rows to the segment store!");
+            ex.printStackTrace();
+            // Tried again once the delay is up, rather than on every tick
+            this.oldest = System.currentTimeMillis();
+            return;
+        }
+        if (this.journal != null) {
+            this.journal.commit(this.unflushed);
+        }
+        logger.info("Stored " + this.unflushed + " dumps (" + rows + " rows) in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + "ms");
+        this.unflushed = 0;
+    }
+
+    private void compact() {
+        try {
+            this.store.compact(this.compactRows);
+        }
+        catch (IOException ex) {
+            logger.warning("Failed to compact the segment store: " + ex);
+        }
+    }
+}
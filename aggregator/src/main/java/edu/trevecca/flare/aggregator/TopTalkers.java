@@ -0,0 +1,201 @@
+package edu.trevecca.flare.aggregator;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import edu.trevecca.flare.core.net.IpAddresses;
+import edu.trevecca.flare.core.stats.TrafficTable;
+import edu.trevecca.flare.core.transfer.PacketDump;
+import edu.trevecca.flare.core.transfer.TopTalkersQuery;
+import edu.trevecca.flare.core.transfer.TopTalkersReply;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bytes per host and per root domain in each direction over the most recent minutes, kept in memory so the busiest ones
+ * can be found without querying the database.
+ * <p>
+ * Dumps are bucketed by their start time rounded down to the minute, and every collector's dumps for a minute are
+ * summed into the same bucket. A host's root domain comes from the dump's resolutions, or else the last one seen for
+ * its IP since the aggregator started, and is its IP when it has neither, as in {@code dump_info.dns_root}. Buckets
+ * older than the window are dropped as newer dumps arrive.
+ * <p>
+ * Dumps are added on the dispatch thread while queries are answered on their own, so both are synchronised.
+ */
+class TopTalkers {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    private final int windowMinutes;
+    /**
+     * Minute (epoch millis / {@link #MINUTE}) -> traffic of dumps which started in it.
+     */
+    private final NavigableMap<Long, Bucket> buckets = new TreeMap<>();
+    /**
+     * IP -> latest domain it was resolved for.
+     */
+    private final Cache<Integer, String> latestDomains;
+    private final RootDomains rootDomains;
+
+    /**
+     * Constructor.
+     *
+     * @param windowMinutes  number of recent minutes to keep
+     * @param dnsCacheSize   maximum number of IPs to remember the latest domain of
+     * @param rootDomainSize maximum number of hosts to cache the root domain of
+     */
+    TopTalkers(int windowMinutes, int dnsCacheSize, int rootDomainSize) {
+        this.windowMinutes = windowMinutes;
+        this.latestDomains = CacheBuilder.newBuilder().maximumSize(dnsCacheSize).build();
+        this.rootDomains = new RootDomains(rootDomainSize);
+    }
+
+    /**
+     * Add a received dump's traffic to its minute, unless the minute has already left the window.
+     *
+     * @param dump received dump
+     */
+    synchronized void add(PacketDump dump) {
+        long minute = Math.floorDiv(dump.start().toEpochMilli(), MINUTE);
+        if (!this.buckets.isEmpty() && minute <= this.buckets.lastKey() - this.windowMinutes) {
+            return;
+        }
+
+        Map<Integer, String> resolved = new HashMap<>();
+        PacketDump.Resolutions dns = dump.dns();
+        for (int i = 0; i < dns.size(); i++) {
+            resolved.put(dns.address(i), dns.domain(i));
+            this.latestDomains.put(dns.address(i), dns.domain(i));
+        }
+        Bucket bucket = this.buckets.computeIfAbsent(minute, key -> new Bucket());
+        add(bucket.outbound, dump.outbound(), resolved);
+        add(bucket.inbound, dump.inbound(), resolved);
+
+        // Counted back from the newest minute, so late dumps for older minutes never move the window
+        this.buckets.headMap(this.buckets.lastKey() - this.windowMinutes, true).clear();
+    }
+
+    /**
+     * Answer a query from the last {@link TopTalkersQuery#minutes()} minutes, up to the newest one with traffic. The
+     * current minute's dumps usually haven't arrived yet, so counting back from it would leave a minute out.
+     *
+     * @param query query to answer
+     * @param now   current time (epoch millis)
+     * @return the reply to publish
+     */
+    synchronized TopTalkersReply answer(TopTalkersQuery query, long now) {
+        int minutes = Math.min(query.minutes(), this.windowMinutes);
+        long last = Math.floorDiv(now, MINUTE);
+        if (!this.buckets.isEmpty()) {
+            // Minutes after now, from a collector with a fast clock, are left out like any other
+            Long newest = this.buckets.floorKey(last);
+            last = newest != null ? newest : last;
+        }
+        long first = last - minutes + 1;
+        boolean byRoot = query.groupBy() == TopTalkersQuery.GroupBy.ROOT_DOMAIN;
+        TrafficTable addresses = new TrafficTable();
+        Map<String, long[]> roots = new HashMap<>();
+        for (Bucket bucket : this.buckets.subMap(first, true, last, true).values()) {
+            if (query.direction() != TopTalkersQuery.Direction.INBOUND) {
+                sum(bucket.outbound, byRoot, addresses, roots);
+            }
+            if (query.direction() != TopTalkersQuery.Direction.OUTBOUND) {
+                sum(bucket.inbound, byRoot, addresses, roots);
+            }
+        }
+
+        // Smallest on top, so it's the one replaced by anything bigger
+        int capacity = Math.min(query.limit(), addresses.size() + roots.size()) + 1;
+        PriorityQueue<TopTalkersReply.Talker> top =
+            new PriorityQueue<>(capacity, Comparator.comparingLong(TopTalkersReply.Talker::bytes));
+        for (int slot = 0; slot < addresses.capacity(); slot++) {
+            // Only named once they make the running top, which few of them do
+            if (addresses.isUsed(slot) && (top.size() < query.limit() || addresses.bytes(slot) > top.peek().bytes())) {
+                String host = IpAddresses.toString(addresses.address(slot));
+                offer(top, new TopTalkersReply.Talker(host, addresses.bytes(slot)), query.limit());
+            }
+        }
+        for (Map.Entry<String, long[]> entry : roots.entrySet()) {
+            offer(top, new TopTalkersReply.Talker(entry.getKey(), entry.getValue()[0]), query.limit());
+        }
+        List<TopTalkersReply.Talker> talkers = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            talkers.add(top.poll());
+        }
+        Collections.reverse(talkers);
+        return new TopTalkersReply(query, first * MINUTE, (last + 1) * MINUTE, talkers);
+    }
+
+    /**
+     * @return number of minutes held
+     */
+    synchronized int minutes() {
+        return this.buckets.size();
+    }
+
+    private void add(Totals totals, PacketDump.Traffic traffic, Map<Integer, String> resolved) {
+        for (int i = 0; i < traffic.size(); i++) {
+            int address = traffic.address(i);
+            long bytes = traffic.bytes(i);
+            // Dumps don't carry packet counts, each host counts as one
+            totals.hosts.add(address, bytes, 1);
+
+            String domain = resolved.get(address);
+            if (domain == null) {
+                domain = this.latestDomains.getIfPresent(address);
+            }
+            if (domain == null) {
+                // Its own root, which is kept by address rather than as a string
+                totals.unresolved.add(address, bytes, 1);
+            }
+            else {
+                totals.roots.computeIfAbsent(this.rootDomains.of(domain), key -> new long[1])[0] += bytes;
+            }
+        }
+    }
+
+    private static void sum(Totals totals, boolean byRoot, TrafficTable addresses, Map<String, long[]> roots) {
+        addresses.addAll(byRoot ? totals.unresolved : totals.hosts);
+        if (byRoot) {
+            for (Map.Entry<String, long[]> entry : totals.roots.entrySet()) {
+                roots.computeIfAbsent(entry.getKey(), key -> new long[1])[0] += entry.getValue()[0];
+            }
+        }
+    }
+
+    private static void offer(PriorityQueue<TopTalkersReply.Talker> top, TopTalkersReply.Talker talker, int limit) {
+        top.add(talker);
+        if (top.size() > limit) {
+            top.poll();
+        }
+    }
+
+    /**
+     * Traffic of one minute.
+     */
+    private static class Bucket {
+
+        private final Totals outbound = new Totals();
+        private final Totals inbound = new Totals();
+    }
+
+    /**
+     * Bytes per host and per root domain of one direction.
+     */
+    private static class Totals {
+
+        private final TrafficTable hosts = new TrafficTable();
+        /**
+         * Hosts without a domain, which are their own root.
+         */
+        private final TrafficTable unresolved = new TrafficTable();
+        private final Map<String, long[]> roots = new HashMap<>();
+    }
+}
@@ -0,0 +1,73 @@
+package edu.trevecca.flare.aggregator;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import edu.trevecca.flare.core.metrics.Counter;
+import edu.trevecca.flare.core.metrics.LatencyHistogram;
+import edu.trevecca.flare.core.metrics.MetricsRegistry;
+import edu.trevecca.flare.core.redis.Redis;
+import edu.trevecca.flare.core.redis.RedisHandler;
+import edu.trevecca.flare.core.transfer.TopTalkersQuery;
+import edu.trevecca.flare.core.transfer.TopTalkersReply;
+
+/**
+ * Answers {@link TopTalkersQuery} from the in-memory {@link TopTalkers}, publishing each reply to the query's reply
+ * channel. Nothing is read from the database.
+ * <p>
+ * Replies are published with a blocking command, so this handler must be registered with a dispatcher rather than run
+ * on the pub/sub event loop.
+ */
+class TopTalkersRedisHandler implements RedisHandler {
+
+    private static final Counter queries = MetricsRegistry.global().counter("aggregator.top-talkers.queries");
+    private static final Counter badQueries = MetricsRegistry.global().counter("aggregator.top-talkers.bad-queries");
+    /**
+     * Time to answer a query, not including publishing the reply.
+     */
+    private static final LatencyHistogram answerTime = MetricsRegistry.global().histogram("aggregator.top-talkers");
+
+    private final Redis redis;
+    private final TopTalkers topTalkers;
+
+    /**
+     * Constructor.
+     *
+     * @param redis      connection replies are published on
+     * @param topTalkers recent traffic to answer from
+     */
+    TopTalkersRedisHandler(Redis redis, TopTalkers topTalkers) {
+        this.redis = redis;
+        this.topTalkers = topTalkers;
+    }
+
+    @Override public String[] channels() {
+        return new String[]{TopTalkersQuery.CHANNEL};
+    }
+
+    @Override public void handle(JsonObject object) {
+        queries.increment();
+        TopTalkersQuery query;
+        try {
+            query = TopTalkersQuery.read(object);
+        }
+        catch (RuntimeException e) {
+            badQueries.increment();
+            Main.logger.warning("Bad top talkers query: " + e.getMessage());
+            // Tell the asker rather than leave them waiting for a reply which never comes, if they can be told at all
+            JsonElement id = object.get("id");
+            if (id != null && id.isJsonPrimitive()) {
+                String asker = id.getAsString();
+                JsonElement replyTo = object.get("reply-to");
+                String channel = replyTo != null && replyTo.isJsonPrimitive() ? replyTo.getAsString()
+                                                                              : TopTalkersQuery.REPLY_PREFIX + asker;
+                this.redis.publish(new TopTalkersReply(channel, asker, String.valueOf(e.getMessage())));
+            }
+            return;
+        }
+
+        long started = System.nanoTime();
+        TopTalkersReply reply = this.topTalkers.answer(query, System.currentTimeMillis());
+        answerTime.recordSince(started);
+        this.redis.publish(reply);
+    }
+}
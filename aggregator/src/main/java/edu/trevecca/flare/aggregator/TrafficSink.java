@@ -0,0 +1,58 @@
+package edu.trevecca.flare.aggregator;
+
+import edu.trevecca.flare.core.transfer.PacketDump;
+import java.io.IOException;
+
+/**
+ * Where received dumps are recorded, see {@link Sink} for the implementations.
+ * <p>
+ * A sink keeps every dump it was given until it is stored, including across a restart when it has a journal, and
+ * records each collector's dumps in the order they were submitted.
+ */
+public interface TrafficSink extends AutoCloseable {
+
+    /**
+     * Queue a dump to be recorded, waiting for room if the sink is behind.
+     *
+     * @param dump    decoded dump
+     * @param message payload the dump was decoded from, which is what gets journaled
+     */
+    void submit(PacketDump dump, byte[] message) throws InterruptedException, IOException;
+
+    /**
+     * Queue the dumps left in the journal by an earlier run. Must be called before anything is submitted.
+     *
+     * @return number of dumps recovered
+     */
+    int recover() throws InterruptedException, IOException;
+
+    /**
+     * @return number of dumps waiting to be stored
+     */
+    int backlog();
+
+    /**
+     * @return number of journaled dumps which aren't stored yet
+     */
+    long pending();
+
+    /**
+     * Store everything already submitted and release the sink's resources. If interrupted, stops waiting and leaves the
+     * thread's interrupt status set.
+     */
+    @Override void close();
+
+    /**
+     * Implementations, chosen with {@code --sink}.
+     */
+    enum Sink {
+        /**
+         * {@link IngestPartitions}, writing to a database over JDBC.
+         */
+        MYSQL,
+        /**
+         * {@link SegmentSink}, writing to local segment files.
+         */
+        SEGMENTS
+    }
+}
@@ -0,0 +1,84 @@
+package edu.trevecca.flare.aggregator;
+
+import edu.trevecca.flare.core.sketch.HyperLogLog;
+import edu.trevecca.flare.core.transfer.PacketDump;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Distinct hosts of recent stats windows, merged across every collector which sent a dump for the window.
+ * <p>
+ * Collectors don't start their windows at the same time, so dumps are bucketed by their start time rounded down to the
+ * window length. Merging is idempotent, so a group which is retried after a failed commit can merge its dumps again
+ * without counting anything twice. Only the most recent windows are kept.
+ * <p>
+ * Shared by every ingest partition, so merging is synchronised.
+ */
+class WindowHosts {
+
+    private final Map<Long, HyperLogLog[]> windows;
+
+    /**
+     * Constructor.
+     *
+     * @param maxWindows number of recent windows to keep
+     */
+    WindowHosts(int maxWindows) {
+        this.windows = new LinkedHashMap<Long, HyperLogLog[]>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Long, HyperLogLog[]> eldest) {
+                return size() > maxWindows;
+            }
+        };
+    }
+
+    /**
+     * Merge a dump's distinct hosts into its window.
+     *
+     * @param dump received dump
+     * @return every collector's distinct hosts of the dump's window so far, {@code null} if the dump didn't count them
+     */
+    synchronized Window merge(PacketDump dump) {
+        HyperLogLog outbound = dump.outbound().hosts();
+        HyperLogLog inbound = dump.inbound().hosts();
+        if (outbound == null || inbound == null) {
+            return null;
+        }
+
+        long length = Math.max(1, dump.statsWindow()) * 1000L;
+        long bucket = Math.floorDiv(dump.start().toEpochMilli(), length);
+        HyperLogLog[] window = this.windows.get(bucket);
+        if (window == null || window[0].precision() != outbound.precision()
+            || window[1].precision() != inbound.precision()) {
+            window = new HyperLogLog[]{outbound.copy(), inbound.copy()};
+            this.windows.put(bucket, window);
+        }
+        else {
+            window[0].addAll(outbound);
+            window[1].addAll(inbound);
+        }
+        // Estimated while the window can't change underneath
+        return new Window(window[0].estimate(), window[1].estimate());
+    }
+
+    /**
+     * Distinct hosts of a window in each direction, as of a merge.
+     */
+    static class Window {
+
+        private final long outbound;
+        private final long inbound;
+
+        private Window(long outbound, long inbound) {
+            this.outbound = outbound;
+            this.inbound = inbound;
+        }
+
+        long outbound() {
+            return this.outbound;
+        }
+
+        long inbound() {
+            return this.inbound;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package edu.trevecca.flare.aggregator.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An immutable segment file of traffic rows, stored column by column and read through a memory mapping.
+ * <p>
+ * Files are {@code [magic][version][rows][min time][max time][source count][sources...]} followed by the time, bytes,
+ * address, domain and direction columns, longs first so that every column starts 8 byte aligned. Rows are sorted by
+ * time, so a time range is found by binary search. Sources are the sequence numbers of the segments a compacted segment
+ * replaces, which lets a compaction interrupted before deleting them finish on the next start.
+ * <p>
+ * A segment is written to a temporary file and renamed into place once it is flushed to disk, so a file with the
+ * segment suffix is always complete.
+ */
+class ColumnSegment {
+
+    private static final int MAGIC = 0x464C5347;
+    private static final int VERSION = 1;
+    private static final int FIXED_HEADER = 32;
+    /**
+     * Bytes per row: time, bytes, address, domain and direction.
+     */
+    private static final int ROW_BYTES = 8 + 8 + 4 + 4 + 1;
+
+    private final Path file;
+    private final long sequence;
+    private final int rows;
+    private final long minTime;
+    private final long maxTime;
+    private final long[] sources;
+    private final LongBuffer times;
+    private final LongBuffer bytes;
+    private final IntBuffer addresses;
+    private final IntBuffer domains;
+    private final ByteBuffer directions;
+
+    private ColumnSegment(Path file, long sequence, MappedByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.sequence = sequence;
+        if (buffer.capacity() < FIXED_HEADER || buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a segment");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(file + " has unknown version " + buffer.getInt(4));
+        }
+        this.rows = buffer.getInt(8);
+        this.minTime = buffer.getLong(12);
+        this.maxTime = buffer.getLong(20);
+        this.sources = new long[buffer.getInt(28)];
+        for (int i = 0; i < this.sources.length; i++) {
+            this.sources[i] = buffer.getLong(FIXED_HEADER + i * 8);
+        }
+        int offset = FIXED_HEADER + this.sources.length * 8;
+        if (buffer.capacity() < offset + (long) this.rows * ROW_BYTES) {
+            throw new IOException(file + " is truncated");
+        }
+        this.times = column(buffer, offset, this.rows * 8).asLongBuffer();
+        offset += this.rows * 8;
+        this.bytes = column(buffer, offset, this.rows * 8).asLongBuffer();
+        offset += this.rows * 8;
+        this.addresses = column(buffer, offset, this.rows * 4).asIntBuffer();
+        offset += this.rows * 4;
+        this.domains = column(buffer, offset, this.rows * 4).asIntBuffer();
+        offset += this.rows * 4;
+        this.directions = column(buffer, offset, this.rows);
+    }
+
+    /**
+     * Map an existing segment.
+     */
+    static ColumnSegment open(Path file, long sequence) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid once the channel is closed
+            return new ColumnSegment(file, sequence, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Write rows to a new segment and map it.
+     *
+     * @param file    where the segment goes, must not exist yet
+     * @param rows    rows to write, sorted by time
+     * @param sources sequence numbers of the segments this one replaces
+     */
+    static ColumnSegment write(Path file, long sequence, Rows rows, long[] sources) throws IOException {
+        int size = rows.size();
+        ByteBuffer buffer = ByteBuffer.allocate(FIXED_HEADER + sources.length * 8 + size * ROW_BYTES);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(size).putLong(rows.time(0)).putLong(rows.time(size - 1))
+              .putInt(sources.length);
+        for (long source : sources) {
+            buffer.putLong(source);
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putLong(rows.time(i));
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putLong(rows.bytes(i));
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putInt(rows.address(i));
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putInt(rows.domain(i));
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.put((byte) (rows.inbound(i) ? 1 : 0));
+        }
+        buffer.flip();
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW,
+                                                    StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+        return open(file, sequence);
+    }
+
+    /**
+     * @return index of the first row at or after {@code time}, {@link #rows()} if there is none
+     */
+    int lowerBound(long time) {
+        int low = 0;
+        int high = this.rows;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.times.get(middle) < time) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    Path file() {
+        return this.file;
+    }
+
+    long sequence() {
+        return this.sequence;
+    }
+
+    int rows() {
+        return this.rows;
+    }
+
+    long minTime() {
+        return this.minTime;
+    }
+
+    long maxTime() {
+        return this.maxTime;
+    }
+
+    long[] sources() {
+        return this.sources;
+    }
+
+    long time(int row) {
+        return this.times.get(row);
+    }
+
+    long bytes(int row) {
+        return this.bytes.get(row);
+    }
+
+    int address(int row) {
+        return this.addresses.get(row);
+    }
+
+    int domain(int row) {
+        return this.domains.get(row);
+    }
+
+    boolean inbound(int row) {
+        return this.directions.get(row) != 0;
+    }
+
+    private static ByteBuffer column(MappedByteBuffer buffer, int offset, int length) {
+        ByteBuffer column = buffer.duplicate();
+        column.position(offset).limit(offset + length);
+        return column.slice();
+    }
+
+    /**
+     * Rows to be written, in order.
+     */
+    interface Rows {
+
+        int size();
+
+        long time(int row);
+
+        long bytes(int row);
+
+        int address(int row);
+
+        int domain(int row);
+
+        boolean inbound(int row);
+    }
+}
@@ -0,0 +1,117 @@
+package edu.trevecca.flare.aggregator.store;
+
+import java.util.Arrays;
+
+/**
+ * Growable parallel arrays of traffic rows, which become a segment once sorted.
+ */
+class Columns implements ColumnSegment.Rows {
+
+    private long[] times;
+    private long[] bytes;
+    private int[] addresses;
+    private int[] domains;
+    private boolean[] inbound;
+    private int size;
+
+    Columns(int capacity) {
+        capacity = Math.max(16, capacity);
+        this.times = new long[capacity];
+        this.bytes = new long[capacity];
+        this.addresses = new int[capacity];
+        this.domains = new int[capacity];
+        this.inbound = new boolean[capacity];
+    }
+
+    void add(long time, int address, boolean inbound, long bytes, int domain) {
+        if (this.size == this.times.length) {
+            int capacity = this.size << 1;
+            this.times = Arrays.copyOf(this.times, capacity);
+            this.bytes = Arrays.copyOf(this.bytes, capacity);
+            this.addresses = Arrays.copyOf(this.addresses, capacity);
+            this.domains = Arrays.copyOf(this.domains, capacity);
+            this.inbound = Arrays.copyOf(this.inbound, capacity);
+        }
+        this.times[this.size] = time;
+        this.bytes[this.size] = bytes;
+        this.addresses[this.size] = address;
+        this.domains[this.size] = domain;
+        this.inbound[this.size] = inbound;
+        this.size++;
+    }
+
+    void add(ColumnSegment segment, int row) {
+        add(segment.time(row), segment.address(row), segment.inbound(row), segment.bytes(row), segment.domain(row));
+    }
+
+    /**
+     * The rows in time order, ties in the order they were added.
+     *
+     * @param base time no row is before, and every row is less than 2<sup>31</sup> milliseconds after
+     */
+    ColumnSegment.Rows sorted(long base) {
+        // Offset and index packed into one long, so a primitive sort does it without boxing
+        long[] keys = new long[this.size];
+        for (int i = 0; i < this.size; i++) {
+            keys[i] = (this.times[i] - base) << 32 | i;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[this.size];
+        for (int i = 0; i < this.size; i++) {
+            order[i] = (int) keys[i];
+        }
+        return new ColumnSegment.Rows() {
+            @Override public int size() {
+                return order.length;
+            }
+
+            @Override public long time(int row) {
+                return Columns.this.time(order[row]);
+            }
+
+            @Override public long bytes(int row) {
+                return Columns.this.bytes(order[row]);
+            }
+
+            @Override public int address(int row) {
+                return Columns.this.address(order[row]);
+            }
+
+            @Override public int domain(int row) {
+                return Columns.this.domain(order[row]);
+            }
+
+            @Override public boolean inbound(int row) {
+                return Columns.this.inbound(order[row]);
+            }
+        };
+    }
+
+    void clear() {
+        this.size = 0;
+    }
+
+    @Override public int size() {
+        return this.size;
+    }
+
+    @Override public long time(int row) {
+        return this.times[row];
+    }
+
+    @Override public long bytes(int row) {
+        return this.bytes[row];
+    }
+
+    @Override public int address(int row) {
+        return this.addresses[row];
+    }
+
+    @Override public int domain(int row) {
+        return this.domains[row];
+    }
+
+    @Override public boolean inbound(int row) {
+        return this.inbound[row];
+    }
+}
@@ -0,0 +1,130 @@
+package edu.trevecca.flare.aggregator.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only file of domain names, so segments store each row's domain as a 4 byte ID.
+ * <p>
+ * Records are {@code [length][UTF-8 name]} and a name's ID is its position in the file. New names only get an ID in
+ * memory until {@link #sync()} appends them, which must happen before any segment using them is written. A record torn
+ * by a crash was never synced, so no segment refers to it and it is cut off when the file is opened.
+ * <p>
+ * Synchronised, since scans look names up while dumps are being stored.
+ */
+class DomainDictionary implements AutoCloseable {
+
+    private final FileChannel channel;
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+    /**
+     * Names from this index on aren't in the file yet.
+     */
+    private int synced;
+    /**
+     * Length of the file up to the last synced name.
+     */
+    private long syncedBytes;
+
+    DomainDictionary(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE);
+        ByteBuffer contents = ByteBuffer.allocate((int) this.channel.size());
+        while (contents.hasRemaining()) {
+            if (this.channel.read(contents) < 0) {
+                break;
+            }
+        }
+        contents.flip();
+        while (contents.remaining() >= 4) {
+            int length = contents.getInt(contents.position());
+            if (length < 0 || contents.remaining() < 4 + length) {
+                break;
+            }
+            contents.getInt();
+            byte[] name = new byte[length];
+            contents.get(name);
+            add(new String(name, StandardCharsets.UTF_8));
+        }
+        this.synced = this.names.size();
+        this.syncedBytes = contents.position();
+        this.channel.truncate(this.syncedBytes);
+        this.channel.position(this.syncedBytes);
+    }
+
+    /**
+     * @return ID of a domain, assigning the next one if it is new
+     */
+    synchronized int id(String domain) {
+        Integer id = this.ids.get(domain);
+        return id != null ? id : add(domain);
+    }
+
+    /**
+     * @return the domain with an ID
+     */
+    synchronized String name(int id) {
+        return this.names.get(id);
+    }
+
+    /**
+     * Append the names which were given IDs since the last call and flush them to disk. If that fails, whatever was
+     * written is cut off again, so the next call appends the same names where they belong.
+     */
+    synchronized void sync() throws IOException {
+        if (this.synced == this.names.size()) {
+            return;
+        }
+        try {
+            if (this.channel.position() != this.syncedBytes) {
+                // An earlier failure couldn't cut off what it wrote
+                this.channel.truncate(this.syncedBytes);
+                this.channel.position(this.syncedBytes);
+            }
+            for (int i = this.synced; i < this.names.size(); i++) {
+                byte[] name = this.names.get(i).getBytes(StandardCharsets.UTF_8);
+                ByteBuffer record = ByteBuffer.allocate(4 + name.length);
+                record.putInt(name.length).put(name).flip();
+                while (record.hasRemaining()) {
+                    this.channel.write(record);
+                }
+            }
+            this.channel.force(false);
+        }
+        catch (IOException ex) {
+            try {
+                this.channel.truncate(this.syncedBytes);
+                this.channel.position(this.syncedBytes);
+            }
+            catch (IOException truncate) {
+                ex.addSuppressed(truncate);
+            }
+            throw ex;
+        }
+        this.synced = this.names.size();
+        this.syncedBytes = this.channel.position();
+    }
+
+    synchronized int size() {
+        return this.names.size();
+    }
+
+    @Override public synchronized void close() throws IOException {
+        this.channel.close();
+    }
+
+    private int add(String domain) {
+        int id = this.names.size();
+        this.names.add(domain);
+        this.ids.put(domain, id);
+        return id;
+    }
+}
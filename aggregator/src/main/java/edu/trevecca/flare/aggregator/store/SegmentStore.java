@@ -0,0 +1,396 @@
+package edu.trevecca.flare.aggregator.store;
+
+import edu.trevecca.flare.core.logging.Logging;
+import edu.trevecca.flare.core.net.IpAddresses;
+import edu.trevecca.flare.core.stats.TrafficTable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Local columnar store of per-host traffic, in append-only segment files partitioned by hour.
+ * <p>
+ * Rows are buffered in memory by {@link #add} and written by {@link #flush()} as a new segment for each hour they fall
+ * in. Segments are never changed once written. {@link #compact(int)} merges an hour's small segments into one and
+ * deletes them. Segments are read through memory mappings, so scanning one doesn't copy it onto the heap and the page
+ * cache decides what stays in memory.
+ * <p>
+ * The directory holds the domain dictionary, {@code domains.dict}, and a {@code yyyyMMdd-HH} directory (UTC) of
+ * {@code segment-<sequence>.col} files for every hour.
+ * <p>
+ * Writes are synchronised. Scans run alongside them over the segments as of when the scan started, so buffered rows
+ * aren't seen until they are flushed.
+ */
+public class SegmentStore implements AutoCloseable {
+
+    private static final Logger logger = Logging.getLogger("Store");
+    private static final String DICTIONARY = "domains.dict";
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".col";
+    private static final DateTimeFormatter PARTITION_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HH")
+                                                                               .withZone(ZoneOffset.UTC);
+    private static final long PARTITION_MILLIS = TimeUnit.HOURS.toMillis(1);
+    /**
+     * Largest segment compaction makes, which keeps its mapping well below the 2 GiB limit.
+     */
+    private static final int MAX_COMPACTED_ROWS = 1 << 24;
+
+    private final Path directory;
+    private final DomainDictionary dictionary;
+    /**
+     * Replaced rather than changed, so a scan can keep using the list it started with.
+     */
+    private volatile List<ColumnSegment> segments;
+    private final Columns buffer = new Columns(1024);
+    private long nextSequence;
+    /**
+     * Held for a whole compaction, which only locks the store to swap segments.
+     */
+    private final Object compactLock = new Object();
+
+    /**
+     * Constructor, maps every segment in the directory.
+     * <p>
+     * Leftovers of a flush or compaction which was interrupted are cleaned up: temporary files are deleted, as are
+     * segments which a compacted segment replaced.
+     *
+     * @param directory where the store is kept
+     */
+    public SegmentStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        this.dictionary = new DomainDictionary(directory.resolve(DICTIONARY));
+
+        List<ColumnSegment> segments = new ArrayList<>();
+        try (DirectoryStream<Path> partitions = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path partition : partitions) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(partition)) {
+                    for (Path file : files) {
+                        String name = file.getFileName().toString();
+                        if (name.endsWith(".tmp")) {
+                            Files.delete(file);
+                        }
+                        else if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                            long sequence = sequenceOf(name);
+                            segments.add(ColumnSegment.open(file, sequence));
+                            this.nextSequence = Math.max(this.nextSequence, sequence + 1);
+                        }
+                    }
+                }
+            }
+        }
+        Set<Long> replaced = new HashSet<>();
+        for (ColumnSegment segment : segments) {
+            for (long source : segment.sources()) {
+                replaced.add(source);
+            }
+        }
+        List<ColumnSegment> live = new ArrayList<>();
+        for (ColumnSegment segment : segments) {
+            if (replaced.contains(segment.sequence())) {
+                Files.delete(segment.file());
+            }
+            else {
+                live.add(segment);
+            }
+        }
+        live.sort(Comparator.comparingLong(ColumnSegment::sequence));
+        this.segments = Collections.unmodifiableList(live);
+        if (!live.isEmpty()) {
+            logger.info("Opened " + live.size() + " segments and " + this.dictionary.size() + " domains in "
+                        + directory);
+        }
+    }
+
+    /**
+     * @return ID of a domain in the dictionary, to store with rows
+     */
+    public int domainId(String domain) {
+        return this.dictionary.id(domain);
+    }
+
+    /**
+     * @return the domain with an ID
+     */
+    public String domain(int id) {
+        return this.dictionary.name(id);
+    }
+
+    /**
+     * Buffer a row until the next {@link #flush()}.
+     *
+     * @param time    start of the row's window, in milliseconds
+     * @param address IP of the host
+     * @param inbound direction of the traffic
+     * @param bytes   bytes sent or received by the host
+     * @param domain  ID of the host's domain, -1 if it has none
+     */
+    public synchronized void add(long time, int address, boolean inbound, long bytes, int domain) {
+        this.buffer.add(time, address, inbound, bytes, domain);
+    }
+
+    /**
+     * @return number of rows waiting to be flushed
+     */
+    public synchronized int buffered() {
+        return this.buffer.size();
+    }
+
+    /**
+     * Write the buffered rows, as one new segment for every hour they fall in. Once this returns they are on disk.
+     */
+    public synchronized void flush() throws IOException {
+        if (this.buffer.size() == 0) {
+            return;
+        }
+        // Segments refer to domains by ID, so the IDs have to be on disk first
+        this.dictionary.sync();
+        Map<Long, Columns> partitions = new TreeMap<>();
+        for (int i = 0; i < this.buffer.size(); i++) {
+            partitions.computeIfAbsent(partitionOf(this.buffer.time(i)), k -> new Columns(1024))
+                      .add(this.buffer.time(i), this.buffer.address(i), this.buffer.inbound(i), this.buffer.bytes(i),
+                           this.buffer.domain(i));
+        }
+        this.buffer.clear();
+        List<ColumnSegment> written = new ArrayList<>(this.segments);
+        Iterator<Entry<Long, Columns>> pending = partitions.entrySet().iterator();
+        try {
+            while (pending.hasNext()) {
+                Entry<Long, Columns> partition = pending.next();
+                written.add(write(partition.getKey(), this.nextSequence++, partition.getValue(), new long[0]));
+                pending.remove();
+            }
+        }
+        finally {
+            this.segments = Collections.unmodifiableList(written);
+            // Rows of hours which failed to be written stay buffered for the next attempt
+            for (Columns partition : partitions.values()) {
+                for (int i = 0; i < partition.size(); i++) {
+                    this.buffer.add(partition.time(i), partition.address(i), partition.inbound(i), partition.bytes(i),
+                                    partition.domain(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge each hour's segments of fewer than {@code smallRows} rows into one.
+     *
+     * @return number of segments merged away
+     */
+    public int compact(int smallRows) throws IOException {
+        synchronized (this.compactLock) {
+            Map<Long, List<ColumnSegment>> small = new TreeMap<>();
+            for (ColumnSegment segment : this.segments) {
+                if (segment.rows() < smallRows) {
+                    small.computeIfAbsent(partitionOf(segment.minTime()), k -> new ArrayList<>()).add(segment);
+                }
+            }
+            int merged = 0;
+            for (Entry<Long, List<ColumnSegment>> partition : small.entrySet()) {
+                List<ColumnSegment> sources = new ArrayList<>();
+                int rows = 0;
+                for (ColumnSegment segment : partition.getValue()) {
+                    if (rows + segment.rows() > MAX_COMPACTED_ROWS) {
+                        break;
+                    }
+                    sources.add(segment);
+                    rows += segment.rows();
+                }
+                if (sources.size() < 2) {
+                    continue;
+                }
+
+                Columns columns = new Columns(rows);
+                long[] sequences = new long[sources.size()];
+                for (int i = 0; i < sources.size(); i++) {
+                    ColumnSegment source = sources.get(i);
+                    sequences[i] = source.sequence();
+                    for (int row = 0; row < source.rows(); row++) {
+                        columns.add(source, row);
+                    }
+                }
+                long sequence;
+                synchronized (this) {
+                    sequence = this.nextSequence++;
+                }
+                // Written without holding up new rows, only the swap locks the store
+                ColumnSegment compacted = write(partition.getKey(), sequence, columns, sequences);
+                synchronized (this) {
+                    List<ColumnSegment> replaced = new ArrayList<>(this.segments);
+                    replaced.removeAll(sources);
+                    replaced.add(compacted);
+                    this.segments = Collections.unmodifiableList(replaced);
+                }
+                // Scans still using them keep their mappings, which outlive the files
+                for (ColumnSegment source : sources) {
+                    Files.deleteIfExists(source.file());
+                }
+                merged += sources.size();
+                logger.info("Compacted " + sources.size() + " segments of " + PARTITION_FORMAT.format(
+                    Instant.ofEpochMilli(partition.getKey())) + " into one of " + rows + " rows");
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * Visit every row with a time in {@code [from, to)}, in no particular order.
+     *
+     * @param from    earliest time, in milliseconds
+     * @param to      time after the last one, in milliseconds
+     * @param visitor called for each row
+     */
+    public void scan(long from, long to, RowVisitor visitor) {
+        for (ColumnSegment segment : this.segments) {
+            if (segment.maxTime() < from || segment.minTime() >= to) {
+                continue;
+            }
+            int end = segment.lowerBound(to);
+            for (int row = segment.lowerBound(from); row < end; row++) {
+                visitor.visit(segment.time(row), segment.address(row), segment.inbound(row), segment.bytes(row),
+                              segment.domain(row));
+            }
+        }
+    }
+
+    /**
+     * Sum the bytes of every row with a time in {@code [from, to)}, per host or domain.
+     *
+     * @param from    earliest time, in milliseconds
+     * @param to      time after the last one, in milliseconds
+     * @param inbound direction to count, {@code null} for both
+     * @param groupBy what to sum per
+     * @param limit   most totals to return, 0 for all of them
+     * @return totals, largest first
+     */
+    public List<Total> aggregate(long from, long to, Boolean inbound, GroupBy groupBy, int limit) {
+        boolean byDomain = groupBy == GroupBy.DOMAIN;
+        // Packet counts serve as row counts, and domain IDs are summed like addresses in a table of their own
+        TrafficTable hosts = new TrafficTable();
+        TrafficTable domains = new TrafficTable();
+        scan(from, to, (time, address, in, bytes, domain) -> {
+            if (inbound == null || inbound == in) {
+                // Hosts without a domain are grouped by their address, like dump_info
+                if (byDomain && domain >= 0) {
+                    domains.add(domain, bytes, 1);
+                }
+                else {
+                    hosts.add(address, bytes, 1);
+                }
+            }
+        });
+
+        List<Total> result = new ArrayList<>(hosts.size() + domains.size());
+        hosts.forEach((address, bytes, rows) -> result.add(new Total(IpAddresses.toString(address), bytes, rows)));
+        domains.forEach((domain, bytes, rows) -> result.add(new Total(domain(domain), bytes, rows)));
+        result.sort(Comparator.comparingLong(Total::bytes).reversed());
+        return limit > 0 && result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    /**
+     * @return number of segments
+     */
+    public int segments() {
+        return this.segments.size();
+    }
+
+    /**
+     * Flush the buffered rows and close the dictionary.
+     */
+    @Override public synchronized void close() throws IOException {
+        try {
+            flush();
+        }
+        finally {
+            this.dictionary.close();
+        }
+    }
+
+    private ColumnSegment write(long partition, long sequence, Columns columns, long[] sources) throws IOException {
+        Path partitionDirectory = this.directory.resolve(PARTITION_FORMAT.format(Instant.ofEpochMilli(partition)));
+        Files.createDirectories(partitionDirectory);
+        Path file = partitionDirectory.resolve(String.format("%s%020d%s", PREFIX, sequence, SUFFIX));
+        return ColumnSegment.write(file, sequence, columns.sorted(partition), sources);
+    }
+
+    private static long sequenceOf(String name) {
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private static long partitionOf(long time) {
+        return Math.floorDiv(time, PARTITION_MILLIS) * PARTITION_MILLIS;
+    }
+
+    /**
+     * What {@link #aggregate} sums per.
+     */
+    public enum GroupBy {
+        /**
+         * Each host's IP.
+         */
+        ADDRESS,
+        /**
+         * Each host's domain, or its IP if it has none.
+         */
+        DOMAIN
+    }
+
+    /**
+     * Called by {@link #scan} for each row.
+     */
+    public interface RowVisitor {
+
+        void visit(long time, int address, boolean inbound, long bytes, int domain);
+    }
+
+    /**
+     * Bytes summed for a host or domain.
+     */
+    public static class Total {
+
+        private final String key;
+        private final long bytes;
+        private final long rows;
+
+        public Total(String key, long bytes, long rows) {
+            this.key = key;
+            this.bytes = bytes;
+            this.rows = rows;
+        }
+
+        /**
+         * @return IP or domain
+         */
+        public String key() {
+            return this.key;
+        }
+
+        public long bytes() {
+            return this.bytes;
+        }
+
+        /**
+         * @return number of rows summed, one per window the host was in
+         */
+        public long rows() {
+            return this.rows;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package edu.trevecca.flare.aggregator;
+
+import edu.trevecca.flare.core.net.IpAddresses;
+import edu.trevecca.flare.core.transfer.PacketDump;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The DNS work of recording one dump, without the database: indexing its resolutions with {@link DnsIndex#of}, looking
+ * up the domain of each resolved host and recording the resolutions with {@link GroupDns#add}. Time should grow
+ * linearly with the number of answers.
+ * <p>
+ * Every IP is already in the {@link DnsCache}, half of them under the domain they resolve to again (their rows are
+ * bumped) and half under another one (new rows are inserted), so nothing falls through to a query.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class DnsIngestBenchmark {
+
+    /**
+     * DNS answers in the dump.
+     */
+    @Param({"1000", "10000", "100000"})
+    public int answers;
+
+    private PacketDump.Resolutions resolutions;
+    private String[] hosts;
+    private GroupDns dns;
+    private final Timestamp time = new Timestamp(0);
+
+    @Setup public void setup() {
+        // A few addresses per domain, like CDN names
+        String[] domains = new String[this.answers / 4];
+        for (int i = 0; i < domains.length; i++) {
+            domains[i] = "www.site" + i + ".example.com";
+        }
+        int[] addresses = new int[this.answers];
+        int[] ids = new int[this.answers];
+        this.hosts = new String[this.answers];
+        Map<String, String> known = new HashMap<>();
+        for (int i = 0; i < this.answers; i++) {
+            addresses[i] = 0x6A000000 + i * 7919;
+            ids[i] = i / 4;
+            this.hosts[i] = IpAddresses.toString(addresses[i]);
+            known.put(this.hosts[i], i % 2 == 0 ? domains[ids[i]] : "moved" + i + ".example.net");
+        }
+        this.resolutions = new PacketDump.Resolutions(domains, addresses, ids);
+
+        DnsCache cache = new DnsCache(this.answers * 2, 1, TimeUnit.DAYS);
+        cache.updateAll(known);
+        this.dns = new GroupDns(cache);
+    }
+
+    @Benchmark public int record() throws Exception {
+        DnsIndex index = DnsIndex.of(this.resolutions);
+        int resolved = 0;
+        for (String host : this.hosts) {
+            // Never reaches the statement, every host is in the index
+            if (this.dns.host(host, index, null) != host) {
+                resolved++;
+            }
+        }
+        this.dns.add(index, this.time, null);
+        this.dns.clear();
+        return resolved;
+    }
+}
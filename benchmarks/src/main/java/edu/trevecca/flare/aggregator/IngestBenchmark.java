@@ -0,0 +1,151 @@
+package edu.trevecca.flare.aggregator;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import edu.trevecca.flare.core.net.IpAddresses;
+import edu.trevecca.flare.core.sketch.HyperLogLog;
+import edu.trevecca.flare.core.stats.TrafficTable;
+import edu.trevecca.flare.core.transfer.PacketDumpRedisMessage;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Recording received dumps: {@link PacketRedisHandler#handle(String, byte[])} for a run of consecutive windows from a few
+ * collectors, until the {@link IngestPartitions} have committed all of them to an in-memory H2 database running in MySQL
+ * mode and the {@link Rollups} of every window are written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class IngestBenchmark {
+
+    private static final String URL = "jdbc:h2:mem:flare;MODE=MySQL;DB_CLOSE_DELAY=-1";
+    private static final String[] SCHEMA = {
+        "CREATE TABLE dumps (id INT AUTO_INCREMENT PRIMARY KEY, time TIMESTAMP, error INT, total BIGINT, "
+        + "outbound_hosts BIGINT, inbound_hosts BIGINT, outbound_registers VARBINARY(65536), "
+        + "inbound_registers VARBINARY(65536))",
+        "CREATE TABLE dump_info (ip_address VARCHAR(16), direction INT, ip_count BIGINT, dns VARCHAR(255), time TIMESTAMP, "
+        + "ratio FLOAT, dns_root VARCHAR(255))",
+        "CREATE TABLE dns_dump (domain VARCHAR(255), ip_address VARCHAR(16), time TIMESTAMP)",
+        "CREATE INDEX dns_dump_ip ON dns_dump (ip_address, time)"
+    };
+    /**
+     * Consecutive windows recorded per invocation.
+     */
+    private static final int WINDOWS = 12;
+    /**
+     * Collectors taking turns sending the windows, whose IDs land in different partitions.
+     */
+    private static final int COLLECTORS = 4;
+
+    /**
+     * Hosts in each direction of a dump.
+     */
+    @Param({"1000", "10000"})
+    public int hosts;
+    @Param({"1", "4"})
+    public int partitions;
+    @Param({"JSON", "BINARY"})
+    public PacketDumpRedisMessage.Format format;
+
+    private Connection keepAlive;
+    private ConnectionPool pool;
+    private DnsCache dnsCache;
+    private byte[][] messages;
+
+    @Setup public void setup() throws Exception {
+        // Holding a connection keeps the in-memory database around between invocations
+        this.keepAlive = DriverManager.getConnection(URL);
+        try (Statement statement = this.keepAlive.createStatement()) {
+            for (String table : SCHEMA) {
+                statement.execute(table);
+            }
+        }
+        this.dnsCache = new DnsCache(200000, 60, TimeUnit.MINUTES);
+        this.pool = new ConnectionPool(URL, "", "", 1);
+
+        Random random = new Random(1);
+        this.messages = new byte[WINDOWS][];
+        for (int window = 0; window < WINDOWS; window++) {
+            TrafficTable outbound = new TrafficTable(this.hosts);
+            TrafficTable inbound = new TrafficTable(this.hosts);
+            HyperLogLog outboundHosts = new HyperLogLog(12);
+            HyperLogLog inboundHosts = new HyperLogLog(12);
+            for (int i = 0; i < this.hosts; i++) {
+                int address = 0x6A000000 + i * 7919;
+                outbound.add(address, 40 + random.nextInt(1 << 20), 1);
+                inbound.add(address, 40 + random.nextInt(1 << 20), 1);
+                outboundHosts.add(address);
+                inboundHosts.add(address);
+            }
+            // Most resolutions repeat from window to window, some move to another domain
+            Multimap<String, Inet4Address> dns = HashMultimap.create();
+            for (int i = 0; i < this.hosts / 10; i++) {
+                int site = random.nextInt(20) == 0 ? i + window * this.hosts : i;
+                dns.put("www.site" + site + ".example.com",
+                        (Inet4Address) InetAddress.getByName(IpAddresses.toString(0x6A000000 + i * 7919)));
+            }
+            this.messages[window] = PacketDumpRedisMessage.builder(Instant.ofEpochSecond(window / COLLECTORS * 60L), 60,
+                                                                   outbound, inbound)
+                                                          .dnsResolutions(dns)
+                                                          .format(this.format)
+                                                          .hosts(outboundHosts, inboundHosts)
+                                                          .collector("collector-" + window % COLLECTORS)
+                                                          .build()
+                                                          .payload();
+        }
+    }
+
+    /**
+     * Drop recorded traffic between iterations so the tables don't grow for the whole run. DNS rows are kept, like a
+     * long running aggregator's.
+     */
+    @Setup(Level.Iteration) public void truncate() throws Exception {
+        try (Statement statement = this.keepAlive.createStatement()) {
+            statement.execute("TRUNCATE TABLE dumps");
+            statement.execute("TRUNCATE TABLE dump_info");
+            // Created again by the next invocation's rollups
+            statement.execute("DROP TABLE IF EXISTS dump_info_minute, dump_info_hour, dump_info_day");
+        }
+    }
+
+    @TearDown public void tearDown() throws Exception {
+        this.pool.close();
+        this.keepAlive.close();
+    }
+
+    @Benchmark public void handle() throws Exception {
+        Rollups rollups = new Rollups(this.pool, 0, 0, 0, 0);
+        IngestPartitions ingest = new IngestPartitions(this.partitions, URL, "", "", this.dnsCache, 100000, 20000, 1000, 32,
+                                                       null, 0, rollups);
+        PacketRedisHandler handler = new PacketRedisHandler(ingest);
+        for (byte[] message : this.messages) {
+            handler.handle("packet-data", message);
+        }
+        // Waits for everything to be committed
+        ingest.close();
+        rollups.close();
+    }
+}
@@ -0,0 +1,94 @@
+package edu.trevecca.flare.aggregator.store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Range aggregations over a {@link SegmentStore} holding a day of one minute windows, compacted into one segment per
+ * hour as a long running store would be.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SegmentStoreBenchmark {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final int WINDOWS = 24 * 60;
+    private static final int DOMAINS = 5000;
+
+    /**
+     * Hosts in each direction of a window.
+     */
+    @Param({"1000", "10000"})
+    public int hosts;
+
+    private Path directory;
+    private SegmentStore store;
+
+    @Setup public void setup() throws IOException {
+        this.directory = Files.createTempDirectory("segment-store");
+        this.store = new SegmentStore(this.directory);
+        int[] domains = new int[DOMAINS];
+        for (int i = 0; i < DOMAINS; i++) {
+            domains[i] = this.store.domainId("www.site" + i + ".example.com");
+        }
+        Random random = new Random(1);
+        for (int window = 0; window < WINDOWS; window++) {
+            for (int i = 0; i < this.hosts; i++) {
+                int address = 0x6A000000 + i * 7919;
+                // A tenth of the hosts never resolve
+                int domain = i % 10 == 0 ? -1 : domains[i % DOMAINS];
+                this.store.add(window * MINUTE, address, false, 40 + random.nextInt(1 << 20), domain);
+                this.store.add(window * MINUTE, address, true, 40 + random.nextInt(1 << 20), domain);
+            }
+            if (window % 10 == 9) {
+                this.store.flush();
+            }
+        }
+        this.store.flush();
+        this.store.compact(Integer.MAX_VALUE);
+    }
+
+    @TearDown public void tearDown() throws IOException {
+        this.store.close();
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    /**
+     * Top 20 domains by outbound bytes over the last 15 minutes.
+     */
+    @Benchmark public List<SegmentStore.Total> recentDomains() {
+        long end = WINDOWS * MINUTE;
+        return this.store.aggregate(end - 15 * MINUTE, end, false, SegmentStore.GroupBy.DOMAIN, 20);
+    }
+
+    /**
+     * Top 20 hosts by bytes in either direction over the whole day.
+     */
+    @Benchmark public List<SegmentStore.Total> dayHosts() {
+        return this.store.aggregate(0, WINDOWS * MINUTE, null, SegmentStore.GroupBy.ADDRESS, 20);
+    }
+}
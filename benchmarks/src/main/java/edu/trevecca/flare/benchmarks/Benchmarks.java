@@ -0,0 +1,33 @@
+package edu.trevecca.flare.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH suites with the GC profiler, so every result comes with its allocation rate.
+ * <p>
+ * Takes the usual JMH command line, for example {@code java -jar benchmarks/target/benchmarks.jar DumpCodec -p hosts=1000}.
+ * Nothing is fetched at run time, so the jar works on an offline box.
+ * <p>
+ * {@code gc.alloc.rate} only counts the benchmark's own threads. Churn is measured too, since {@code gc.churn} also
+ * covers background threads such as the aggregator's ingest writer.
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams()
+            || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+            // Nothing to run, JMH's own launcher knows how to answer these
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        Options options = new OptionsBuilder().parent(commandLine)
+                                              .addProfiler(GCProfiler.class, "churn=true")
+                                              .build();
+        new Runner(options).run();
+    }
+}
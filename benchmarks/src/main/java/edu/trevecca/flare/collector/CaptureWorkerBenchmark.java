@@ -0,0 +1,119 @@
+package edu.trevecca.flare.collector;
+
+import edu.trevecca.flare.core.transfer.PacketDumpRedisMessage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pcap4j.packet.DnsPacket;
+import org.pcap4j.packet.namednumber.DataLinkType;
+
+/**
+ * The per-frame work of a {@link CaptureWorker}: parsing headers out of the raw frame and counting both hosts, and
+ * recording DNS replies.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CaptureWorkerBenchmark {
+
+    private static final int FRAMES = 1 << 16;
+    private static final int REPLIES = 256;
+
+    /**
+     * Distinct remote hosts the frames are spread over.
+     */
+    @Param({"1000", "100000"})
+    public int hosts;
+    /**
+     * {@code 0} counts every host exactly, anything else is the top K of {@link Counting#topK(int, double, double, int)}.
+     */
+    @Param({"0", "100"})
+    public int topK;
+
+    private CaptureWorker worker;
+    private FrameParser parser;
+    private byte[][] frames;
+    private byte[][] replies;
+    private DnsPacket[] decoded;
+
+    @Setup public void setup() {
+        Counting counting = this.topK > 0 ? Counting.topK(this.topK, 0.0001, 0.001, 12) : Counting.exact(12);
+        FrameRing[] rings = {new FrameRing(1024, 128)};
+        WindowDumper dumper = new WindowDumper(1, 60, PacketDumpRedisMessage.Format.BINARY, counting,
+                                               new FrameRing[][]{rings}, () -> 0, null);
+        this.worker = new CaptureWorker(0, 1, rings, DataLinkType.EN10MB, dumper, null);
+        this.parser = new FrameParser(DataLinkType.EN10MB);
+
+        // Skewed like real traffic, a few remote hosts get most of the frames
+        Random random = new Random(1);
+        this.frames = new byte[FRAMES][];
+        for (int i = 0; i < FRAMES; i++) {
+            int remote = remote((int) (Math.pow(random.nextDouble(), 3) * this.hosts));
+            int local = Frames.LOCAL | random.nextInt(1 << 12);
+            int length = 40 + random.nextInt(1460);
+            this.frames[i] = i % 2 == 0 ? Frames.tcp(local, remote, length) : Frames.tcp(remote, local, length);
+        }
+
+        this.replies = new byte[REPLIES][];
+        this.decoded = new DnsPacket[REPLIES];
+        for (int i = 0; i < REPLIES; i++) {
+            this.replies[i] = Frames.dnsReply(0x08080808, Frames.LOCAL | 10, "www.site" + i + ".example.com",
+                                              "edge" + i + ".cdn.example.net", remote(i * 4), remote(i * 4 + 1),
+                                              remote(i * 4 + 2), remote(i * 4 + 3)
+                                             );
+            this.parser.parse(this.replies[i], this.replies[i].length);
+            this.decoded[i] = this.parser.dns(this.replies[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void countFrames() {
+        for (byte[] frame : this.frames) {
+            this.worker.process(frame, frame.length);
+        }
+    }
+
+    /**
+     * A DNS reply through the whole worker path: header parse, decode, then {@link CaptureWorker#saveDns(DnsPacket)}.
+     */
+    @Benchmark
+    @OperationsPerInvocation(REPLIES)
+    public void dnsReplyFrames() {
+        for (byte[] reply : this.replies) {
+            this.worker.process(reply, reply.length);
+        }
+    }
+
+    /**
+     * Only {@link CaptureWorker#saveDns(DnsPacket)}, on replies which were already decoded.
+     */
+    @Benchmark
+    @OperationsPerInvocation(REPLIES)
+    public void saveDns() {
+        for (DnsPacket reply : this.decoded) {
+            this.worker.saveDns(reply);
+        }
+    }
+
+    /**
+     * Spread hosts over public address space from {@code 106.0.0.0}, well below the local network.
+     */
+    private static int remote(int host) {
+        return 0x6A000000 + host * 7919;
+    }
+}
@@ -0,0 +1,140 @@
+package edu.trevecca.flare.collector;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds captured Ethernet frames for the benchmarks, byte for byte what the capture handle would hand over.
+ */
+final class Frames {
+
+    /**
+     * Address of the local network, {@code 172.16.0.0/16}.
+     */
+    static final int LOCAL = 0xAC100000;
+
+    private Frames() {
+    }
+
+    /**
+     * @param source      packed source address
+     * @param destination packed destination address
+     * @param payload     bytes of TCP payload, the IP total length counts them but they aren't captured
+     * @return Ethernet + IPv4 + TCP headers, as captured with a header-only snap length
+     */
+    static byte[] tcp(int source, int destination, int payload) {
+        byte[] frame = new byte[14 + 20 + 20];
+        ethernet(frame);
+        ipv4(frame, 6, 20 + 20 + payload, source, destination);
+        int tcp = 34;
+        u16(frame, tcp, 443);
+        u16(frame, tcp + 2, 50000 + (destination & 0x3FFF));
+        // Data offset of 5 words
+        frame[tcp + 12] = 0x50;
+        return frame;
+    }
+
+    /**
+     * @param server    packed address of the DNS server
+     * @param client    packed address of the client
+     * @param domain    name which was asked for
+     * @param cname     canonical name the reply points at first
+     * @param addresses packed A record addresses of the canonical name
+     * @return Ethernet + IPv4 + UDP frame holding the DNS reply
+     */
+    static byte[] dnsReply(int server, int client, String domain, String cname, int... addresses) {
+        ByteArrayOutputStream dns = new ByteArrayOutputStream();
+        // Header: id, flags (response, recursion desired and available), 1 question, CNAME + A answers
+        writeU16(dns, 0x1234);
+        writeU16(dns, 0x8180);
+        writeU16(dns, 1);
+        writeU16(dns, 1 + addresses.length);
+        writeU16(dns, 0);
+        writeU16(dns, 0);
+        // Question, the name is at offset 12 so answers can point back at it
+        writeName(dns, domain);
+        writeU16(dns, 1);
+        writeU16(dns, 1);
+        // CNAME answer for the question
+        int cnameOffset = dns.size() + 12;
+        writeU16(dns, 0xC00C);
+        writeU16(dns, 5);
+        writeU16(dns, 1);
+        writeU32(dns, 300);
+        byte[] target = name(cname);
+        writeU16(dns, target.length);
+        dns.write(target, 0, target.length);
+        // A answers for the canonical name
+        for (int address : addresses) {
+            writeU16(dns, 0xC000 | cnameOffset);
+            writeU16(dns, 1);
+            writeU16(dns, 1);
+            writeU32(dns, 60);
+            writeU16(dns, 4);
+            writeU32(dns, address);
+        }
+
+        byte[] payload = dns.toByteArray();
+        byte[] frame = new byte[14 + 20 + 8 + payload.length];
+        ethernet(frame);
+        ipv4(frame, 17, 20 + 8 + payload.length, server, client);
+        int udp = 34;
+        u16(frame, udp, 53);
+        u16(frame, udp + 2, 40000);
+        u16(frame, udp + 4, 8 + payload.length);
+        System.arraycopy(payload, 0, frame, udp + 8, payload.length);
+        return frame;
+    }
+
+    private static void ethernet(byte[] frame) {
+        // Locally administered MACs, then the IPv4 ether type
+        frame[0] = 0x02;
+        frame[6] = 0x02;
+        u16(frame, 12, 0x0800);
+    }
+
+    private static void ipv4(byte[] frame, int protocol, int totalLength, int source, int destination) {
+        int ip = 14;
+        frame[ip] = 0x45;
+        u16(frame, ip + 2, totalLength);
+        frame[ip + 8] = 64;
+        frame[ip + 9] = (byte) protocol;
+        u32(frame, ip + 12, source);
+        u32(frame, ip + 16, destination);
+    }
+
+    private static byte[] name(String name) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeName(out, name);
+        return out.toByteArray();
+    }
+
+    private static void writeName(ByteArrayOutputStream out, String name) {
+        for (String label : name.split("\\.")) {
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            out.write(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        out.write(0);
+    }
+
+    private static void writeU16(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeU32(ByteArrayOutputStream out, int value) {
+        writeU16(out, value >>> 16);
+        writeU16(out, value & 0xFFFF);
+    }
+
+    private static void u16(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    private static void u32(byte[] data, int offset, int value) {
+        u16(data, offset, value >>> 16);
+        u16(data, offset + 2, value & 0xFFFF);
+    }
+}
@@ -0,0 +1,94 @@
+package edu.trevecca.flare.core.transfer;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import edu.trevecca.flare.core.net.IpAddresses;
+import edu.trevecca.flare.core.sketch.HyperLogLog;
+import edu.trevecca.flare.core.stats.TrafficTable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Instant;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building a {@link PacketDumpRedisMessage} as it is published, and reading it back as the aggregator does.
+ * <p>
+ * JSON dumps normally repeat their entries a random number of times, which is pinned to once here so results are
+ * comparable between runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class DumpCodecBenchmark {
+
+    /**
+     * Hosts in each direction of the dump.
+     */
+    @Param({"1000", "100000", "1000000"})
+    public int hosts;
+    @Param({"JSON", "BINARY"})
+    public PacketDumpRedisMessage.Format format;
+
+    private PacketDumpRedisMessage message;
+    private byte[] published;
+
+    @Setup public void setup() throws UnknownHostException {
+        Random random = new Random(1);
+        TrafficTable outbound = new TrafficTable(this.hosts);
+        TrafficTable inbound = new TrafficTable(this.hosts);
+        HyperLogLog outboundHosts = new HyperLogLog(12);
+        HyperLogLog inboundHosts = new HyperLogLog(12);
+        for (int i = 0; i < this.hosts; i++) {
+            int address = 0x6A000000 + i * 7919;
+            outbound.add(address, 40 + random.nextInt(1 << 20), 1 + random.nextInt(1000));
+            inbound.add(address, 40 + random.nextInt(1 << 20), 1 + random.nextInt(1000));
+            outboundHosts.add(address);
+            inboundHosts.add(address);
+        }
+        // A resolution for about one host in ten, a few addresses per domain
+        Multimap<String, Inet4Address> dns = HashMultimap.create();
+        for (int i = 0; i < this.hosts / 10; i++) {
+            int address = 0x6A000000 + random.nextInt(this.hosts) * 7919;
+            dns.put("www.site" + i / 4 + ".example.com",
+                    (Inet4Address) InetAddress.getByName(IpAddresses.toString(address)));
+        }
+
+        this.message = PacketDumpRedisMessage.builder(Instant.now(), 60, outbound, inbound)
+                                             .dnsResolutions(dns)
+                                             .format(this.format)
+                                             .hosts(outboundHosts, inboundHosts)
+                                             .build();
+        this.published = this.message.payload();
+    }
+
+    /**
+     * The collector side, up to the payload handed to Redis.
+     */
+    @Benchmark public byte[] write() {
+        return this.message.payload();
+    }
+
+    /**
+     * The aggregator side, from the received payload to a {@link PacketDump}.
+     */
+    @Benchmark public PacketDump read() throws IOException {
+        return PacketDumpRedisMessage.read(this.published);
+    }
+}
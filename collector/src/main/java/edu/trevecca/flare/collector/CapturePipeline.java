@@ -0,0 +1,346 @@
+package edu.trevecca.flare.collector;
+
+import edu.trevecca.flare.core.metrics.Counter;
+import edu.trevecca.flare.core.metrics.LatencyHistogram;
+import edu.trevecca.flare.core.metrics.MetricsRegistry;
+import edu.trevecca.flare.core.net.IpAddresses;
+import edu.trevecca.flare.core.transfer.PacketDumpRedisMessage;
+import java.time.Instant;
+import java.util.function.LongSupplier;
+import org.pcap4j.packet.namednumber.DataLinkType;
+
+/**
+ * Moves captured frames from the capture threads to a set of {@link CaptureWorker}s and hands their state to the
+ * {@link WindowDumper} when a stats window closes.
+ * <p>
+ * Each worker owns a shard of the address space. Every capture thread has a {@link Producer} with a {@link FrameRing} of
+ * its own per worker, so each ring has a single writer and a single reader and no capture thread ever waits for another.
+ * The capture threads only read a frame's IPv4 addresses and copy it into the ring of the worker owning each of them, once
+ * when both belong to the same worker, so every frame is parsed by at most two workers however many there are. All other
+ * parsing, counting and DNS handling happens on the workers, and publishing happens on the {@link WindowDumper}.
+ * <p>
+ * Windows are closed by the first producer. The others place a marker for each closed window in their own rings the next
+ * time they offer a frame or call {@link Producer#syncWindows()}, and a worker only retires a window once it has reached
+ * its marker in every ring it reads.
+ */
+class CapturePipeline {
+
+    private static final Counter packets = MetricsRegistry.global().counter("collector.packets");
+    private static final Counter dropped = MetricsRegistry.global().counter("collector.dropped");
+    /**
+     * Time for a capture thread to copy a frame into the rings, of one frame in every {@link #OFFER_SAMPLE}.
+     */
+    private static final LatencyHistogram offerTime = MetricsRegistry.global().histogram("collector.offer");
+    /**
+     * Frames per timed offer, a power of two. Reading the clock twice per frame would cost about as much as the offer.
+     */
+    private static final int OFFER_SAMPLE = 1024;
+    /**
+     * Windows the first producer may close before the others have placed their markers. No more than the control entries
+     * a ring holds, as workers can't get past a marker until every producer has placed it.
+     */
+    private static final int WINDOW_SLOTS = 64;
+
+    /**
+     * Rings of each worker, indexed by shard and then by producer.
+     */
+    private final FrameRing[][] rings;
+    private final Producer[] producers;
+    /**
+     * Start of each window closed by the first producer, indexed by window number, for the other producers' markers.
+     */
+    private final long[] windowStarts = new long[WINDOW_SLOTS];
+    private final CaptureWorker[] workers;
+    private final Thread[] threads;
+    private final WindowDumper dumper;
+    /**
+     * Per-thread stage timers when timing is on, {@code null} otherwise.
+     */
+    private final StageTimer[] workerTimers;
+    private final StageTimer dumpTimer;
+
+    /**
+     * Constructor.
+     *
+     * @param workers       number of worker threads
+     * @param producers     number of capture threads offering frames, each gets its own {@link #producer(int)}
+     * @param ringSize      number of frames each producer's rings can hold, split evenly between the workers
+     * @param slotSize      maximum bytes kept per frame
+     * @param linkType      link layer of the captured frames
+     * @param statsWindow   time between dumps, in seconds
+     * @param format        wire format to publish dumps in
+     * @param counting      how workers count traffic
+     * @param kernelDropped reads the number of packets dropped before capture, reported at each dump
+     * @param timed         time every frame and dump, see {@link #processTimes()} and {@link #dumpTimes()}
+     */
+    CapturePipeline(int workers, int producers, int ringSize, int slotSize, DataLinkType linkType, int statsWindow,
+                    PacketDumpRedisMessage.Format format, Counting counting, LongSupplier kernelDropped, boolean timed) {
+        if (workers < 1 || producers < 1) {
+            throw new IllegalArgumentException("Need at least 1 worker and 1 producer");
+        }
+        if (ringSize < 1) {
+            throw new IllegalArgumentException("Ring size must be at least 1");
+        }
+        this.rings = new FrameRing[workers][producers];
+        this.producers = new Producer[producers];
+        for (int p = 0; p < producers; p++) {
+            FrameRing[] own = new FrameRing[workers];
+            for (int i = 0; i < workers; i++) {
+                own[i] = this.rings[i][p] = new FrameRing(ringSize / workers, slotSize);
+            }
+            this.producers[p] = new Producer(own, new FrameParser(linkType));
+        }
+        this.workers = new CaptureWorker[workers];
+        this.threads = new Thread[workers];
+        this.workerTimers = timed ? new StageTimer[workers] : null;
+        this.dumpTimer = timed ? new StageTimer("dump") : null;
+        this.dumper = new WindowDumper(workers, statsWindow, format, counting, this.rings, kernelDropped, this.dumpTimer);
+
+        for (int i = 0; i < workers; i++) {
+            StageTimer timer = null;
+            if (timed) {
+                timer = this.workerTimers[i] = new StageTimer("process");
+            }
+            this.workers[i] = new CaptureWorker(i, workers, this.rings[i], linkType, this.dumper, timer);
+            this.threads[i] = new Thread(this.workers[i], "capture-worker-" + i);
+            this.threads[i].setDaemon(true);
+        }
+    }
+
+    void start() {
+        for (Thread thread : this.threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * @param index number of the capture thread, {@code 0} for the one which closes windows
+     * @return the rings the capture thread offers its frames to. Must only be used by that thread.
+     */
+    Producer producer(int index) {
+        return this.producers[index];
+    }
+
+    /**
+     * @return number of frames waiting for the workers
+     */
+    long depth() {
+        long depth = 0;
+        for (FrameRing[] worker : this.rings) {
+            for (FrameRing ring : worker) {
+                depth += ring.depth();
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Close the current window. Every frame offered before this call is counted in it. This only publishes a marker to
+     * every worker and never waits, the workers switch buffers when they reach it and the window is dumped in the
+     * background. Must only be called by the thread of the first producer.
+     *
+     * @param start when the window being closed started
+     * @return {@code false} if a worker or producer is too many windows behind, in which case the window stays open and
+     * should be closed again later
+     */
+    boolean closeWindow(Instant start) {
+        Producer first = this.producers[0];
+        long window = first.windows;
+        for (Producer producer : this.producers) {
+            if (window - producer.windows >= WINDOW_SLOTS) {
+                return false;
+            }
+        }
+        if (!first.offerControl(FrameRing.MARKER, start.toEpochMilli())) {
+            return false;
+        }
+        // Written before the window count, which is what the other producers read
+        this.windowStarts[(int) (window % WINDOW_SLOTS)] = start.toEpochMilli();
+        first.windows = window + 1;
+        return true;
+    }
+
+    /**
+     * Close the current window, waiting for the workers to catch up rather than leaving it open. Only for replayed frames,
+     * or once every other capture thread has exited.
+     *
+     * @param start when the window being closed started
+     */
+    void putWindow(Instant start) {
+        while (!closeWindow(start)) {
+            for (int i = 1; i < this.producers.length; i++) {
+                this.producers[i].syncWindows();
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Close the current window and wait for the workers to exit and the dump to be published. Must only be called once
+     * every capture thread has exited.
+     *
+     * @param start when the window being closed started
+     */
+    void stop(Instant start) throws InterruptedException {
+        putWindow(start);
+        for (Producer producer : this.producers) {
+            while (!producer.syncWindows()) {
+                Thread.yield();
+            }
+            while (!producer.offerControl(FrameRing.STOP, 0)) {
+                Thread.yield();
+            }
+        }
+        for (Thread thread : this.threads) {
+            thread.join();
+        }
+        this.dumper.shutdown();
+    }
+
+    /**
+     * @return time and allocation of the workers' frame processing, {@code null} if not timed. Only valid after
+     * {@link #stop(Instant)}.
+     */
+    StageTimer processTimes() {
+        if (this.workerTimers == null) {
+            return null;
+        }
+        StageTimer total = new StageTimer("process");
+        for (StageTimer timer : this.workerTimers) {
+            total.addAll(timer);
+        }
+        return total;
+    }
+
+    /**
+     * @return time and allocation of merging and publishing windows, {@code null} if not timed. Only valid after
+     * {@link #stop(Instant)}.
+     */
+    StageTimer dumpTimes() {
+        return this.dumpTimer;
+    }
+
+    /**
+     * A capture thread's side of the pipeline, with a ring of its own per worker.
+     */
+    class Producer {
+
+        /**
+         * Ring of each worker, indexed by shard.
+         */
+        private final FrameRing[] rings;
+        /**
+         * Finds the addresses of frames, see {@link FrameParser#ipv4Offset(byte[], int)}.
+         */
+        private final FrameParser router;
+        /**
+         * Windows closed in this producer's rings. Only written by the producer.
+         */
+        private volatile long windows;
+        /**
+         * Frames offered, for sampling {@link #offerTime}.
+         */
+        private long offers;
+
+        private Producer(FrameRing[] rings, FrameParser router) {
+            this.rings = rings;
+            this.router = router;
+        }
+
+        /**
+         * Hand a frame to the workers owning its hosts. Called by the capture thread for every frame. Frames which aren't
+         * IPv4 are counted by no one and skipped.
+         *
+         * @return {@code false} if a worker's ring was full and the frame was dropped from it
+         */
+        boolean offer(byte[] frame, long timestamp) {
+            boolean sampled = (this.offers++ & (OFFER_SAMPLE - 1)) == 0;
+            long started = sampled ? System.nanoTime() : 0;
+            syncWindows();
+            boolean offered = route(frame, timestamp, false);
+            if (sampled) {
+                offerTime.recordSince(started);
+            }
+            packets.increment();
+            if (!offered) {
+                dropped.increment();
+            }
+            return offered;
+        }
+
+        /**
+         * Hand a frame to the workers owning its hosts, waiting for room in their rings rather than dropping it. Only for
+         * replayed frames.
+         */
+        void put(byte[] frame, long timestamp) {
+            route(frame, timestamp, true);
+            packets.increment();
+        }
+
+        /**
+         * Place a marker for every window the first producer has closed since the last call, so later frames go to the
+         * next window. Called by {@link #offer(byte[], long)}, and should be called by idle capture threads so workers
+         * aren't held back waiting for their markers.
+         *
+         * @return {@code false} if a worker is too many windows behind to take every marker, they are placed later
+         */
+        boolean syncWindows() {
+            long closed = CapturePipeline.this.producers[0].windows;
+            long window = this.windows;
+            if (window == closed) {
+                return true;
+            }
+            for (; window < closed; window++) {
+                if (!offerControl(FrameRing.MARKER, CapturePipeline.this.windowStarts[(int) (window % WINDOW_SLOTS)])) {
+                    break;
+                }
+            }
+            this.windows = window;
+            return window == closed;
+        }
+
+        private boolean route(byte[] frame, long timestamp, boolean wait) {
+            int ip = this.router.ipv4Offset(frame, frame.length);
+            if (ip < 0) {
+                return true;
+            }
+            FrameRing source = this.rings[CaptureWorker.shardOf(IpAddresses.toInt(frame, ip + 12), this.rings.length)];
+            FrameRing destination = this.rings[CaptureWorker.shardOf(IpAddresses.toInt(frame, ip + 16), this.rings.length)];
+            if (wait) {
+                source.put(frame, frame.length, timestamp);
+                if (destination != source) {
+                    destination.put(frame, frame.length, timestamp);
+                }
+                return true;
+            }
+            // Each worker only counts its own side of the frame, so a full ring only loses that side
+            boolean offered = source.offer(frame, frame.length, timestamp);
+            if (destination != source) {
+                offered = destination.offer(frame, frame.length, timestamp) && offered;
+            }
+            return offered;
+        }
+
+        private boolean hasControlSpace() {
+            for (FrameRing ring : this.rings) {
+                if (!ring.hasControlSpace()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Publish a control entry to every ring, or to none of them so every worker sees the same windows.
+         */
+        private boolean offerControl(int type, long timestamp) {
+            if (!hasControlSpace()) {
+                return false;
+            }
+            for (FrameRing ring : this.rings) {
+                ring.offerControl(type, timestamp);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package edu.trevecca.flare.collector;
+
+import com.google.common.collect.Lists;
+import edu.trevecca.flare.core.logging.Logging;
+import edu.trevecca.flare.core.net.IpAddresses;
+import java.net.Inet4Address;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntPredicate;
+import java.util.logging.Logger;
+import org.pcap4j.packet.DnsPacket;
+import org.pcap4j.packet.DnsQuestion;
+import org.pcap4j.packet.DnsRDataA;
+import org.pcap4j.packet.DnsResourceRecord;
+import org.pcap4j.packet.namednumber.DataLinkType;
+import org.pcap4j.packet.namednumber.DnsResourceRecordType;
+
+/**
+ * Reads frames from its {@link FrameRing}s and counts the hosts which fall into this worker's shard of the address space.
+ * <p>
+ * A worker is only given the frames with a host {@link #shardOf(int, int)} assigns to it, and only counts that host, so
+ * each {@link WindowShard} has a single writer. A frame between hosts of two workers is given to both. DNS replies are
+ * handled by the worker owning the server, which is the reply's source.
+ */
+class CaptureWorker implements Runnable {
+
+    /**
+     * Check to see if local data should be discarded.
+     */
+    private static final IntPredicate DISCARD_CHECK = (addr) -> (addr >>> 16) == 0xAC10;
+    /**
+     * Spins before the worker starts yielding, then parking, while waiting for frames.
+     */
+    private static final int SPIN_LIMIT = 100;
+    private static final int YIELD_LIMIT = 1000;
+    private static final long PARK_NANOS = 100_000L;
+    private static final Logger logger = Logging.getLogger("Worker");
+
+    private final int id;
+    private final int shards;
+    /**
+     * This worker's ring of each producer.
+     */
+    private final FrameRing[] rings;
+    private final FrameParser parser;
+    private final WindowDumper dumper;
+    /**
+     * Times every frame when replaying, {@code null} otherwise.
+     */
+    private final StageTimer timer;
+    /**
+     * Window state written by this worker, swapped for an empty one at each window marker.
+     */
+    private WindowShard shard;
+
+    /**
+     * Constructor.
+     *
+     * @param id            index of this worker, also its shard number
+     * @param shards        total number of workers
+     * @param rings         this worker's ring of each producer to read frames from
+     * @param linkType      link layer of the captured frames
+     * @param dumper        receives this worker's state when a window closes
+     * @param timer         records the time and allocation of each frame, {@code null} to skip timing
+     */
+    CaptureWorker(int id, int shards, FrameRing[] rings, DataLinkType linkType, WindowDumper dumper, StageTimer timer) {
+        this.id = id;
+        this.shards = shards;
+        this.rings = rings;
+        this.parser = new FrameParser(linkType);
+        this.dumper = dumper;
+        this.timer = timer;
+        this.shard = dumper.acquire();
+    }
+
+    /**
+     * Pick the worker responsible for an address.
+     *
+     * @param address packed IPv4 address
+     * @param shards  number of workers
+     * @return shard number in {@code [0, shards)}
+     */
+    static int shardOf(int address, int shards) {
+        int h = address * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % shards;
+    }
+
+    @Override public void run() {
+        long[] sequences = new long[this.rings.length];
+        long[] controls = new long[this.rings.length];
+        for (int r = 0; r < this.rings.length; r++) {
+            sequences[r] = this.rings[r].consumed() + 1;
+            controls[r] = this.rings[r].controlsConsumed();
+        }
+        int idle = 0;
+        if (this.timer != null) {
+            this.timer.sampleAllocation();
+        }
+        while (true) {
+            boolean progressed = false;
+            // Ring of each producer up to its next control entry, frames after it belong to the next window
+            int waiting = 0;
+            for (int r = 0; r < this.rings.length; r++) {
+                FrameRing ring = this.rings[r];
+                long available = ring.published();
+                // Read after the frames, so no control entry placed before one of them is missed
+                boolean hasControl = controls[r] < ring.controls();
+                long end = hasControl ? Math.min(available, ring.controlSequence(controls[r]) - 1) : available;
+                long sequence = sequences[r];
+                if (sequence <= end) {
+                    for (; sequence <= end; sequence++) {
+                        if (this.timer == null) {
+                            process(ring.frame(sequence), ring.length(sequence));
+                            continue;
+                        }
+                        long started = System.nanoTime();
+                        process(ring.frame(sequence), ring.length(sequence));
+                        this.timer.record(System.nanoTime() - started);
+                    }
+                    sequences[r] = sequence;
+                    ring.release(sequence - 1);
+                    progressed = true;
+                }
+                if (hasControl && ring.controlSequence(controls[r]) == sequence) {
+                    waiting++;
+                }
+            }
+
+            // Every producer places the same control entries, act on one once all of them have reached it
+            if (waiting == this.rings.length) {
+                FrameRing first = this.rings[0];
+                if (first.controlType(controls[0]) == FrameRing.STOP) {
+                    for (int r = 0; r < this.rings.length; r++) {
+                        this.rings[r].releaseControls(controls[r] + 1);
+                    }
+                    if (this.timer != null) {
+                        this.timer.sampleAllocation();
+                    }
+                    return;
+                }
+                // Swap buffers, the dump happens on the dumper's thread
+                WindowShard retired = this.shard;
+                this.shard = this.dumper.acquire();
+                this.dumper.retire(this.id, first.controlTimestamp(controls[0]), retired);
+                for (int r = 0; r < this.rings.length; r++) {
+                    this.rings[r].releaseControls(++controls[r]);
+                }
+                progressed = true;
+            }
+
+            if (!progressed) {
+                idle = idle(idle);
+                continue;
+            }
+            idle = 0;
+        }
+    }
+
+    /**
+     * Count a single captured frame into the current shard.
+     *
+     * @param frame  captured bytes
+     * @param length number of valid bytes in {@code frame}
+     */
+    void process(byte[] frame, int length) {
+        // Only care about IPv4 packets.
+        if (!this.parser.parse(frame, length)) {
+            return;
+        }
+
+        int outAddr = this.parser.destination;
+        int inAddr = this.parser.source;
+        boolean ownsOut = shardOf(outAddr, this.shards) == this.id;
+        boolean ownsIn = shardOf(inAddr, this.shards) == this.id;
+
+        // Only record addresses not inside the local network
+        if (ownsOut && !DISCARD_CHECK.test(outAddr)) {
+            this.shard.outbound.add(outAddr, this.parser.length);
+            this.shard.outboundHosts.add(outAddr);
+        }
+        // Only record addresses not inside the local network
+        if (ownsIn && !DISCARD_CHECK.test(inAddr)) {
+            this.shard.inbound.add(inAddr, this.parser.length);
+            this.shard.inboundHosts.add(inAddr);
+        }
+
+        // Scream loudly when we get a packet not meant for us (counted once, by the source's worker)
+        if (ownsIn && !DISCARD_CHECK.test(inAddr) && !DISCARD_CHECK.test(outAddr)) {
+            logger.warning(
+                "UH OH! Looks like we got a packet not matching to/from 172.16: src " + IpAddresses.toString(inAddr)
+                + "  dest" + IpAddresses.toString(outAddr));
+            this.shard.badNets++;
+        }
+
+        // DNS stuff, the only packets which get fully decoded (once, by the source's worker)
+        if (ownsIn && this.parser.isDnsResponse(frame)) {
+            DnsPacket dns = this.parser.dns(frame);
+            if (dns != null) {
+                saveDns(dns);
+            }
+        }
+    }
+
+    /**
+     * Record the A resolutions of a decoded DNS reply into the current shard.
+     *
+     * @param packet decoded DNS packet
+     */
+    void saveDns(DnsPacket packet) {
+        // Only care about DNS replies
+        if (!packet.getHeader().isResponse()) {
+            return;
+        }
+
+        // Ignore 1-way data
+        if (packet.getHeader().getQuestions().isEmpty() || packet.getHeader().getAnswers().isEmpty()) {
+            return;
+        }
+
+        String domain = null;
+        List<Inet4Address> addresses = Lists.newArrayList();
+        // Record the requested domain
+        for (DnsQuestion question : packet.getHeader().getQuestions()) {
+            if (question.getQType() == DnsResourceRecordType.A) {
+                domain = question.getQName().getName();
+            }
+        }
+        // Record resolutions
+        for (DnsResourceRecord answer : packet.getHeader().getAnswers()) {
+            if (answer.getDataType() == DnsResourceRecordType.A) {
+                addresses.add(((DnsRDataA) answer.getRData()).getAddress());
+            }
+        }
+
+        // Give up if one data portion is not present
+        if (domain == null || addresses.isEmpty()) {
+            return;
+        }
+
+        this.shard.dns.putAll(domain, addresses);
+    }
+
+    private static int idle(int idle) {
+        if (idle >= YIELD_LIMIT) {
+            LockSupport.parkNanos(PARK_NANOS);
+            return idle;
+        }
+        // Busy spin first, frames usually arrive within a few iterations under load
+        if (idle >= SPIN_LIMIT) {
+            Thread.yield();
+        }
+        return idle + 1;
+    }
+}
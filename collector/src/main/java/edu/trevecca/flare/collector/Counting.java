@@ -0,0 +1,81 @@
+package edu.trevecca.flare.collector;
+
+import edu.trevecca.flare.core.sketch.HeavyHitters;
+import edu.trevecca.flare.core.sketch.HyperLogLog;
+import edu.trevecca.flare.core.stats.TrafficCounter;
+import edu.trevecca.flare.core.stats.TrafficTable;
+
+/**
+ * How per-host traffic is counted: every host exactly, or only the top hosts in fixed memory. Distinct hosts are always
+ * counted with a {@link HyperLogLog}, so the receiver knows how many hosts there were either way.
+ */
+class Counting {
+
+    private final int topK;
+    private final double epsilon;
+    private final double delta;
+    private final int hostPrecision;
+
+    private Counting(int topK, double epsilon, double delta, int hostPrecision) {
+        // Fail on startup rather than in the first worker
+        if (hostPrecision < HyperLogLog.MIN_PRECISION || hostPrecision > HyperLogLog.MAX_PRECISION) {
+            throw new IllegalArgumentException("Host precision must be between " + HyperLogLog.MIN_PRECISION + " and "
+                                               + HyperLogLog.MAX_PRECISION + ", got " + hostPrecision);
+        }
+        this.topK = topK;
+        this.epsilon = epsilon;
+        this.delta = delta;
+        this.hostPrecision = hostPrecision;
+    }
+
+    /**
+     * @param hostPrecision precision of the distinct host counters
+     * @return counting which keeps every host
+     */
+    static Counting exact(int hostPrecision) {
+        return new Counting(0, 0, 0, hostPrecision);
+    }
+
+    /**
+     * @param topK          most hosts to report per direction
+     * @param epsilon       largest overcount of a host's bytes, as a share of the direction's total
+     * @param delta         probability of the overcount being larger than that
+     * @param hostPrecision precision of the distinct host counters
+     * @return counting which keeps only the top hosts
+     */
+    static Counting topK(int topK, double epsilon, double delta, int hostPrecision) {
+        if (topK < 1) {
+            throw new IllegalArgumentException("Top K must be at least 1");
+        }
+        return new Counting(topK, epsilon, delta, hostPrecision);
+    }
+
+    boolean sketched() {
+        return this.topK > 0;
+    }
+
+    int topK() {
+        return this.topK;
+    }
+
+    /**
+     * @return an empty counter for one direction of a {@link WindowShard}
+     */
+    TrafficCounter newCounter() {
+        return sketched() ? new HeavyHitters(this.topK, this.epsilon, this.delta) : new TrafficTable();
+    }
+
+    /**
+     * @return an empty distinct host counter for one direction of a {@link WindowShard}
+     */
+    HyperLogLog newHostCounter() {
+        return new HyperLogLog(this.hostPrecision);
+    }
+
+    /**
+     * @return bytes used by each counter, {@code -1} if it grows with the number of hosts
+     */
+    long counterMemory() {
+        return sketched() ? new HeavyHitters(this.topK, this.epsilon, this.delta).memoryBytes() : -1;
+    }
+}
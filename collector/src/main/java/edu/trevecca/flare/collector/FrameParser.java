@@ -0,0 +1,181 @@
+package edu.trevecca.flare.collector;
+
+import edu.trevecca.flare.core.net.IpAddresses;
+import org.pcap4j.packet.DnsPacket;
+import org.pcap4j.packet.IllegalRawDataException;
+import org.pcap4j.packet.namednumber.DataLinkType;
+
+/**
+ * Reads the handful of header fields the collector needs straight out of a captured frame using fixed offsets, instead of
+ * having pcap4j decode every layer into objects.
+ * <p>
+ * A parser is reusable: each call to {@link #parse(byte[], int)} overwrites the fields describing the last frame, so
+ * parsing never allocates. Only frames which need deep inspection (DNS replies) are handed to the pcap4j object model,
+ * through {@link #dns(byte[])}.
+ * <p>
+ * Instances are not thread safe, each capture or worker thread should own one.
+ */
+class FrameParser {
+
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERTYPE_QINQ = 0x88A8;
+    private static final int PROTOCOL_TCP = 6;
+    private static final int PROTOCOL_UDP = 17;
+    private static final int DNS_PORT = 53;
+
+    /**
+     * Link layer of the frames this parser reads.
+     */
+    private final DataLinkType linkType;
+
+    /**
+     * Source address of the last parsed frame.
+     */
+    int source;
+    /**
+     * Destination address of the last parsed frame.
+     */
+    int destination;
+    /**
+     * IPv4 total length (header and payload) of the last parsed frame. This is taken from the IP header rather than the
+     * capture, so it stays correct when the snapshot length truncates the frame.
+     */
+    int length;
+    /**
+     * IP protocol number of the last parsed frame.
+     */
+    int protocol;
+    /**
+     * Transport ports of the last parsed frame, {@code -1} when there is no TCP/UDP header (or it was not captured).
+     */
+    int sourcePort;
+    int destinationPort;
+    /**
+     * Bounds of the transport payload within the captured frame.
+     */
+    private int payloadOffset;
+    private int payloadLength;
+
+    FrameParser(DataLinkType linkType) {
+        this.linkType = linkType;
+    }
+
+    /**
+     * Parse the headers of a captured frame.
+     *
+     * @param frame    captured bytes
+     * @param captured number of valid bytes in {@code frame}
+     * @return {@code true} if the frame carries IPv4, in which case the fields of this parser describe it
+     */
+    boolean parse(byte[] frame, int captured) {
+        int ip = ipv4Offset(frame, captured);
+        if (ip < 0) {
+            return false;
+        }
+
+        int headerLength = (frame[ip] & 0x0F) << 2;
+        this.length = u16(frame, ip + 2);
+        this.protocol = frame[ip + 9] & 0xFF;
+        this.source = IpAddresses.toInt(frame, ip + 12);
+        this.destination = IpAddresses.toInt(frame, ip + 16);
+        this.sourcePort = -1;
+        this.destinationPort = -1;
+        this.payloadOffset = 0;
+        this.payloadLength = 0;
+
+        // Only the first fragment carries the transport header
+        boolean firstFragment = (u16(frame, ip + 6) & 0x1FFF) == 0;
+        int transport = ip + headerLength;
+        int end = Math.min(captured, ip + this.length);
+        if (!firstFragment || headerLength < 20 || end < transport + 8) {
+            return true;
+        }
+
+        if (this.protocol == PROTOCOL_UDP) {
+            this.sourcePort = u16(frame, transport);
+            this.destinationPort = u16(frame, transport + 2);
+            this.payloadOffset = transport + 8;
+        }
+        else if (this.protocol == PROTOCOL_TCP && end >= transport + 20) {
+            this.sourcePort = u16(frame, transport);
+            this.destinationPort = u16(frame, transport + 2);
+            // DNS over TCP prefixes each message with a 2 byte length
+            int dnsPrefix = this.sourcePort == DNS_PORT ? 2 : 0;
+            this.payloadOffset = transport + ((frame[transport + 12] & 0xF0) >>> 2) + dnsPrefix;
+        }
+        if (this.payloadOffset > 0) {
+            this.payloadLength = Math.max(0, end - this.payloadOffset);
+        }
+        return true;
+    }
+
+    /**
+     * Find the IPv4 header of a captured frame, whose addresses are at fixed offsets from it. Unlike
+     * {@link #parse(byte[], int)} this leaves the parser's fields alone, so capture threads may share a parser for it.
+     *
+     * @param frame    captured bytes
+     * @param captured number of valid bytes in {@code frame}
+     * @return offset of the IPv4 header, or {@code -1} if the frame doesn't carry (enough of) one
+     */
+    int ipv4Offset(byte[] frame, int captured) {
+        int ip = ipOffset(frame, captured);
+        return ip < 0 || captured < ip + 20 || (frame[ip] & 0xF0) != 0x40 ? -1 : ip;
+    }
+
+    /**
+     * @param frame the bytes last passed to {@link #parse(byte[], int)}
+     * @return {@code true} if the last parsed frame looks like a DNS response
+     */
+    boolean isDnsResponse(byte[] frame) {
+        // Check the QR bit before paying for a full decode
+        return this.sourcePort == DNS_PORT && this.payloadLength >= 12 && (frame[this.payloadOffset + 2] & 0x80) != 0;
+    }
+
+    /**
+     * Decode the payload of the last parsed frame as DNS. This is the only place the pcap4j packet model is used.
+     *
+     * @param frame the bytes last passed to {@link #parse(byte[], int)}
+     * @return the decoded packet, or {@code null} if it could not be decoded
+     */
+    DnsPacket dns(byte[] frame) {
+        try {
+            return DnsPacket.newPacket(frame, this.payloadOffset, this.payloadLength);
+        }
+        catch (IllegalRawDataException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Find the start of the IPv4 header for this link type.
+     *
+     * @return offset of the IP header, or {@code -1} if the frame is not IPv4
+     */
+    private int ipOffset(byte[] frame, int captured) {
+        if (this.linkType.equals(DataLinkType.EN10MB)) {
+            int offset = 12;
+            int etherType = captured >= 14 ? u16(frame, offset) : -1;
+            // Skip (possibly stacked) VLAN tags
+            while ((etherType == ETHERTYPE_VLAN || etherType == ETHERTYPE_QINQ) && captured >= offset + 6) {
+                offset += 4;
+                etherType = u16(frame, offset);
+            }
+            return etherType == ETHERTYPE_IPV4 ? offset + 2 : -1;
+        }
+        if (this.linkType.equals(DataLinkType.LINUX_SLL)) {
+            return captured >= 16 && u16(frame, 14) == ETHERTYPE_IPV4 ? 16 : -1;
+        }
+        if (this.linkType.equals(DataLinkType.NULL)) {
+            return 4;
+        }
+        if (this.linkType.equals(DataLinkType.RAW)) {
+            return 0;
+        }
+        return -1;
+    }
+
+    private static int u16(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,246 @@
+package edu.trevecca.flare.collector;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preallocated, lock-free ring of captured frames between a capture thread and a single {@link CaptureWorker}.
+ * <p>
+ * Each worker has a ring of its own per capture thread, holding only the frames with a host in its shard, see
+ * {@link CapturePipeline}. There is a single producer and a single consumer, so a slot may be overwritten once the worker
+ * has moved past it. The producer never waits for live
+ * frames: when the ring is full the frame is counted as dropped and discarded, which keeps the capture thread draining
+ * the kernel buffer. Replayed frames are the exception, see {@link #put(byte[], int, long)}.
+ * <p>
+ * Besides frames the ring carries window markers (see {@link #offerControl(int, long)}), which tell the consumer that
+ * everything before the marker belongs to the window being closed. Markers don't take a frame slot: each one records the
+ * sequence of the first frame after it in a small queue of its own, so closing a window never waits for room among the
+ * frames.
+ */
+class FrameRing {
+
+    /**
+     * Type of a control entry which closes a window.
+     */
+    static final int MARKER = -1;
+    /**
+     * Type of the control entry which tells the consumer to exit.
+     */
+    static final int STOP = -2;
+    /**
+     * Control entries which may wait for the consumer. Markers are only published once per stats window, so this is only
+     * reached when the consumer has stalled for that many windows.
+     */
+    private static final int CONTROL_SLOTS = 64;
+
+    private final int mask;
+    private final int slotSize;
+    private final byte[][] frames;
+    private final int[] lengths;
+    private final long[] timestamps;
+    /**
+     * Highest sequence visible to the consumer.
+     */
+    private final AtomicLong published = new AtomicLong(-1);
+    /**
+     * Highest sequence the consumer has finished with.
+     */
+    private final AtomicLong consumed = new AtomicLong(-1);
+    /**
+     * Producer-local copy of the consumer's sequence, refreshed only when the ring looks full.
+     */
+    private long cachedConsumed = -1;
+    private long next = 0;
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * Sequence of the first frame after each control entry, and its type and timestamp, indexed by control number.
+     */
+    private final long[] controlSequences = new long[CONTROL_SLOTS];
+    private final int[] controlTypes = new int[CONTROL_SLOTS];
+    private final long[] controlTimestamps = new long[CONTROL_SLOTS];
+    /**
+     * Number of control entries visible to the consumer.
+     */
+    private final AtomicLong controls = new AtomicLong();
+    /**
+     * Number of control entries the consumer has finished with.
+     */
+    private final AtomicLong controlsConsumed = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity number of slots, rounded up to a power of two
+     * @param slotSize bytes stored per frame, longer frames are truncated (headers always fit)
+     */
+    FrameRing(int capacity, int slotSize) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.slotSize = slotSize;
+        this.frames = new byte[size][slotSize];
+        this.lengths = new int[size];
+        this.timestamps = new long[size];
+    }
+
+    /**
+     * Copy a frame into the ring. Must only be called by the producer.
+     *
+     * @param frame     captured bytes
+     * @param length    number of valid bytes in {@code frame}
+     * @param timestamp capture time in epoch milliseconds
+     * @return {@code false} if the ring was full and the frame was dropped
+     */
+    boolean offer(byte[] frame, int length, long timestamp) {
+        if (!hasSpace()) {
+            this.dropped.incrementAndGet();
+            return false;
+        }
+        publishFrame(frame, length, timestamp);
+        return true;
+    }
+
+    /**
+     * Copy a frame into the ring, waiting for space instead of dropping it. Only for frames read from a file, where
+     * slowing the producer down loses nothing.
+     *
+     * @param frame     captured bytes
+     * @param length    number of valid bytes in {@code frame}
+     * @param timestamp capture time in epoch milliseconds
+     */
+    void put(byte[] frame, int length, long timestamp) {
+        while (!hasSpace()) {
+            Thread.yield();
+        }
+        publishFrame(frame, length, timestamp);
+    }
+
+    private void publishFrame(byte[] frame, int length, long timestamp) {
+        int slot = (int) this.next & this.mask;
+        int copied = Math.min(length, this.slotSize);
+        System.arraycopy(frame, 0, this.frames[slot], 0, copied);
+        this.lengths[slot] = copied;
+        this.timestamps[slot] = timestamp;
+        this.published.lazySet(this.next++);
+    }
+
+    private boolean hasSpace() {
+        long wrap = this.next - this.frames.length;
+        if (wrap <= this.cachedConsumed) {
+            return true;
+        }
+        this.cachedConsumed = this.consumed.get();
+        return wrap <= this.cachedConsumed;
+    }
+
+    /**
+     * @return {@code true} if {@link #offerControl(int, long)} would succeed. Must only be called by the producer.
+     */
+    boolean hasControlSpace() {
+        return this.controls.get() - this.controlsConsumed.get() < CONTROL_SLOTS;
+    }
+
+    /**
+     * Publish a control entry after every frame offered so far. Never waits, so it may be called from a capture thread.
+     * Must only be called by the producer.
+     *
+     * @param type      {@link #MARKER} or {@link #STOP}
+     * @param timestamp start of the window which is being closed, in epoch milliseconds
+     * @return {@code false} if the consumer is too many windows behind to take another entry
+     */
+    boolean offerControl(int type, long timestamp) {
+        if (!hasControlSpace()) {
+            return false;
+        }
+        long control = this.controls.get();
+        int slot = (int) control % CONTROL_SLOTS;
+        this.controlSequences[slot] = this.next;
+        this.controlTypes[slot] = type;
+        this.controlTimestamps[slot] = timestamp;
+        this.controls.lazySet(control + 1);
+        return true;
+    }
+
+    /**
+     * @return highest sequence which may be read
+     */
+    long published() {
+        return this.published.get();
+    }
+
+    /**
+     * Mark every slot up to and including {@code sequence} as processed.
+     */
+    void release(long sequence) {
+        this.consumed.lazySet(sequence);
+    }
+
+    long consumed() {
+        return this.consumed.get();
+    }
+
+    /**
+     * @return number of control entries which may be read. Read after {@link #published()}, every control entry placed
+     * before a published frame is included.
+     */
+    long controls() {
+        return this.controls.get();
+    }
+
+    /**
+     * Mark every control entry before {@code control} as processed.
+     */
+    void releaseControls(long control) {
+        this.controlsConsumed.lazySet(control);
+    }
+
+    long controlsConsumed() {
+        return this.controlsConsumed.get();
+    }
+
+    /**
+     * @return sequence of the first frame after a control entry, which is not published yet if the entry is the latest
+     */
+    long controlSequence(long control) {
+        return this.controlSequences[(int) control % CONTROL_SLOTS];
+    }
+
+    /**
+     * @return {@link #MARKER} or {@link #STOP}
+     */
+    int controlType(long control) {
+        return this.controlTypes[(int) control % CONTROL_SLOTS];
+    }
+
+    long controlTimestamp(long control) {
+        return this.controlTimestamps[(int) control % CONTROL_SLOTS];
+    }
+
+    byte[] frame(long sequence) {
+        return this.frames[(int) sequence & this.mask];
+    }
+
+    int length(long sequence) {
+        return this.lengths[(int) sequence & this.mask];
+    }
+
+    long timestamp(long sequence) {
+        return this.timestamps[(int) sequence & this.mask];
+    }
+
+    /**
+     * @return number of slots published but not yet processed by the consumer
+     */
+    long depth() {
+        return Math.max(0, published() - this.consumed.get());
+    }
+
+    int capacity() {
+        return this.frames.length;
+    }
+
+    /**
+     * @return frames dropped because the ring was full since the last call
+     */
+    long drainDropped() {
+        return this.dropped.getAndSet(0);
+    }
+}
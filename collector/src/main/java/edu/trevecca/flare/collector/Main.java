@@ -1,20 +1,21 @@
 package edu.trevecca.flare.collector;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Multimap;
 import edu.trevecca.flare.core.logging.Logging;
+import edu.trevecca.flare.core.metrics.MetricsRegistry;
+import edu.trevecca.flare.core.metrics.PrometheusEndpoint;
+import edu.trevecca.flare.core.metrics.RedisMetricsExporter;
+import edu.trevecca.flare.core.redis.AsyncPublisher;
+import edu.trevecca.flare.core.redis.PublishOptions;
 import edu.trevecca.flare.core.redis.Redis;
+import edu.trevecca.flare.core.transfer.PacketDumpRedisMessage;
 import java.io.EOFException;
-import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Paths;
 import java.time.Instant;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Predicate;
 import java.util.logging.Logger;
 import org.pcap4j.core.BpfProgram.BpfCompileMode;
 import org.pcap4j.core.PcapHandle;
@@ -23,36 +24,28 @@ import org.pcap4j.core.PcapNetworkInterface;
 import org.pcap4j.core.PcapNetworkInterface.PromiscuousMode;
 import org.pcap4j.core.PcapStat;
 import org.pcap4j.core.Pcaps;
-import org.pcap4j.packet.DnsPacket;
-import org.pcap4j.packet.DnsQuestion;
-import org.pcap4j.packet.DnsRDataA;
-import org.pcap4j.packet.DnsResourceRecord;
-import org.pcap4j.packet.IpV4Packet;
-import org.pcap4j.packet.Packet;
-import org.pcap4j.packet.namednumber.DnsResourceRecordType;
 import org.pcap4j.util.NifSelector;
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
 
 public class Main implements Callable<Void> {
 
-    /**
-     * Check to see if local data should be discarded.
-     */
-    private static final Predicate<byte[]> DISCARD_CHECK = (addr) -> (addr[0] == (byte) 172 && addr[1] == (byte) 16);
     /**
      * Class logger
      */
     private static final Logger logger = Logging.getLogger("Main");
     /**
-     * Traffic which is heading out of the network.
+     * Bytes of each frame kept in the capture ring. Enough for every header we read and nearly all DNS replies.
+     */
+    private static final int RING_SLOT_SIZE = 4096;
+    /**
+     * Snapshot length of handles which need whole packets.
      */
-    private final Map<Inet4Address, AtomicInteger> outboundTraffic = new HashMap();
+    private static final int FULL_SNAPLEN = 65536;
     /**
-     * Traffic which is heading in to the network.
+     * Read timeout of every handle, in milliseconds.
      */
-    private final Map<Inet4Address, AtomicInteger> inboundTraffic = new HashMap();
-    private final Multimap<String, Inet4Address> dnsResolutions = HashMultimap.create();
+    private static final int READ_TIMEOUT = 50;
     /**
      * Time when the current stats window started.
      */
@@ -101,14 +94,151 @@ public class Main implements Callable<Void> {
         defaultValue = "60"
     )
     private int statsWindow;
+    /**
+     * Wire format of published stats dumps.
+     */
+    @Option(
+        names = {"-d", "--dump-format"},
+        description = {"Wire format of published stats dumps (JSON or BINARY)."},
+        defaultValue = "JSON"
+    )
+    private PacketDumpRedisMessage.Format dumpFormat;
+    /**
+     * ID sent with every dump, the hostname if not given.
+     */
+    @Option(
+        names = {"-ci", "--collector-id"},
+        description = {"ID sent with every stats dump, which aggregators partition their work by (defaults to the hostname)."}
+    )
+    private String collectorId;
+    /**
+     * Number of top hosts to report per direction, {@code 0} to report every host.
+     */
+    @Option(
+        names = {"-k", "--top-k"},
+        description = {"Only report this many of the busiest hosts per direction, counted in fixed memory (0 reports every host)."},
+        defaultValue = "0"
+    )
+    private int topK;
+    /**
+     * Largest overcount of a reported host's bytes in top K mode, as a share of the direction's total.
+     */
+    @Option(
+        names = {"-se", "--sketch-epsilon"},
+        description = {"Largest overcount of a host's bytes in top K mode, as a share of the direction's total."},
+        defaultValue = "0.0001"
+    )
+    private double sketchEpsilon;
+    /**
+     * Probability of the overcount being larger than {@link #sketchEpsilon}.
+     */
+    @Option(
+        names = {"-sd", "--sketch-delta"},
+        description = {"Probability of the overcount being larger than the sketch epsilon."},
+        defaultValue = "0.001"
+    )
+    private double sketchDelta;
+    /**
+     * Precision of the distinct host counters, each direction of a window takes {@code 2^precision} bytes.
+     */
+    @Option(
+        names = {"-hp", "--host-precision"},
+        description = {"Precision (4-16) of the distinct host counters, each uses 2^precision bytes with an error of "
+                       + "about 104/sqrt(2^precision) percent."},
+        defaultValue = "12"
+    )
+    private int hostPrecision;
+    /**
+     * Capture with two handles, one which only keeps headers and one for DNS.
+     */
+    @Option(
+        names = {"-s", "--split-capture"},
+        description = {"Capture DNS on its own handle and keep only the headers of everything else."},
+        defaultValue = "false"
+    )
+    private boolean splitCapture;
+    /**
+     * Snapshot length of the header handle in split capture mode.
+     */
+    @Option(
+        names = {"-hs", "--header-snaplen"},
+        description = {"Bytes kept of each non-DNS packet in split capture mode."},
+        defaultValue = "96"
+    )
+    private int headerSnaplen;
+    /**
+     * PCAP filter of the DNS handle in split capture mode.
+     */
+    @Option(
+        names = {"-df", "--dns-filter"},
+        description = {"The PCAP filter of the DNS handle in split capture mode."},
+        defaultValue = "port 53"
+    )
+    private String dnsFilter;
+    /**
+     * Capture file to replay instead of capturing from an interface.
+     */
+    @Option(
+        names = {"-rf", "--replay"},
+        description = {"Replay packets from a pcap file instead of capturing from an interface, then report throughput."}
+    )
+    private String replayFile;
+    /**
+     * Replay speed relative to the capture, {@code 0} to replay as fast as possible.
+     */
+    @Option(
+        names = {"-rs", "--replay-speed"},
+        description = {"Replay speed relative to the capture (2 is twice as fast), 0 to replay as fast as possible."},
+        defaultValue = "1"
+    )
+    private double replaySpeed;
     /**
      * Program runner indicator. This is set to false by the shutdown handler and will gracefully end execution with a stats dump.
      */
-    private boolean doLoop = true;
+    private volatile boolean doLoop = true;
+    /**
+     * Released once every capture loop has exited, after which no more frames are offered to the {@link #pipeline}.
+     */
+    private volatile CountDownLatch captureDone;
+    /**
+     * Set once {@link #finish()} has run.
+     */
+    private boolean finished;
     /**
-     * Handle used to gather packet data.
+     * Handle used to gather packet data. Only captures headers in split capture mode.
      */
     private PcapHandle handle;
+    /**
+     * Handle used to gather DNS packets in split capture mode, {@code null} otherwise.
+     */
+    private PcapHandle dnsHandle;
+    /**
+     * Hands captured frames to the worker threads.
+     */
+    private CapturePipeline pipeline;
+    /**
+     * Drives the {@link #pipeline} from a capture file, {@code null} when capturing live.
+     */
+    private Replay replay;
+    /**
+     * Number of worker threads which parse and count captured frames.
+     */
+    @Option(
+        names = {"-t", "--workers"},
+        description = {"Number of worker threads which parse and count captured packets."},
+        defaultValue = "2"
+    )
+    private int workers;
+    /**
+     * Number of frames which can be waiting between the capture thread and the workers, split evenly between them.
+     */
+    @Option(
+        names = {"-r", "--ring-size"},
+        description = {"Number of captured packets from each capture handle which can be queued for the worker threads, "
+                       + "split evenly between them."},
+        defaultValue = "16384"
+    )
+    private int ringSize;
     /**
      * Hostname of the redis server used for cross-node communication.
      */
@@ -127,15 +257,81 @@ public class Main implements Callable<Void> {
         description = {"Port of the redis server used for cross-node communication"}
     )
     private int redisPort;
+    /**
+     * Directory of the journal which keeps dumps while Redis is unreachable.
+     */
+    @Option(
+        names = {"-jd", "--journal-dir"},
+        description = {"Directory of the journal which keeps dumps while redis is unreachable."},
+        defaultValue = "journal"
+    )
+    private String journalDirectory;
+    /**
+     * Size of each journal segment, in MiB.
+     */
+    @Option(
+        names = {"-js", "--journal-segment-size"},
+        description = {"Size (in MiB) of each journal segment file."},
+        defaultValue = "64"
+    )
+    private int journalSegmentSize;
+    /**
+     * Total size of the journal, in MiB, before the oldest dumps are thrown away.
+     */
+    @Option(
+        names = {"-jm", "--journal-max-size"},
+        description = {"Total size (in MiB) of the journal before its oldest dumps are thrown away."},
+        defaultValue = "1024"
+    )
+    private int journalMaxSize;
+    /**
+     * Journaled dumps published per second once Redis is back.
+     */
+    @Option(
+        names = {"-jr", "--journal-replay-rate"},
+        description = {"Journaled dumps published per second once redis is back."},
+        defaultValue = "5"
+    )
+    private double journalReplayRate;
+    /**
+     * Time between metrics exports to Redis, {@code 0} to disable them.
+     */
+    @Option(
+        names = {"-mi", "--metrics-interval"},
+        description = {"Time (in seconds) between metrics exports to redis, 0 to disable."},
+        defaultValue = "10"
+    )
+    private int metricsInterval;
+    /**
+     * Port of the Prometheus metrics endpoint, {@code 0} to disable it.
+     */
+    @Option(
+        names = {"-mp", "--metrics-port"},
+        description = {"Port to serve Prometheus metrics on, 0 to disable."},
+        defaultValue = "0"
+    )
+    private int metricsPort;
+    /**
+     * Copies metrics to Redis, {@code null} if disabled.
+     */
+    private RedisMetricsExporter metricsExporter;
+    /**
+     * Serves metrics over HTTP, {@code null} if disabled.
+     */
+    private PrometheusEndpoint metricsEndpoint;
     /**
      * Redis instance to register {@link edu.trevecca.flare.core.redis.RedisListener}s and to send {@link
      * edu.trevecca.flare.core.redis.RedisMessage}s.
      */
     static Redis redis;
     /**
-     * The number of packets received which do not match the inbound or outbound {@link #DISCARD_CHECK} in the current window.
+     * Publishes dumps without blocking the dump thread, journaling them while Redis is unreachable.
+     */
+    static AsyncPublisher publisher;
+    /**
+     * ID sent with every dump, see {@link #collectorId}.
      */
-    private final AtomicInteger badNets = new AtomicInteger();
+    static String id;
 
     public static void main(String[] args) throws Exception {
         // Parse args (see above)
@@ -144,6 +340,24 @@ public class Main implements Callable<Void> {
     }
 
     public Void call() throws Exception {
+        id = this.collectorId != null ? this.collectorId : hostname();
+        logger.info("Collector ID: " + id);
+
+        // Fail on startup rather than when the pipeline divides the rings between the workers
+        if (this.workers < 1) {
+            logger.severe("--workers must be at least 1, got " + this.workers);
+            System.exit(1);
+        }
+        if (this.ringSize < 1) {
+            logger.severe("--ring-size must be at least 1, got " + this.ringSize);
+            System.exit(1);
+        }
+
+        if (this.replayFile != null) {
+            replay();
+            return null;
+        }
+
         // Sanity check for people who can't read.
         if (this.interfaceName == null && !this.chooseInterface) {
             logger.severe("Interface name not supplied and choose option disabled!");
@@ -162,147 +376,224 @@ public class Main implements Callable<Void> {
         Runtime.getRuntime().addShutdownHook(new Thread(this::finish));
 
         // Connect to Redis
-        redis = Redis.builder(this.redisHost, this.redisPort).reconnect(true).build();
-        redis.enable();
+        connect();
 
         // Set up PCAP
-        int snapshotLength = 65536;
-        int readTimeout = 50;
-        Builder builder = new Builder(device.getName());
-        builder.bufferSize(this.bufferSize).promiscuousMode(PromiscuousMode.PROMISCUOUS).timeoutMillis(readTimeout)
-            .snaplen(snapshotLength);
-        this.handle = builder.build();
-        this.handle.setFilter(this.filter, BpfCompileMode.OPTIMIZE);
-
-        // Main packet listen loop
-        while (this.doLoop) {
-            // Dump stats after window expires
-            if (Instant.now().minusSeconds((long) this.statsWindow).isAfter(this.start)) {
-                Instant finalStart = this.start;
-                // Spawn a thread so stats dump doesn't slow down the main loop.
-                (new Thread(
-                    () -> StatsUtils.dumpStats(finalStart, new HashMap(this.outboundTraffic), new HashMap(this.inboundTraffic),
-                                               HashMultimap.create(dnsResolutions),
-                                               this.statsWindow, this.badNets.get()
-                                              ))).run();
-                // Clear local cache
-                badNets.set(0);
-                this.outboundTraffic.clear();
-                this.inboundTraffic.clear();
-                this.dnsResolutions.clear();
-                this.start = Instant.now();
+        if (this.splitCapture) {
+            // Traffic counting only reads headers, so only DNS needs whole packets copied out of the kernel
+            this.handle = openHandle(device, this.headerSnaplen, "(" + this.filter + ") and not (" + this.dnsFilter + ")");
+            this.dnsHandle = openHandle(device, FULL_SNAPLEN, this.dnsFilter);
+            if (!this.dnsHandle.getDlt().equals(this.handle.getDlt())) {
+                throw new IllegalStateException("Capture handles disagree on the link type");
             }
+        }
+        else {
+            this.handle = openHandle(device, FULL_SNAPLEN, this.filter);
+        }
+        int producers = this.dnsHandle != null ? 2 : 1;
+        this.captureDone = new CountDownLatch(producers);
+        this.pipeline = new CapturePipeline(this.workers, producers, this.ringSize, RING_SLOT_SIZE, this.handle.getDlt(),
+                                            this.statsWindow, this.dumpFormat, counting(), this::kernelDropped, false
+        );
+        startMetrics();
+        this.pipeline.start();
+        if (this.dnsHandle != null) {
+            Thread dnsCapture = new Thread(this::captureDns, "dns-capture");
+            dnsCapture.setDaemon(true);
+            dnsCapture.start();
+        }
 
-            // Listen for packets
-            try {
-                Packet packet = this.handle.getNextPacketEx();
-                // Only care about IPv4 packets.
-                if (packet.contains(IpV4Packet.class)) {
-                    Inet4Address out = packet.get(IpV4Packet.class).getHeader().getDstAddr();
-                    Inet4Address in = packet.get(IpV4Packet.class).getHeader().getSrcAddr();
-                    byte[] outAddr = out.getAddress();
-                    byte[] inAddr = in.getAddress();
-
-                    // Only record addresses not inside the local network
-                    if (!DISCARD_CHECK.test(outAddr)) {
-                        this.outboundTraffic.putIfAbsent(out, new AtomicInteger());
-                        this.outboundTraffic.get(out).addAndGet(packet.getHeader().length());
-                    }
-                    // Only record addresses not inside the local network
-                    if (!DISCARD_CHECK.test(inAddr)) {
-                        this.inboundTraffic.putIfAbsent(in, new AtomicInteger());
-                        this.inboundTraffic.get(in).addAndGet(packet.getHeader().length());
-                    }
-
-                    // Scream loudly when we get a packet not meant for us
-                    if (!DISCARD_CHECK.test(inAddr) && !DISCARD_CHECK.test(outAddr)) {
-                        logger.warning(
-                            "UH OH! Looks like we got a packet not matching to/from 172.16: src " + in.getHostAddress() + "  dest"
-                            + out.getHostAddress());
-                        badNets.incrementAndGet();
-                    }
+        // Main packet listen loop, this thread only copies frames to the workers
+        CapturePipeline.Producer capture = this.pipeline.producer(0);
+        long windowEnd = this.start.plusSeconds(this.statsWindow).toEpochMilli();
+        try {
+            while (this.doLoop) {
+                long now = System.currentTimeMillis();
+                // Dump stats after window expires, this only queues a marker for the workers. If they are too far
+                // behind to take it the window stays open and closing it is tried again on the next frame.
+                if (now >= windowEnd && this.pipeline.closeWindow(this.start)) {
+                    this.start = Instant.ofEpochMilli(now);
+                    windowEnd = now + this.statsWindow * 1000L;
+                }
 
+                // Listen for packets
+                try {
+                    byte[] frame = this.handle.getNextRawPacketEx();
+                    capture.offer(frame, now);
                 }
-                // DNS stuff
-                if (packet.contains(DnsPacket.class)) {
-                    DnsPacket dns = packet.get(DnsPacket.class);
-                    saveDns(dns);
+                catch (TimeoutException ex) {
+                    // Not handled
+                }
+                catch (EOFException ex) {
+                    ex.printStackTrace();
                 }
             }
-            catch (TimeoutException ex) {
-                // Not handled
-            }
-            catch (EOFException ex) {
-                ex.printStackTrace();
-            }
+        }
+        finally {
+            this.captureDone.countDown();
         }
 
         return null;
     }
 
-    private void saveDns(DnsPacket packet) {
-        // Only care about DNS replies
-        if (!packet.getHeader().isResponse()) {
-            return;
+    /**
+     * Feed a capture file through the same pipeline as a live capture, then report how fast it went.
+     */
+    private void replay() throws Exception {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::finish));
+
+        connect();
+
+        this.handle = Pcaps.openOffline(this.replayFile);
+        this.handle.setFilter(this.filter, BpfCompileMode.OPTIMIZE);
+        this.captureDone = new CountDownLatch(1);
+        // Nothing is dropped before a file is read
+        this.pipeline = new CapturePipeline(this.workers, 1, this.ringSize, RING_SLOT_SIZE, this.handle.getDlt(),
+                                            this.statsWindow, this.dumpFormat, counting(), () -> 0, true
+        );
+        this.replay = new Replay(this.handle, this.pipeline, this.statsWindow, this.replaySpeed);
+        startMetrics();
+        logger.info("Replaying " + this.replayFile
+                    + (this.replaySpeed > 0 ? " at " + this.replaySpeed + "x" : " as fast as possible"));
+        this.pipeline.start();
+        try {
+            this.replay.run(() -> this.doLoop);
+        }
+        finally {
+            this.captureDone.countDown();
         }
 
-        // Ignore 1-way data
-        if (packet.getHeader().getQuestions().isEmpty() || packet.getHeader().getAnswers().isEmpty()) {
-            return;
+        // Interrupted replays are finished by the shutdown hook
+        if (this.doLoop) {
+            finish();
+            System.exit(0);
         }
+    }
 
-        String domain = null;
-        List<Inet4Address> addresses = Lists.newArrayList();
-        // Record the requested domain
-        for (DnsQuestion question : packet.getHeader().getQuestions()) {
-            if (question.getQType() == DnsResourceRecordType.A) {
-                domain = question.getQName().getName();
-            }
+    /**
+     * Connect to Redis and start the dump publisher, which recovers anything journaled by an earlier run.
+     */
+    private void connect() throws Exception {
+        redis = Redis.builder(this.redisHost, this.redisPort).reconnect(true).build();
+        redis.enable();
+        publisher = redis.publisher(PublishOptions.builder()
+                                                  .journalDirectory(Paths.get(this.journalDirectory))
+                                                  .segmentBytes((long) this.journalSegmentSize << 20)
+                                                  .journalBytes((long) this.journalMaxSize << 20)
+                                                  .replayRate(this.journalReplayRate)
+                                                  .build());
+    }
+
+    private void startMetrics() throws Exception {
+        MetricsRegistry metrics = MetricsRegistry.global();
+        metrics.registerJvm();
+        metrics.gauge("collector.ring.depth", this.pipeline::depth);
+        metrics.gauge("collector.kernel-dropped", this.replay != null ? () -> 0 : this::kernelDropped);
+        if (this.metricsInterval > 0) {
+            this.metricsExporter = new RedisMetricsExporter(redis, metrics, RedisMetricsExporter.hashFor("collector"),
+                                                            this.metricsInterval);
         }
-        // Record resolutions
-        for (DnsResourceRecord answer : packet.getHeader().getAnswers()) {
-            if (answer.getDataType() == DnsResourceRecordType.A) {
-                addresses.add(((DnsRDataA) answer.getRData()).getAddress());
-            }
+        if (this.metricsPort > 0) {
+            this.metricsEndpoint = new PrometheusEndpoint(this.metricsPort, metrics);
         }
+    }
 
-        // Give up if one data portion is not present
-        if (domain == null || addresses.isEmpty()) {
-            return;
+    private Counting counting() {
+        Counting counting = this.topK > 0 ? Counting.topK(this.topK, this.sketchEpsilon, this.sketchDelta, this.hostPrecision)
+                                          : Counting.exact(this.hostPrecision);
+        if (counting.sketched()) {
+            logger.info("Counting the top " + this.topK + " hosts, " + counting.counterMemory() * 2 * this.workers
+                        + " bytes per window");
         }
+        return counting;
+    }
 
-        // logger.info("Resolved " + domain + " to " + addresses);
+    /**
+     * Capture loop of the DNS handle in split capture mode. Frames go to rings of their own, and follow the windows closed
+     * by the main handle's loop.
+     */
+    private void captureDns() {
+        CapturePipeline.Producer capture = this.pipeline.producer(1);
+        try {
+            while (this.doLoop) {
+                try {
+                    byte[] frame = this.dnsHandle.getNextRawPacketEx();
+                    capture.offer(frame, System.currentTimeMillis());
+                }
+                catch (TimeoutException ex) {
+                    // Keep up with windows while there is no DNS traffic, the workers wait for this handle's markers
+                    capture.syncWindows();
+                }
+                catch (EOFException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+        catch (Exception ex) {
+            logger.severe("DNS capture failed!");
+            ex.printStackTrace();
+        }
+        finally {
+            this.captureDone.countDown();
+        }
+    }
 
-        dnsResolutions.putAll(domain, addresses);
+    private PcapHandle openHandle(PcapNetworkInterface device, int snaplen, String filter) throws Exception {
+        Builder builder = new Builder(device.getName());
+        builder.bufferSize(this.bufferSize).promiscuousMode(PromiscuousMode.PROMISCUOUS).timeoutMillis(READ_TIMEOUT)
+            .snaplen(snaplen);
+        PcapHandle handle = builder.build();
+        handle.setFilter(filter, BpfCompileMode.OPTIMIZE);
+        return handle;
     }
 
     /**
-     * Graceful shutdown
+     * Graceful shutdown. Runs once, a second caller waits for the first to be done.
      */
-    private void finish() {
+    private synchronized void finish() {
         // Stop the packet loop
         this.doLoop = false;
+        if (this.finished) {
+            return;
+        }
+        this.finished = true;
 
         try {
             logger.info("Shutting down...");
+            if (this.pipeline == null) {
+                return;
+            }
 
-            // Wait a bit for dramatic effect
-            Thread.sleep(400L);
+            // Wait for the capture loop to let go of the pipeline
+            this.captureDone.await();
 
             // Have to get a new logger since the old one has already been destroyed
             Logger shutdown = Logging.getLogger("Shutdown");
 
+            if (this.replay != null) {
+                this.pipeline.stop(this.replay.windowStart());
+                this.replay.report(shutdown);
+                this.handle.close();
+                publisher.close();
+                closeMetrics();
+                return;
+            }
+
             // Dump stats and log debug data
-            PcapStat stats = this.handle.getStats();
-            shutdown.info("Packets received: " + stats.getNumPacketsReceived());
-            shutdown.info("Packets dropped: " + stats.getNumPacketsDropped());
-            shutdown.info("Packets dropped by interface: " + stats.getNumPacketsDroppedByIf());
-            StatsUtils.dumpStats(this.start, this.outboundTraffic, this.inboundTraffic, this.dnsResolutions, this.statsWindow,
-                                 this.badNets.get()
-                                );
-
-            // Close the handle
+            logStats(shutdown, "", this.handle);
+            if (this.dnsHandle != null) {
+                logStats(shutdown, "DNS ", this.dnsHandle);
+            }
+            this.pipeline.stop(this.start);
+
+            // Close the handles
             this.handle.close();
+            if (this.dnsHandle != null) {
+                this.dnsHandle.close();
+            }
+            // Waits for the last dump to be acknowledged or journaled
+            publisher.close();
+            closeMetrics();
         }
         catch (Exception ex) {
             ex.printStackTrace();
@@ -310,6 +601,51 @@ public class Main implements Callable<Void> {
 
     }
 
+    /**
+     * Stop exporting metrics, after a last export which includes the final window.
+     */
+    private void closeMetrics() {
+        if (this.metricsExporter != null) {
+            this.metricsExporter.close();
+        }
+        if (this.metricsEndpoint != null) {
+            this.metricsEndpoint.close();
+        }
+    }
+
+    private static String hostname() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        }
+        catch (UnknownHostException ex) {
+            logger.warning("Failed to look up the hostname, use --collector-id to tell collectors apart");
+            return "unknown";
+        }
+    }
+
+    private static void logStats(Logger logger, String prefix, PcapHandle handle) throws Exception {
+        PcapStat stats = handle.getStats();
+        logger.info(prefix + "Packets received: " + stats.getNumPacketsReceived());
+        logger.info(prefix + "Packets dropped: " + stats.getNumPacketsDropped());
+        logger.info(prefix + "Packets dropped by interface: " + stats.getNumPacketsDroppedByIf());
+    }
+
+    /**
+     * @return number of packets the kernel has dropped on every handle since capture started, or {@code -1} if unknown
+     */
+    private long kernelDropped() {
+        try {
+            long dropped = this.handle.getStats().getNumPacketsDropped();
+            if (this.dnsHandle != null) {
+                dropped += this.dnsHandle.getStats().getNumPacketsDropped();
+            }
+            return dropped;
+        }
+        catch (Exception ex) {
+            return -1;
+        }
+    }
+
     private PcapNetworkInterface getNetworkDevice() {
         PcapNetworkInterface device = null;
 
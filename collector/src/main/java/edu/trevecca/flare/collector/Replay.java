@@ -0,0 +1,176 @@
+package edu.trevecca.flare.collector;
+
+import java.io.EOFException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+import org.pcap4j.core.PcapHandle;
+
+/**
+ * Feeds the frames of a capture file through a {@link CapturePipeline}, to reproduce a capture or measure the collector's
+ * throughput.
+ * <p>
+ * Windows follow the timestamps in the file rather than the wall clock: the first window starts at the first packet and
+ * each one is closed by the first packet at or past its end, so a file always produces the same windows whatever the
+ * replay speed. Frames wait for room in the rings instead of being dropped.
+ */
+class Replay {
+
+    private final PcapHandle handle;
+    private final CapturePipeline pipeline;
+    /**
+     * The pipeline's only producer.
+     */
+    private final CapturePipeline.Producer producer;
+    private final long windowMillis;
+    /**
+     * Replay speed relative to the capture, {@code 0} or less to replay as fast as possible.
+     */
+    private final double speed;
+    private final StageTimer readTimer = new StageTimer("read");
+    private final StageTimer offerTimer = new StageTimer("offer");
+    /**
+     * Start of the current window, in capture time.
+     */
+    private volatile Instant windowStart = Instant.now();
+    private long packets;
+    private long bytes;
+    /**
+     * Capture time of the first and last packets, in nanoseconds.
+     */
+    private long firstCaptured = -1;
+    private long lastCaptured;
+    private long elapsedNanos;
+    private long gcCount;
+    private long gcMillis;
+
+    /**
+     * Constructor.
+     *
+     * @param handle      offline handle of the capture file
+     * @param pipeline    pipeline to feed, which should be timed
+     * @param statsWindow time between dumps, in seconds
+     * @param speed       replay speed relative to the capture, {@code 0} or less to replay as fast as possible
+     */
+    Replay(PcapHandle handle, CapturePipeline pipeline, int statsWindow, double speed) {
+        this.handle = handle;
+        this.pipeline = pipeline;
+        this.producer = pipeline.producer(0);
+        this.windowMillis = statsWindow * 1000L;
+        this.speed = speed;
+    }
+
+    /**
+     * Replay the file until it ends or {@code running} turns false.
+     */
+    void run(BooleanSupplier running) throws Exception {
+        this.readTimer.sampleAllocation();
+        collectGc(-1);
+        long wallStart = System.nanoTime();
+        long windowEnd = 0;
+        while (running.getAsBoolean()) {
+            long started = System.nanoTime();
+            byte[] frame;
+            try {
+                frame = this.handle.getNextRawPacketEx();
+            }
+            catch (TimeoutException ex) {
+                continue;
+            }
+            catch (EOFException ex) {
+                break;
+            }
+            Timestamp timestamp = this.handle.getTimestamp();
+            this.readTimer.record(System.nanoTime() - started);
+
+            long captured = TimeUnit.SECONDS.toNanos(Math.floorDiv(timestamp.getTime(), 1000)) + timestamp.getNanos();
+            if (this.firstCaptured < 0) {
+                this.firstCaptured = captured;
+                this.windowStart = Instant.ofEpochMilli(timestamp.getTime());
+                windowEnd = timestamp.getTime() + this.windowMillis;
+                wallStart = System.nanoTime();
+            }
+            this.lastCaptured = captured;
+
+            // Close every window the capture has moved past, empty ones included like a live capture would
+            while (timestamp.getTime() >= windowEnd) {
+                this.pipeline.putWindow(this.windowStart);
+                this.windowStart = Instant.ofEpochMilli(windowEnd);
+                windowEnd += this.windowMillis;
+            }
+
+            if (this.speed > 0) {
+                pace(wallStart + (long) ((captured - this.firstCaptured) / this.speed));
+            }
+            started = System.nanoTime();
+            this.producer.put(frame, timestamp.getTime());
+            this.offerTimer.record(System.nanoTime() - started);
+            this.packets++;
+            this.bytes += frame.length;
+        }
+        this.elapsedNanos = System.nanoTime() - wallStart;
+        this.readTimer.sampleAllocation();
+        collectGc(1);
+    }
+
+    /**
+     * @return start of the window still open, in capture time
+     */
+    Instant windowStart() {
+        return this.windowStart;
+    }
+
+    /**
+     * Log throughput, the latency and allocation of each stage, and garbage collection. The pipeline must have been
+     * stopped.
+     */
+    void report(Logger logger) {
+        double seconds = Math.max(1, this.elapsedNanos) / 1e9;
+        logger.info("Replayed " + this.packets + " packets (" + (this.bytes >> 10) + " KiB) in "
+                    + String.format("%.3f", seconds) + "s, covering "
+                    + String.format("%.3f", Math.max(0, this.lastCaptured - this.firstCaptured) / 1e9) + "s of capture");
+        logger.info(String.format("Throughput: %.0f packets/s, %.1f Mbit/s", this.packets / seconds,
+                                  this.bytes * 8 / seconds / 1e6));
+
+        StageTimer process = this.pipeline.processTimes();
+        StageTimer dump = this.pipeline.dumpTimes();
+        long allocated = 0;
+        // The capture thread both reads and offers, so its allocation is reported with the reads
+        for (StageTimer stage : new StageTimer[]{this.readTimer, this.offerTimer, process, dump}) {
+            if (stage == null) {
+                continue;
+            }
+            logger.info("Stage " + stage);
+            allocated += Math.max(0, stage.allocated());
+        }
+        logger.info("Allocated " + (allocated >> 10) + " KiB, " + (this.packets > 0 ? allocated / this.packets : 0)
+                    + " B/packet");
+        logger.info("GC: " + this.gcCount + " collections, " + this.gcMillis + "ms");
+    }
+
+    /**
+     * Park until a packet is due. {@link LockSupport#parkNanos(long)} may return early, so this loops.
+     */
+    private static void pace(long due) {
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    /**
+     * Add the collectors' counts times {@code sign}, so the second call leaves the difference.
+     */
+    private void collectGc(int sign) {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            this.gcCount += sign * Math.max(0, collector.getCollectionCount());
+            this.gcMillis += sign * Math.max(0, collector.getCollectionTime());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package edu.trevecca.flare.collector;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Latency and allocation of one stage of the capture pipeline, for the replay report.
+ * <p>
+ * A timer is written by a single thread. Timers of threads doing the same stage are combined with
+ * {@link #addAll(StageTimer)} once those threads are done.
+ */
+class StageTimer {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final String stage;
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+    /**
+     * Bytes the owning thread had allocated at the first sample, {@code -1} before that or if it can't be measured.
+     */
+    private long allocationBase = -1;
+    private long allocated;
+
+    /**
+     * Constructor.
+     *
+     * @param stage name of the stage in the report
+     */
+    StageTimer(String stage) {
+        this.stage = stage;
+    }
+
+    /**
+     * @param nanos time taken by one pass through the stage
+     */
+    void record(long nanos) {
+        this.count++;
+        this.totalNanos += nanos;
+        if (nanos > this.maxNanos) {
+            this.maxNanos = nanos;
+        }
+    }
+
+    /**
+     * Update the bytes allocated by the calling thread since its first call.
+     */
+    void sampleAllocation() {
+        long bytes = threadAllocatedBytes();
+        if (bytes < 0) {
+            return;
+        }
+        if (this.allocationBase < 0) {
+            this.allocationBase = bytes;
+        }
+        this.allocated = bytes - this.allocationBase;
+    }
+
+    /**
+     * Add another thread's timings of the same stage.
+     */
+    void addAll(StageTimer other) {
+        this.count += other.count;
+        this.totalNanos += other.totalNanos;
+        this.maxNanos = Math.max(this.maxNanos, other.maxNanos);
+        if (other.allocationBase >= 0) {
+            this.allocationBase = Math.max(0, this.allocationBase);
+            this.allocated += other.allocated;
+        }
+    }
+
+    long count() {
+        return this.count;
+    }
+
+    /**
+     * @return bytes allocated by the stage's threads, {@code -1} if not measured
+     */
+    long allocated() {
+        return this.allocationBase < 0 ? -1 : this.allocated;
+    }
+
+    @Override public String toString() {
+        StringBuilder summary = new StringBuilder(this.stage).append(": ").append(this.count).append(" passes");
+        if (this.count > 0) {
+            summary.append(String.format(", mean %.3fus, max %.3fus", this.totalNanos / 1e3 / this.count,
+                                         this.maxNanos / 1e3));
+        }
+        if (allocated() >= 0) {
+            summary.append(", allocated ").append(allocated() >> 10).append(" KiB");
+            if (this.count > 0) {
+                summary.append(" (").append(allocated() / this.count).append(" B/pass)");
+            }
+        }
+        return summary.toString();
+    }
+
+    /**
+     * @return bytes allocated by the calling thread, {@code -1} if the JVM can't tell
+     */
+    private static long threadAllocatedBytes() {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,275 @@
+package edu.trevecca.flare.collector;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import edu.trevecca.flare.core.logging.Logging;
+import edu.trevecca.flare.core.metrics.LatencyHistogram;
+import edu.trevecca.flare.core.metrics.MetricsRegistry;
+import edu.trevecca.flare.core.sketch.HeavyHitters;
+import edu.trevecca.flare.core.sketch.HyperLogLog;
+import edu.trevecca.flare.core.sketch.SketchBounds;
+import edu.trevecca.flare.core.stats.TrafficTable;
+import edu.trevecca.flare.core.transfer.PacketDumpRedisMessage;
+import java.net.Inet4Address;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Serialises and publishes closed stats windows off the capture path.
+ * <p>
+ * When a {@link CaptureWorker} reads a window marker it swaps in a spare {@link WindowShard} from {@link #acquire()} and
+ * passes the retired one to {@link #retire(int, long, WindowShard)}, so the worker never waits on a dump. Once every worker
+ * has retired its shard for a window, the shards are merged and published on the dump thread, then cleared and returned to
+ * the spare pool for reuse.
+ */
+class WindowDumper {
+
+    private static final Logger logger = Logging.getLogger("Dumper");
+    /**
+     * Time to merge and publish a window, once every worker has retired it.
+     */
+    private static final LatencyHistogram dumpTime = MetricsRegistry.global().histogram("collector.dump");
+
+    private final int workers;
+    private final int statsWindow;
+    private final PacketDumpRedisMessage.Format format;
+    private final Counting counting;
+    /**
+     * Rings feeding each worker, indexed by shard and then by producer.
+     */
+    private final FrameRing[][] rings;
+    private final LongSupplier kernelDropped;
+    /**
+     * Times every dump when replaying, {@code null} otherwise. Only touched on the dump thread.
+     */
+    private final StageTimer timer;
+    /**
+     * Kernel drop count at the previous dump.
+     */
+    private long lastKernelDropped;
+    /**
+     * Cleared shards ready to be swapped in by workers.
+     */
+    private final ConcurrentLinkedQueue<WindowShard> spares = new ConcurrentLinkedQueue<>();
+    /**
+     * Single thread which owns everything below.
+     */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "window-dumper");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Retired shards of windows which are still waiting on some workers, keyed by window start.
+     */
+    private final Map<Long, WindowShard[]> pending = new HashMap<>();
+    /**
+     * Reused to combine worker shards into a single table per direction for the dump.
+     */
+    private final TrafficTable outbound = new TrafficTable();
+    private final TrafficTable inbound = new TrafficTable();
+    /**
+     * Reused to pick the overall top hosts from every worker's top hosts.
+     */
+    private final TrafficTable candidates = new TrafficTable();
+    /**
+     * Reused to combine the workers' distinct hosts.
+     */
+    private final HyperLogLog outboundHosts;
+    private final HyperLogLog inboundHosts;
+
+    /**
+     * Constructor.
+     *
+     * @param workers       number of workers retiring shards for each window
+     * @param statsWindow   time between dumps, in seconds
+     * @param format        wire format to publish dumps in
+     * @param counting      how workers count traffic
+     * @param rings         rings feeding each worker, indexed by shard and then by producer, used to report queue stats
+     * @param kernelDropped reads the number of packets dropped before capture
+     * @param timer         records the time and allocation of each dump, {@code null} to skip timing
+     */
+    WindowDumper(int workers, int statsWindow, PacketDumpRedisMessage.Format format, Counting counting, FrameRing[][] rings,
+                 LongSupplier kernelDropped, StageTimer timer) {
+        this.workers = workers;
+        this.statsWindow = statsWindow;
+        this.format = format;
+        this.counting = counting;
+        this.rings = rings;
+        this.kernelDropped = kernelDropped;
+        this.timer = timer;
+        this.outboundHosts = counting.newHostCounter();
+        this.inboundHosts = counting.newHostCounter();
+        // One spare per worker makes the state double buffered
+        for (int i = 0; i < workers; i++) {
+            this.spares.add(new WindowShard(counting));
+        }
+    }
+
+    /**
+     * Get an empty shard to count the next window into.
+     *
+     * @return a recycled shard, or a new one if the dump thread has fallen behind
+     */
+    WindowShard acquire() {
+        WindowShard shard = this.spares.poll();
+        return shard != null ? shard : new WindowShard(this.counting);
+    }
+
+    /**
+     * Hand over a worker's shard for a closed window. Never blocks.
+     *
+     * @param worker      index of the worker retiring the shard
+     * @param windowStart start of the closed window, in epoch milliseconds
+     * @param shard       the worker's state for that window, which it must no longer touch
+     */
+    void retire(int worker, long windowStart, WindowShard shard) {
+        this.executor.execute(() -> {
+            WindowShard[] shards = this.pending.computeIfAbsent(windowStart, k -> new WindowShard[this.workers]);
+            shards[worker] = shard;
+            for (WindowShard retired : shards) {
+                if (retired == null) {
+                    return;
+                }
+            }
+            this.pending.remove(windowStart);
+            if (this.timer != null) {
+                this.timer.sampleAllocation();
+            }
+            long started = System.nanoTime();
+            dump(windowStart, shards);
+            long took = System.nanoTime() - started;
+            dumpTime.record(took);
+            if (this.timer != null) {
+                this.timer.record(took);
+                this.timer.sampleAllocation();
+            }
+        });
+    }
+
+    /**
+     * Wait for every retired window to be published and stop the dump thread.
+     */
+    void shutdown() throws InterruptedException {
+        this.executor.shutdown();
+        this.executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private void dump(long windowStart, WindowShard[] shards) {
+        Multimap<String, Inet4Address> dns = HashMultimap.create();
+        int badNets = 0;
+        SketchBounds outboundSketch = null;
+        SketchBounds inboundSketch = null;
+        if (this.counting.sketched()) {
+            outboundSketch = mergeTop(shards, true, this.outbound);
+            inboundSketch = mergeTop(shards, false, this.inbound);
+        }
+        for (WindowShard shard : shards) {
+            if (!this.counting.sketched()) {
+                shard.outbound.forEach(this.outbound::add);
+                shard.inbound.forEach(this.inbound::add);
+            }
+            this.outboundHosts.addAll(shard.outboundHosts);
+            this.inboundHosts.addAll(shard.inboundHosts);
+            dns.putAll(shard.dns);
+            badNets += shard.badNets;
+            shard.clear();
+            this.spares.add(shard);
+        }
+
+        logStats();
+        logger.info("Distinct hosts: " + this.outboundHosts.estimate() + " outbound, " + this.inboundHosts.estimate()
+                    + " inbound");
+        if (outboundSketch != null) {
+            logger.info("Outbound: " + outboundSketch);
+            logger.info("Inbound: " + inboundSketch);
+        }
+        try {
+            StatsUtils.dumpStats(PacketDumpRedisMessage.builder(Instant.ofEpochMilli(windowStart), this.statsWindow,
+                                                                this.outbound, this.inbound)
+                                                       .dnsResolutions(dns)
+                                                       .badNets(badNets)
+                                                       .format(this.format)
+                                                       .sketches(outboundSketch, inboundSketch)
+                                                       .hosts(this.outboundHosts, this.inboundHosts));
+        }
+        catch (Exception ex) {
+            logger.severe("Failed to dump stats window!");
+            ex.printStackTrace();
+        }
+        this.outbound.clear();
+        this.inbound.clear();
+        this.outboundHosts.clear();
+        this.inboundHosts.clear();
+    }
+
+    /**
+     * Pick the overall top hosts of one direction from every worker's top hosts. Workers own disjoint sets of hosts, so
+     * every host in the overall top K is in its worker's top K.
+     *
+     * @param shards   retired shards of the window
+     * @param outbound which direction to merge
+     * @param into     table to put the top hosts in
+     * @return error bounds of the merged hosts
+     */
+    private SketchBounds mergeTop(WindowShard[] shards, boolean outbound, TrafficTable into) {
+        long totalBytes = 0;
+        long totalPackets = 0;
+        long maxError = 0;
+        long threshold = 0;
+        double failure = 0;
+        for (WindowShard shard : shards) {
+            HeavyHitters top = (HeavyHitters) (outbound ? shard.outbound : shard.inbound);
+            top.forEach(this.candidates::add);
+            totalBytes += top.totalBytes();
+            totalPackets += top.totalPackets();
+            maxError = Math.max(maxError, top.maxError());
+            threshold = Math.max(threshold, top.threshold());
+            // Union bound over the workers' sketches
+            failure += 1 - top.confidence();
+        }
+
+        int[] slots = this.candidates.slotsByBytes();
+        int keep = Math.min(this.counting.topK(), slots.length);
+        for (int i = 0; i < keep; i++) {
+            into.add(this.candidates.address(slots[i]), this.candidates.bytes(slots[i]), this.candidates.packets(slots[i]));
+        }
+        if (keep < slots.length) {
+            // Nothing left out can have more than the largest host which didn't make the cut
+            threshold = Math.max(threshold, this.candidates.bytes(slots[keep]));
+        }
+        this.candidates.clear();
+
+        return new SketchBounds(this.counting.topK(), totalBytes, totalPackets, maxError, threshold,
+                                Math.max(0, 1 - failure));
+    }
+
+    private void logStats() {
+        long dropped = this.kernelDropped.getAsLong();
+        logger.info("Kernel dropped: " + (dropped - this.lastKernelDropped));
+        this.lastKernelDropped = dropped;
+        long depth = 0;
+        long capacity = 0;
+        long ringDropped = 0;
+        StringBuilder backlog = new StringBuilder("Worker backlog:");
+        for (int i = 0; i < this.rings.length; i++) {
+            long workerDepth = 0;
+            for (FrameRing ring : this.rings[i]) {
+                workerDepth += ring.depth();
+                capacity += ring.capacity();
+                ringDropped += ring.drainDropped();
+            }
+            depth += workerDepth;
+            backlog.append(' ').append(i).append('=').append(workerDepth);
+        }
+        logger.info("Ring depth: " + depth + "/" + capacity + ", dropped: " + ringDropped);
+        logger.info(backlog.toString());
+    }
+}
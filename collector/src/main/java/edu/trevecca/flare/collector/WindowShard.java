@@ -0,0 +1,60 @@
+package edu.trevecca.flare.collector;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import edu.trevecca.flare.core.sketch.HyperLogLog;
+import edu.trevecca.flare.core.stats.TrafficCounter;
+import java.net.Inet4Address;
+
+/**
+ * The part of a stats window owned by a single {@link CaptureWorker}. Only the owning worker writes to a shard while the
+ * window is open, so none of this needs locking.
+ */
+class WindowShard {
+
+    /**
+     * Traffic which is heading out of the network.
+     */
+    final TrafficCounter outbound;
+    /**
+     * Traffic which is heading in to the network.
+     */
+    final TrafficCounter inbound;
+    /**
+     * Distinct hosts of each direction.
+     */
+    final HyperLogLog outboundHosts;
+    final HyperLogLog inboundHosts;
+    /**
+     * Map of domain -> resolved IPs. Only filled in by the worker which handles DNS.
+     */
+    final Multimap<String, Inet4Address> dns = HashMultimap.create();
+    /**
+     * The number of packets received which do not match the inbound or outbound discard check.
+     */
+    int badNets;
+
+    /**
+     * Constructor.
+     *
+     * @param counting how to count traffic in each direction
+     */
+    WindowShard(Counting counting) {
+        this.outbound = counting.newCounter();
+        this.inbound = counting.newCounter();
+        this.outboundHosts = counting.newHostCounter();
+        this.inboundHosts = counting.newHostCounter();
+    }
+
+    /**
+     * Empty the shard for the next window, keeping allocated memory.
+     */
+    void clear() {
+        this.outbound.clear();
+        this.inbound.clear();
+        this.outboundHosts.clear();
+        this.inboundHosts.clear();
+        this.dns.clear();
+        this.badNets = 0;
+    }
+}
@@ -0,0 +1,403 @@
+package edu.trevecca.flare.core.journal;
+
+import edu.trevecca.flare.core.logging.Logging;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only queue of messages in memory-mapped segment files, which survives a restart.
+ * <p>
+ * Messages are appended to the newest segment and read back in order from the oldest. Reading only moves a cursor;
+ * a message is gone once it is {@link #commit()}ted, and {@link #rewind()} goes back to the first message which
+ * wasn't. Each segment starts with the offset of its first uncommitted message, so a restart picks up where the last run
+ * left off. Segments are deleted once everything in them is committed. When the journal would grow past its size limit
+ * the oldest segment is thrown away.
+ * <p>
+ * Writes reach the page cache straight away, which is enough to survive the process dying. {@link #sync()} flushes them
+ * to disk, so callers can decide how many writes share one flush.
+ * <p>
+ * Records are {@code [length][crc32][channel length][channel][body]}. A record with a zero length or a bad checksum
+ * ends its segment, which is how a write torn by a crash is found.
+ * <p>
+ * Not thread safe.
+ */
+public class SegmentJournal implements AutoCloseable {
+
+    private static final Logger logger = Logging.getLogger("Journal");
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".seg";
+    /**
+     * Committed offset stored at the start of every segment.
+     */
+    private static final int HEADER = 8;
+    /**
+     * Length and checksum before every record.
+     */
+    private static final int RECORD_HEADER = 8;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long maxBytes;
+    /**
+     * Oldest first, the last one is appended to.
+     */
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    /**
+     * Position of the read cursor, which is at or after the first segment's committed offset.
+     */
+    private Segment readSegment;
+    private int readOffset;
+    /**
+     * Messages which were not committed yet.
+     */
+    private long pending;
+    private long dropped;
+    private long nextSequence;
+    /**
+     * Changed whenever messages which were read may have been dropped or will be read again, see {@link #epoch()}.
+     */
+    private long epoch;
+
+    /**
+     * Constructor, recovers the segments left in {@code directory} by an earlier run.
+     *
+     * @param directory    where segments are kept
+     * @param segmentBytes size of each segment, larger messages get a segment of their own
+     * @param maxBytes     total size of every segment before the oldest one is thrown away
+     */
+    public SegmentJournal(Path directory, long segmentBytes, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        // Sequence numbers are zero padded, so name order is age order
+        Collections.sort(files);
+        for (Path file : files) {
+            Segment segment = Segment.recover(file, sequenceOf(file));
+            this.nextSequence = segment.sequence + 1;
+            if (segment.records == 0) {
+                segment.delete();
+                continue;
+            }
+            this.segments.add(segment);
+            this.pending += segment.records;
+        }
+        if (this.pending > 0) {
+            logger.info("Recovered " + this.pending + " uncommitted entries from " + directory);
+        }
+        rewind();
+    }
+
+    /**
+     * Add a message at the end of the journal.
+     */
+    public void append(String channel, byte[] body) throws IOException {
+        byte[] channelBytes = channel.getBytes(StandardCharsets.UTF_8);
+        int length = 4 + channelBytes.length + body.length;
+
+        Segment tail = this.segments.peekLast();
+        if (tail == null || tail.remaining() < RECORD_HEADER + length) {
+            tail = roll(RECORD_HEADER + length);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(channelBytes);
+        crc.update(body);
+        MappedByteBuffer buffer = tail.buffer;
+        int start = tail.writeOffset;
+        buffer.position(start + 4);
+        buffer.putInt((int) crc.getValue()).putInt(channelBytes.length).put(channelBytes).put(body);
+        // The length goes last, so a torn write reads as the end of the segment
+        buffer.putInt(start, length);
+        tail.writeOffset = buffer.position();
+        tail.dirty = true;
+        tail.records++;
+        this.pending++;
+        if (this.readSegment == null) {
+            rewind();
+        }
+    }
+
+    /**
+     * @return whether a message is waiting past the read cursor
+     */
+    public boolean hasNext() {
+        return this.readSegment != null && (this.readOffset < this.readSegment.writeOffset
+                                            || this.readSegment != this.segments.peekLast());
+    }
+
+    /**
+     * Read the message at the read cursor and move past it. It stays in the journal until {@link #commit()}ted.
+     *
+     * @return the message
+     */
+    public Entry next() {
+        if (this.readOffset >= this.readSegment.writeOffset) {
+            this.readSegment = following(this.readSegment);
+            this.readOffset = HEADER;
+        }
+        MappedByteBuffer buffer = this.readSegment.buffer;
+        int length = buffer.getInt(this.readOffset);
+        byte[] channel = new byte[buffer.getInt(this.readOffset + RECORD_HEADER)];
+        byte[] body = new byte[length - 4 - channel.length];
+        buffer.position(this.readOffset + RECORD_HEADER + 4);
+        buffer.get(channel).get(body);
+        this.readOffset += RECORD_HEADER + length;
+        return new Entry(new String(channel, StandardCharsets.UTF_8), body);
+    }
+
+    /**
+     * Messages read in an earlier epoch must not be {@link #commit()}ted, the journal has moved on without them.
+     *
+     * @return current epoch
+     */
+    public long epoch() {
+        return this.epoch;
+    }
+
+    /**
+     * Drop the oldest uncommitted message, which must have been read in the current {@link #epoch()}.
+     */
+    public void commit() {
+        trimHead();
+        Segment head = this.segments.peekFirst();
+        int committed = head.committed() + RECORD_HEADER + head.buffer.getInt(head.committed());
+        head.buffer.putLong(0, committed);
+        head.dirty = true;
+        head.records--;
+        this.pending--;
+        trimHead();
+    }
+
+    /**
+     * Flush everything appended or committed since the last call to disk.
+     */
+    public void sync() {
+        for (Segment segment : this.segments) {
+            if (segment.dirty) {
+                segment.buffer.force();
+                segment.dirty = false;
+            }
+        }
+    }
+
+    /**
+     * Move the read cursor back to the oldest uncommitted message, so everything read since is read again.
+     */
+    public void rewind() {
+        this.epoch++;
+        this.readSegment = this.segments.peekFirst();
+        this.readOffset = this.readSegment != null ? this.readSegment.committed() : HEADER;
+    }
+
+    /**
+     * @return number of messages not committed yet
+     */
+    public long pending() {
+        return this.pending;
+    }
+
+    /**
+     * @return number of messages thrown away to stay under the size limit
+     */
+    public long dropped() {
+        return this.dropped;
+    }
+
+    /**
+     * Flush every segment to disk and unmap them. Segments are deleted instead if nothing is left in them.
+     */
+    @Override public void close() {
+        sync();
+        if (this.pending == 0) {
+            this.segments.forEach(Segment::delete);
+        }
+        this.segments.clear();
+        this.readSegment = null;
+    }
+
+    /**
+     * Start a new segment, throwing away the oldest ones if the journal would grow too large.
+     */
+    private Segment roll(int needed) throws IOException {
+        long size = Math.max(this.segmentBytes, HEADER + needed);
+        sync();
+        while (!this.segments.isEmpty() && totalBytes() + size > this.maxBytes) {
+            Segment oldest = this.segments.removeFirst();
+            this.dropped += oldest.records;
+            this.pending -= oldest.records;
+            logger.warning("Journal is full, dropped " + oldest.records + " uncommitted entries");
+            oldest.delete();
+            // Anything read so far was in the oldest segment
+            rewind();
+        }
+        Path file = this.directory.resolve(String.format("%s%020d%s", PREFIX, this.nextSequence, SUFFIX));
+        Segment segment = Segment.create(file, this.nextSequence++, size);
+        this.segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Delete fully committed segments from the front, except the one being appended to.
+     */
+    private void trimHead() {
+        Segment head;
+        while ((head = this.segments.peekFirst()) != null && head.records == 0 && head != this.segments.peekLast()) {
+            this.segments.removeFirst();
+            if (this.readSegment == head) {
+                this.readSegment = this.segments.peekFirst();
+                this.readOffset = this.readSegment.committed();
+            }
+            head.delete();
+        }
+    }
+
+    private long totalBytes() {
+        long total = 0;
+        for (Segment segment : this.segments) {
+            total += segment.buffer.capacity();
+        }
+        return total;
+    }
+
+    private Segment following(Segment segment) {
+        boolean found = false;
+        for (Segment candidate : this.segments) {
+            if (found) {
+                return candidate;
+            }
+            found = candidate == segment;
+        }
+        throw new IllegalStateException("No segment after " + segment.file);
+    }
+
+    private static long sequenceOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private static class Segment {
+
+        private final Path file;
+        private final long sequence;
+        private final MappedByteBuffer buffer;
+        private int writeOffset = HEADER;
+        /**
+         * Whether the segment changed since it was last flushed to disk.
+         */
+        private boolean dirty;
+        /**
+         * Uncommitted records.
+         */
+        private int records;
+
+        private Segment(Path file, long sequence, MappedByteBuffer buffer) {
+            this.file = file;
+            this.sequence = sequence;
+            this.buffer = buffer;
+        }
+
+        static Segment create(Path file, long sequence, long size) throws IOException {
+            Segment segment = new Segment(file, sequence, map(file, size));
+            segment.buffer.putLong(0, HEADER);
+            return segment;
+        }
+
+        /**
+         * Map an existing segment and find its end and number of uncommitted records.
+         */
+        static Segment recover(Path file, long sequence) throws IOException {
+            Segment segment = new Segment(file, sequence, map(file, Files.size(file)));
+            MappedByteBuffer buffer = segment.buffer;
+            long committed = buffer.capacity() >= HEADER ? buffer.getLong(0) : 0;
+            int offset = HEADER;
+            while (offset + RECORD_HEADER <= buffer.capacity()) {
+                int length = buffer.getInt(offset);
+                if (length <= 0 || offset + RECORD_HEADER + length > buffer.capacity() || !valid(buffer, offset, length)) {
+                    break;
+                }
+                if (offset >= committed) {
+                    segment.records++;
+                }
+                offset += RECORD_HEADER + length;
+            }
+            segment.writeOffset = offset;
+            if (committed < HEADER || committed > offset) {
+                buffer.putLong(0, HEADER);
+            }
+            return segment;
+        }
+
+        int committed() {
+            return (int) this.buffer.getLong(0);
+        }
+
+        int remaining() {
+            return this.buffer.capacity() - this.writeOffset;
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(this.file);
+            }
+            catch (IOException ex) {
+                logger.warning("Failed to delete journal segment " + this.file + ": " + ex);
+            }
+        }
+
+        private static boolean valid(MappedByteBuffer buffer, int offset, int length) {
+            CRC32 crc = new CRC32();
+            for (int i = offset + RECORD_HEADER + 4; i < offset + RECORD_HEADER + length; i++) {
+                crc.update(buffer.get(i));
+            }
+            return (int) crc.getValue() == buffer.getInt(offset + 4);
+        }
+
+        private static MappedByteBuffer map(Path file, long size) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                        StandardOpenOption.WRITE)) {
+                // The mapping stays valid once the channel is closed
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+    }
+
+    /**
+     * A message and the channel it is for.
+     */
+    public static class Entry {
+
+        private final String channel;
+        private final byte[] body;
+
+        public Entry(String channel, byte[] body) {
+            this.channel = channel;
+            this.body = body;
+        }
+
+        public String channel() {
+            return this.channel;
+        }
+
+        public byte[] body() {
+            return this.body;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package edu.trevecca.flare.core.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count of events which only goes up. Cheap to update from many threads at once.
+ */
+public class Counter {
+
+    private final LongAdder count = new LongAdder();
+
+    public void increment() {
+        this.count.increment();
+    }
+
+    public void add(long amount) {
+        this.count.add(amount);
+    }
+
+    /**
+     * @return total counted since the counter was created
+     */
+    public long count() {
+        return this.count.sum();
+    }
+}
@@ -0,0 +1,10 @@
+package edu.trevecca.flare.core.metrics;
+
+/**
+ * Value read on demand when metrics are exported, such as a queue depth. Must be safe to call from any thread.
+ */
+@FunctionalInterface
+public interface Gauge {
+
+    double value();
+}
@@ -0,0 +1,127 @@
+package edu.trevecca.flare.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations, in nanoseconds, with a fixed relative error.
+ * <p>
+ * Buckets are laid out like an HDR histogram: each power of two is split into {@value #SUB_BUCKETS} linear sub-buckets,
+ * so a recorded value is known to within about 3% whatever its magnitude. Recording is a couple of shifts and one atomic
+ * increment, with no allocation, so it can sit on a per-packet path. The whole histogram takes about 15 KiB.
+ * <p>
+ * Values accumulate from creation; nothing is reset when they are exported.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Sub-buckets per power of two, must be a power of two itself.
+     */
+    private static final int SUB_BUCKETS = 32;
+    private static final int SUB_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+    /**
+     * Values below {@link #SUB_BUCKETS} get a bucket each, then one row of sub-buckets per power of two up to
+     * {@code 2^62}.
+     */
+    private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record one duration.
+     *
+     * @param nanos duration in nanoseconds, negative values count as {@code 0}
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        this.counts.incrementAndGet(bucket(value));
+        this.sum.add(value);
+        long current;
+        while (value > (current = this.max.get())) {
+            if (this.max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Record the time since {@code startNanos}, a value of {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return number of recorded durations
+     */
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += this.counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return sum of every recorded duration, in nanoseconds
+     */
+    public long sum() {
+        return this.sum.sum();
+    }
+
+    /**
+     * @return longest recorded duration, in nanoseconds
+     */
+    public long max() {
+        return this.max.get();
+    }
+
+    /**
+     * Estimate a quantile of the recorded durations, as the upper end of the bucket it falls in.
+     *
+     * @param quantile quantile in {@code [0, 1]}
+     * @return duration in nanoseconds, {@code 0} if nothing was recorded
+     */
+    public long quantile(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = this.counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(1, Math.max(0, quantile)) * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max());
+            }
+        }
+        return max();
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        return ((long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS)) + width - 1;
+    }
+}
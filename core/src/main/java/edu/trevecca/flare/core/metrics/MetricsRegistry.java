@@ -0,0 +1,93 @@
+package edu.trevecca.flare.core.metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Named counters, gauges and latency histograms of a service, read by the exporters.
+ * <p>
+ * Names are dotted lower case, such as {@code collector.packets}. Asking for a metric which already exists returns the
+ * existing one, so code which records a metric can look it up once into a field and never touch the registry again.
+ * Every service uses the {@link #global()} registry.
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry GLOBAL = new MetricsRegistry();
+
+    private final SortedMap<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private final SortedMap<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+    private final SortedMap<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+
+    /**
+     * @return the registry shared by everything in this JVM
+     */
+    public static MetricsRegistry global() {
+        return GLOBAL;
+    }
+
+    public Counter counter(String name) {
+        return this.counters.computeIfAbsent(name, k -> new Counter());
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return this.histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    /**
+     * Register a gauge, replacing any gauge of the same name.
+     */
+    public void gauge(String name, Gauge gauge) {
+        this.gauges.put(name, gauge);
+    }
+
+    /**
+     * Register gauges for the JVM's heap, threads and garbage collection.
+     */
+    public void registerJvm() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        gauge("jvm.heap.used", () -> memory.getHeapMemoryUsage().getUsed());
+        gauge("jvm.heap.committed", () -> memory.getHeapMemoryUsage().getCommitted());
+        gauge("jvm.threads", threads::getThreadCount);
+        gauge("jvm.gc.count", () -> {
+            long count = 0;
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, collector.getCollectionCount());
+            }
+            return count;
+        });
+        gauge("jvm.gc.millis", () -> {
+            long millis = 0;
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                millis += Math.max(0, collector.getCollectionTime());
+            }
+            return millis;
+        });
+    }
+
+    /**
+     * @return every counter by name, in name order
+     */
+    public SortedMap<String, Counter> counters() {
+        return Collections.unmodifiableSortedMap(this.counters);
+    }
+
+    /**
+     * @return every gauge by name, in name order
+     */
+    public SortedMap<String, Gauge> gauges() {
+        return Collections.unmodifiableSortedMap(this.gauges);
+    }
+
+    /**
+     * @return every histogram by name, in name order
+     */
+    public SortedMap<String, LatencyHistogram> histograms() {
+        return Collections.unmodifiableSortedMap(this.histograms);
+    }
+}
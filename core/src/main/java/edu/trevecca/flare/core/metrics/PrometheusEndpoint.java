@@ -0,0 +1,91 @@
+package edu.trevecca.flare.core.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves a {@link MetricsRegistry} over HTTP at {@code /metrics}, in the Prometheus text format.
+ * <p>
+ * Counters become {@code flare_<name>_total}, gauges {@code flare_<name>} and histograms are summaries in seconds,
+ * {@code flare_<name>_seconds}, with dots and dashes in names turned into underscores.
+ */
+public class PrometheusEndpoint implements AutoCloseable {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final MetricsRegistry registry;
+    private final HttpServer server;
+
+    /**
+     * Constructor, starts serving.
+     *
+     * @param port     port to listen on, on every interface
+     * @param registry metrics to serve
+     */
+    public PrometheusEndpoint(int port, MetricsRegistry registry) throws IOException {
+        this.registry = registry;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.createContext("/metrics", this::handle);
+        this.server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        this.server.start();
+    }
+
+    /**
+     * @return the registry's current values in the Prometheus text format
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        this.registry.counters().forEach((name, counter) -> {
+            String metric = metricName(name) + "_total";
+            out.append("# TYPE ").append(metric).append(" counter\n");
+            out.append(metric).append(' ').append(counter.count()).append('\n');
+        });
+        this.registry.gauges().forEach((name, gauge) -> {
+            String metric = metricName(name);
+            out.append("# TYPE ").append(metric).append(" gauge\n");
+            out.append(metric).append(' ').append(gauge.value()).append('\n');
+        });
+        this.registry.histograms().forEach((name, histogram) -> {
+            String metric = metricName(name) + "_seconds";
+            out.append("# TYPE ").append(metric).append(" summary\n");
+            for (double quantile : QUANTILES) {
+                out.append(metric).append("{quantile=\"").append(quantile).append("\"} ")
+                   .append(histogram.quantile(quantile) / 1e9).append('\n');
+            }
+            out.append(metric).append("_sum ").append(histogram.sum() / 1e9).append('\n');
+            out.append(metric).append("_count ").append(histogram.count()).append('\n');
+        });
+        return out.toString();
+    }
+
+    @Override public void close() {
+        this.server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private static String metricName(String name) {
+        return "flare_" + name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+}
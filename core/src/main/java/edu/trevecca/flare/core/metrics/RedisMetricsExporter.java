@@ -0,0 +1,117 @@
+package edu.trevecca.flare.core.metrics;
+
+import edu.trevecca.flare.core.logging.Logging;
+import edu.trevecca.flare.core.redis.Redis;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Periodically copies a {@link MetricsRegistry} into a Redis hash, one field per value.
+ * <p>
+ * Counters and gauges are written under their own name. Each histogram is written as {@code <name>.count} plus its mean,
+ * quantiles and maximum in microseconds, such as {@code <name>.p99-us}. Everything is cumulative since the service started.
+ */
+public class RedisMetricsExporter implements AutoCloseable {
+
+    private static final Logger logger = Logging.getLogger("Metrics");
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private final Redis redis;
+    private final MetricsRegistry registry;
+    private final String hash;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-export");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Whether the last export failed, so failures are only logged when they start.
+     */
+    private boolean failing;
+
+    /**
+     * Constructor, starts exporting.
+     *
+     * @param redis           connection to write with
+     * @param registry        metrics to export
+     * @param hash            key of the Redis hash to write
+     * @param intervalSeconds time between exports
+     */
+    public RedisMetricsExporter(Redis redis, MetricsRegistry registry, String hash, int intervalSeconds) {
+        this.redis = redis;
+        this.registry = registry;
+        this.hash = hash;
+        this.executor.scheduleWithFixedDelay(this::export, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param service name of the service, such as {@code collector}
+     * @return hash key for the service on this host, {@code metrics:<service>:<hostname>}
+     */
+    public static String hashFor(String service) {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        }
+        catch (UnknownHostException ex) {
+            host = "unknown";
+        }
+        return "metrics:" + service + ":" + host;
+    }
+
+    /**
+     * @return every field of the hash and its current value
+     */
+    private static Map<String, String> fields(MetricsRegistry registry) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        registry.counters().forEach((name, counter) -> fields.put(name, Long.toString(counter.count())));
+        registry.gauges().forEach((name, gauge) -> fields.put(name, format(gauge.value())));
+        registry.histograms().forEach((name, histogram) -> {
+            long count = histogram.count();
+            fields.put(name + ".count", Long.toString(count));
+            fields.put(name + ".mean-us", micros(count > 0 ? histogram.sum() / count : 0));
+            for (int i = 0; i < QUANTILES.length; i++) {
+                fields.put(name + "." + QUANTILE_NAMES[i] + "-us", micros(histogram.quantile(QUANTILES[i])));
+            }
+            fields.put(name + ".max-us", micros(histogram.max()));
+        });
+        return fields;
+    }
+
+    /**
+     * Stop exporting, after a last export.
+     */
+    @Override public void close() {
+        this.executor.shutdownNow();
+        export();
+    }
+
+    private synchronized void export() {
+        try {
+            fields(this.registry).forEach((field, value) -> this.redis.hset(this.hash, field, value));
+            this.redis.hset(this.hash, "updated", Long.toString(System.currentTimeMillis()));
+            this.failing = false;
+        }
+        catch (Exception ex) {
+            if (!this.failing) {
+                logger.warning("Failed to export metrics to " + this.hash + ": " + ex);
+            }
+            this.failing = true;
+        }
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f", nanos / 1e3);
+    }
+}
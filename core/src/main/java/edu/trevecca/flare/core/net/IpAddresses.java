@@ -0,0 +1,93 @@
+package edu.trevecca.flare.core.net;
+
+/**
+ * Helpers for working with IPv4 addresses packed into a single {@code int} (network byte order, most significant octet
+ * first).
+ */
+public class IpAddresses {
+
+    private IpAddresses() {
+    }
+
+    /**
+     * Pack four address octets into an int.
+     *
+     * @param addr   array holding the address
+     * @param offset index of the first octet
+     * @return the packed address
+     */
+    public static int toInt(byte[] addr, int offset) {
+        return ((addr[offset] & 0xFF) << 24) | ((addr[offset + 1] & 0xFF) << 16) | ((addr[offset + 2] & 0xFF) << 8)
+               | (addr[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Pack a 4 byte address (as returned by {@link java.net.Inet4Address#getAddress()}) into an int.
+     *
+     * @param addr address octets
+     * @return the packed address
+     */
+    public static int toInt(byte[] addr) {
+        return toInt(addr, 0);
+    }
+
+    /**
+     * Format a packed address in dotted-quad form.
+     *
+     * @param address packed address
+     * @return the address as a string, e.g. {@code 172.16.0.1}
+     */
+    public static String toString(int address) {
+        return new StringBuilder(15)
+            .append(address >>> 24).append('.')
+            .append((address >>> 16) & 0xFF).append('.')
+            .append((address >>> 8) & 0xFF).append('.')
+            .append(address & 0xFF)
+            .toString();
+    }
+
+    /**
+     * Parse a dotted-quad address without going through {@link java.net.InetAddress}, which may attempt a DNS lookup.
+     *
+     * @param address to parse
+     * @return the packed address in the low 32 bits, or {@code -1} if the string is not a valid IPv4 literal
+     */
+    public static long parse(CharSequence address) {
+        int length = address.length();
+        if (length < 7 || length > 15) {
+            return -1;
+        }
+
+        long result = 0;
+        int octet = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i = 0; i < length; i++) {
+            char c = address.charAt(i);
+            if (c >= '0' && c <= '9') {
+                // Reject leading zeros, they are ambiguous (octal in some parsers)
+                if (digits == 1 && octet == 0) {
+                    return -1;
+                }
+                octet = octet * 10 + (c - '0');
+                if (++digits > 3 || octet > 255) {
+                    return -1;
+                }
+            }
+            else if (c == '.' && digits > 0 && dots < 3) {
+                result = (result << 8) | octet;
+                octet = 0;
+                digits = 0;
+                dots++;
+            }
+            else {
+                return -1;
+            }
+        }
+
+        if (dots != 3 || digits == 0) {
+            return -1;
+        }
+        return (result << 8) | octet;
+    }
+}
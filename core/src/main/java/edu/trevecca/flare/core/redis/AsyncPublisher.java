@@ -0,0 +1,358 @@
+package edu.trevecca.flare.core.redis;
+
+import edu.trevecca.flare.core.journal.SegmentJournal;
+import edu.trevecca.flare.core.logging.Logging;
+import edu.trevecca.flare.core.metrics.Counter;
+import edu.trevecca.flare.core.metrics.LatencyHistogram;
+import edu.trevecca.flare.core.metrics.MetricsRegistry;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Publishes messages without making the caller wait for Redis, and keeps them in a {@link SegmentJournal} while Redis is
+ * unreachable.
+ * <p>
+ * {@link #publish(RedisMessage)} only queues the message's {@link RedisMessage#payload()}. A single thread sends queued messages on an
+ * asynchronous connection, pipelining up to {@link PublishOptions#maxInFlight()} of them before waiting for
+ * acknowledgements. A message which fails or isn't acknowledged in time marks Redis as down: it is journaled, as is
+ * everything published after it, and the connection is retried with exponential backoff. Once Redis is back the journal
+ * is replayed in order at {@link PublishOptions#replayRate()}, and new messages keep going to the end of the journal until
+ * it is empty, so they can't overtake older ones.
+ * <p>
+ * Delivery is at least once. A message which Redis received but didn't acknowledge in time is sent again from the
+ * journal, and a message which fails while already in flight is journaled behind any sent after it.
+ */
+public class AsyncPublisher implements AutoCloseable {
+
+    private static final Logger logger = Logging.getLogger("Publisher");
+    private static final long POLL_MILLIS = 50;
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    /**
+     * Time from sending a message to Redis acknowledging it.
+     */
+    private static final LatencyHistogram ackTime = MetricsRegistry.global().histogram("redis.publish-ack");
+    private static final Counter journaled = MetricsRegistry.global().counter("redis.journaled");
+
+    private final RedisClient client;
+    private final PublishOptions options;
+    private final BlockingQueue<SegmentJournal.Entry> queue;
+    private final SegmentJournal journal;
+    /**
+     * Messages sent but not acknowledged, oldest first. Pipelined on one connection, so they complete in order.
+     */
+    private final Deque<InFlight> inFlight = new ArrayDeque<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    /**
+     * Copies of the journal's counters for other threads, the journal itself belongs to the publisher thread.
+     */
+    private volatile long journalPending;
+    private volatile long journalDropped;
+    private StatefulRedisConnection<String, byte[]> connection;
+    private RedisAsyncCommands<String, byte[]> commands;
+    private boolean up;
+    private long retryAt;
+    private long retryMillis = MIN_RETRY_MILLIS;
+    /**
+     * Earliest time the next journaled message may be sent, from {@link System#nanoTime()}.
+     */
+    private long nextReplay;
+
+    /**
+     * Constructor, recovers the journal and starts the publisher thread.
+     *
+     * @param client  client to connect with, which is shut down with the publisher
+     * @param options queueing and journaling options
+     */
+    AsyncPublisher(RedisClient client, PublishOptions options) throws IOException {
+        this.client = client;
+        this.options = options;
+        this.queue = new ArrayBlockingQueue<>(options.queueSize());
+        this.journal = new SegmentJournal(options.journalDirectory(), options.segmentBytes(), options.journalBytes());
+        this.journalPending = this.journal.pending();
+        MetricsRegistry.global().gauge("redis.journal.pending", () -> this.journalPending);
+        MetricsRegistry.global().gauge("redis.journal.dropped", () -> this.journalDropped);
+
+        this.thread = new Thread(this::run, "redis-publisher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue a message to be published. Only waits if the publisher thread has fallen {@link PublishOptions#queueSize()}
+     * messages behind.
+     */
+    public void publish(RedisMessage message) throws InterruptedException {
+        if (!this.running) {
+            logger.severe("Publisher is closed, dropping message on " + message.channel() + "!");
+            return;
+        }
+        this.queue.put(new SegmentJournal.Entry(message.channel(), message.payload()));
+    }
+
+    /**
+     * @return number of messages waiting in the journal
+     */
+    public long journaled() {
+        return this.journalPending;
+    }
+
+    /**
+     * Publish what is queued, wait for acknowledgements up to the timeout and journal anything left, then disconnect.
+     * If interrupted, disconnects without waiting and leaves the thread's interrupt status set.
+     */
+    @Override public void close() {
+        this.running = false;
+        try {
+            this.thread.join(this.options.timeoutMillis() + TimeUnit.SECONDS.toMillis(5));
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        this.client.shutdown();
+    }
+
+    private void run() {
+        connect();
+        List<SegmentJournal.Entry> batch = new ArrayList<>();
+        long stopAt = Long.MAX_VALUE;
+        try {
+            while (true) {
+                SegmentJournal.Entry message = this.queue.poll(pollMillis(), TimeUnit.MILLISECONDS);
+                if (message != null) {
+                    batch.add(message);
+                    this.queue.drainTo(batch);
+                }
+
+                reap();
+                if (!this.up && System.currentTimeMillis() >= this.retryAt) {
+                    retry();
+                }
+                boolean sent = false;
+                for (SegmentJournal.Entry queued : batch) {
+                    sent |= submit(queued);
+                }
+                batch.clear();
+                sent |= replay();
+                if (sent) {
+                    this.connection.flushCommands();
+                }
+                this.journalPending = this.journal.pending();
+                this.journalDropped = this.journal.dropped();
+
+                if (!this.running && this.queue.isEmpty()) {
+                    stopAt = Math.min(stopAt, System.currentTimeMillis() + this.options.timeoutMillis());
+                    if (this.inFlight.isEmpty() || System.currentTimeMillis() >= stopAt) {
+                        break;
+                    }
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception ex) {
+            logger.severe("Publisher failed!");
+            ex.printStackTrace();
+        }
+        finally {
+            // Whatever wasn't acknowledged is published on the next start
+            for (InFlight message : this.inFlight) {
+                if (message.epoch < 0) {
+                    journal(message.channel, message.body);
+                }
+            }
+            if (this.journal.pending() > 0) {
+                logger.warning("Stopping with " + this.journal.pending() + " messages journaled");
+            }
+            this.journal.close();
+            if (this.connection != null) {
+                this.connection.close();
+            }
+        }
+    }
+
+    /**
+     * Send a new message, or journal it if Redis is down or older messages are still journaled.
+     *
+     * @return whether the message was sent
+     */
+    private boolean submit(SegmentJournal.Entry message) {
+        if (!this.up || this.journal.pending() > 0 || this.inFlight.size() >= this.options.maxInFlight()) {
+            journal(message.channel(), message.body());
+            return false;
+        }
+        send(message.channel(), message.body(), -1);
+        return true;
+    }
+
+    /**
+     * Send journaled messages, as fast as the replay rate allows.
+     *
+     * @return whether anything was sent
+     */
+    private boolean replay() {
+        boolean sent = false;
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / this.options.replayRate());
+        while (this.up && this.journal.hasNext() && this.inFlight.size() < this.options.maxInFlight()
+               && System.nanoTime() >= this.nextReplay) {
+            SegmentJournal.Entry message = this.journal.next();
+            send(message.channel(), message.body(), this.journal.epoch());
+            // No bursts after an idle spell
+            this.nextReplay = Math.max(this.nextReplay, System.nanoTime() - interval) + interval;
+            sent = true;
+        }
+        return sent;
+    }
+
+    /**
+     * @param epoch journal epoch the message was read in, {@code -1} for a message which isn't journaled
+     */
+    private void send(String channel, byte[] body, long epoch) {
+        RedisFuture<Long> future = this.commands.publish(channel, body);
+        // Journaled messages are read back from the journal if they fail
+        this.inFlight.add(epoch < 0 ? new InFlight(channel, body, epoch, future) : new InFlight(null, null, epoch, future));
+    }
+
+    /**
+     * Handle acknowledged, failed and timed out messages from the front of the in flight queue.
+     */
+    private void reap() {
+        InFlight message;
+        while ((message = this.inFlight.peek()) != null) {
+            long waited = System.nanoTime() - message.sent;
+            if (message.future.isDone()) {
+                this.inFlight.poll();
+                if (message.future.isCancelled() || message.future.toCompletableFuture().isCompletedExceptionally()) {
+                    failed(message, message.future.getError());
+                    continue;
+                }
+                ackTime.record(waited);
+                if (message.epoch >= 0 && message.epoch == this.journal.epoch()) {
+                    this.journal.commit();
+                    if (this.journal.pending() == 0) {
+                        logger.info("Journal replayed");
+                    }
+                }
+                this.retryMillis = MIN_RETRY_MILLIS;
+            }
+            else if (waited > TimeUnit.MILLISECONDS.toNanos(this.options.timeoutMillis())) {
+                this.inFlight.poll();
+                message.future.cancel(true);
+                failed(message, "no acknowledgement after " + this.options.timeoutMillis() + "ms");
+            }
+            else {
+                return;
+            }
+        }
+    }
+
+    private void failed(InFlight message, String reason) {
+        if (message.epoch < 0) {
+            journal(message.channel, message.body);
+        }
+        if (!this.up) {
+            return;
+        }
+        logger.warning("Failed to publish, journaling messages until redis is back: " + reason);
+        down();
+        // Journaled messages sent since the last acknowledgement are sent again
+        this.journal.rewind();
+    }
+
+    private void down() {
+        this.up = false;
+        this.retryAt = System.currentTimeMillis() + this.retryMillis;
+        this.retryMillis = Math.min(this.retryMillis * 2, MAX_RETRY_MILLIS);
+    }
+
+    /**
+     * Try Redis again after it went down. The next message sent is the probe, if it fails Redis is marked down again.
+     */
+    private void retry() {
+        if (this.connection == null || !this.connection.isOpen()) {
+            if (this.connection != null) {
+                this.connection.close();
+            }
+            connect();
+            return;
+        }
+        this.up = true;
+        if (this.journal.pending() > 0) {
+            logger.info("Retrying redis, replaying " + this.journal.pending() + " journaled messages");
+        }
+    }
+
+    private void connect() {
+        try {
+            this.connection = this.client.connect(PayloadCodec.INSTANCE);
+            // Commands are flushed once per batch, which pipelines them
+            this.connection.setAutoFlushCommands(false);
+            this.commands = this.connection.async();
+            this.up = true;
+        }
+        catch (Exception ex) {
+            this.connection = null;
+            this.commands = null;
+            if (this.up || this.retryMillis == MIN_RETRY_MILLIS) {
+                logger.warning("Failed to connect to redis, journaling messages: " + ex);
+            }
+            down();
+        }
+    }
+
+    private void journal(String channel, byte[] body) {
+        try {
+            this.journal.append(channel, body);
+            journaled.increment();
+        }
+        catch (IOException ex) {
+            logger.severe("Failed to journal message on " + channel + ", dropping it!");
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * @return how long to wait for new messages, shorter while there is something else to do
+     */
+    private long pollMillis() {
+        if (!this.inFlight.isEmpty()) {
+            return 1;
+        }
+        if (this.up && this.journal.hasNext()) {
+            return Math.max(1, Math.min(POLL_MILLIS, TimeUnit.NANOSECONDS.toMillis(this.nextReplay - System.nanoTime())));
+        }
+        return POLL_MILLIS;
+    }
+
+    private static class InFlight {
+
+        /**
+         * {@code null} for journaled messages.
+         */
+        private final String channel;
+        private final byte[] body;
+        private final long epoch;
+        private final RedisFuture<Long> future;
+        private final long sent = System.nanoTime();
+
+        InFlight(String channel, byte[] body, long epoch, RedisFuture<Long> future) {
+            this.channel = channel;
+            this.body = body;
+            this.epoch = epoch;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package edu.trevecca.flare.core.redis;
+
+/**
+ * What a {@link HandlerDispatcher} does with a message which arrives while its queue is full.
+ */
+public enum Backpressure {
+    /**
+     * Wait for room in the queue. This stalls delivery to every other handler until the slow one catches up.
+     */
+    BLOCK,
+    /**
+     * Throw away the oldest queued message to make room.
+     */
+    DROP_OLDEST,
+    /**
+     * Append the message to a file on disk and hand it to the handler once the queue has drained.
+     */
+    SPILL
+}
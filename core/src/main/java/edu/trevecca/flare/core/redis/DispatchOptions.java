@@ -0,0 +1,108 @@
+package edu.trevecca.flare.core.redis;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * How messages for a handler are queued and which threads they are handled on.
+ */
+public class DispatchOptions {
+
+    private final int queueSize;
+    private final int threads;
+    private final boolean virtualThreads;
+    private final Backpressure backpressure;
+    private final Path spillDirectory;
+
+    private DispatchOptions(int queueSize, int threads, boolean virtualThreads, Backpressure backpressure,
+                            Path spillDirectory) {
+        this.queueSize = queueSize;
+        this.threads = threads;
+        this.virtualThreads = virtualThreads;
+        this.backpressure = backpressure;
+        this.spillDirectory = spillDirectory;
+    }
+
+    public static DispatchOptions.Builder builder() {
+        return new DispatchOptions.Builder();
+    }
+
+    public int queueSize() {
+        return this.queueSize;
+    }
+
+    public int threads() {
+        return this.threads;
+    }
+
+    public boolean virtualThreads() {
+        return this.virtualThreads;
+    }
+
+    public Backpressure backpressure() {
+        return this.backpressure;
+    }
+
+    public Path spillDirectory() {
+        return this.spillDirectory;
+    }
+
+    public static class Builder {
+
+        private int queueSize = 64;
+        private int threads = 1;
+        private boolean virtualThreads;
+        private Backpressure backpressure = Backpressure.BLOCK;
+        private Path spillDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+
+        /**
+         * @param queueSize maximum number of messages waiting in memory
+         */
+        public DispatchOptions.Builder queueSize(int queueSize) {
+            if (queueSize < 1) {
+                throw new IllegalArgumentException("Queue size must be at least 1");
+            }
+            this.queueSize = queueSize;
+            return this;
+        }
+
+        /**
+         * @param threads number of threads handling messages. Messages are only handled in the order they arrived when
+         *                this is 1.
+         */
+        public DispatchOptions.Builder threads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("Thread count must be at least 1");
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * @param virtualThreads handle messages on virtual threads, falling back to platform threads if the JVM doesn't
+         *                       support them
+         */
+        public DispatchOptions.Builder virtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        public DispatchOptions.Builder backpressure(Backpressure backpressure) {
+            this.backpressure = backpressure;
+            return this;
+        }
+
+        /**
+         * @param spillDirectory where {@link Backpressure#SPILL} writes overflowing messages
+         */
+        public DispatchOptions.Builder spillDirectory(Path spillDirectory) {
+            this.spillDirectory = spillDirectory;
+            return this;
+        }
+
+        public DispatchOptions build() {
+            return new DispatchOptions(this.queueSize, this.threads, this.virtualThreads, this.backpressure,
+                                       this.spillDirectory);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package edu.trevecca.flare.core.redis;
+
+import edu.trevecca.flare.core.logging.Logging;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Moves calls to a {@link RedisHandler} off the pub/sub event loop.
+ * <p>
+ * Received messages are put on a bounded queue and parsed and handled on the dispatcher's own threads, so a slow handler
+ * only delays itself. Handlers which read the body themselves are given it unparsed. What happens when the queue is
+ * full is decided by the handler's {@link Backpressure}. Spilled messages are kept in a temporary file which is deleted
+ * on exit, so they don't survive a restart.
+ */
+public class HandlerDispatcher {
+
+    private static final Logger logger = Logging.getLogger("Dispatch");
+    /**
+     * How long idle threads wait for a message before checking whether they should stop.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    private final RedisHandler handler;
+    private final DispatchOptions options;
+    private final String name;
+    private final BlockingQueue<Delivery> queue;
+    private final List<Thread> threads = new ArrayList<>();
+    private final Object spillLock = new Object();
+    /**
+     * Created on first overflow, guarded by {@link #spillLock}.
+     */
+    private SpillFile spill;
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong handled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * Constructor, starts the dispatch threads.
+     *
+     * @param handler handler to call
+     * @param options queueing and threading options
+     */
+    public HandlerDispatcher(RedisHandler handler, DispatchOptions options) {
+        this.handler = handler;
+        this.options = options;
+        this.name = "redis-" + String.join(",", handler.channels());
+        this.queue = new ArrayBlockingQueue<>(options.queueSize());
+
+        ThreadFactory factory = threadFactory(this.name, options.virtualThreads());
+        for (int i = 0; i < options.threads(); i++) {
+            Thread thread = factory.newThread(this::run);
+            this.threads.add(thread);
+            thread.start();
+        }
+    }
+
+    public RedisHandler handler() {
+        return this.handler;
+    }
+
+    /**
+     * Queue a received message for the handler, applying backpressure if the queue is full.
+     *
+     * @param channel channel the message arrived on
+     * @param body    raw message body
+     */
+    public void offer(String channel, byte[] body) {
+        Delivery delivery = new Delivery(channel, body);
+        switch (this.options.backpressure()) {
+            case BLOCK:
+                try {
+                    this.queue.put(delivery);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    this.dropped.incrementAndGet();
+                }
+                break;
+            case DROP_OLDEST:
+                while (!this.queue.offer(delivery)) {
+                    if (this.queue.poll() != null) {
+                        this.dropped.incrementAndGet();
+                    }
+                }
+                break;
+            case SPILL:
+                synchronized (this.spillLock) {
+                    // Once anything is spilled, later messages have to go after it to keep them in order
+                    if (this.spilled.get() > 0 || !this.queue.offer(delivery)) {
+                        spill(delivery);
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * @return number of messages waiting in memory
+     */
+    public int depth() {
+        return this.queue.size();
+    }
+
+    public int capacity() {
+        return this.options.queueSize();
+    }
+
+    /**
+     * @return number of messages waiting on disk
+     */
+    public long spilled() {
+        return this.spilled.get();
+    }
+
+    /**
+     * @return number of messages thrown away because the queue was full
+     */
+    public long dropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * @return number of messages handled, including ones which failed
+     */
+    public long handled() {
+        return this.handled.get();
+    }
+
+    /**
+     * @return number of messages whose handler threw
+     */
+    public long failed() {
+        return this.failed.get();
+    }
+
+    /**
+     * Stop accepting work and wait for everything queued, including spilled messages, to be handled.
+     *
+     * @param timeout how long to wait
+     * @param unit    unit of {@code timeout}
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        this.running = false;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread thread : this.threads) {
+            thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        }
+        int left = depth() + (int) spilled();
+        if (left > 0) {
+            logger.warning(this.name + " stopped with " + left + " messages unhandled");
+        }
+        synchronized (this.spillLock) {
+            if (this.spill != null) {
+                this.spill.delete();
+            }
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Delivery delivery = this.queue.poll();
+            if (delivery == null) {
+                delivery = unspill();
+            }
+            if (delivery == null) {
+                if (!this.running) {
+                    return;
+                }
+                try {
+                    delivery = this.queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException ex) {
+                    return;
+                }
+            }
+            if (delivery != null) {
+                handle(delivery);
+            }
+        }
+    }
+
+    private void handle(Delivery delivery) {
+        try {
+            this.handler.handle(delivery.channel, delivery.body);
+        }
+        catch (Exception ex) {
+            this.failed.incrementAndGet();
+            logger.severe("Failed to handle message on " + delivery.channel + "!");
+            ex.printStackTrace();
+        }
+        this.handled.incrementAndGet();
+    }
+
+    private void spill(Delivery delivery) {
+        try {
+            if (this.spill == null) {
+                this.spill = new SpillFile(this.options.spillDirectory(), this.name);
+            }
+            this.spill.append(delivery);
+            this.spilled.incrementAndGet();
+        }
+        catch (IOException ex) {
+            this.dropped.incrementAndGet();
+            logger.severe("Failed to spill message on " + delivery.channel + ", dropping it!");
+            ex.printStackTrace();
+        }
+    }
+
+    private Delivery unspill() {
+        if (this.spilled.get() == 0) {
+            return null;
+        }
+        synchronized (this.spillLock) {
+            if (this.spilled.get() == 0) {
+                return null;
+            }
+            try {
+                Delivery delivery = this.spill.next();
+                if (this.spilled.decrementAndGet() == 0) {
+                    this.spill.reset();
+                }
+                return delivery;
+            }
+            catch (IOException ex) {
+                // Whatever is left can't be read back
+                this.dropped.addAndGet(this.spilled.getAndSet(0));
+                logger.severe("Failed to read spilled messages, dropping them!");
+                ex.printStackTrace();
+                try {
+                    this.spill.reset();
+                }
+                catch (IOException ignored) {
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Create threads for a dispatcher. Virtual threads are looked up reflectively since they only exist on newer JVMs.
+     */
+    private static ThreadFactory threadFactory(String name, boolean virtual) {
+        if (virtual) {
+            try {
+                Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+                return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            }
+            catch (ReflectiveOperationException ex) {
+                logger.warning("Virtual threads aren't supported by this JVM, using platform threads for " + name);
+            }
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static class Delivery {
+
+        private final String channel;
+        private final byte[] body;
+
+        Delivery(String channel, byte[] body) {
+            this.channel = channel;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Append-only file of messages which is read back from the front, and truncated once everything has been read.
+     */
+    private static class SpillFile {
+
+        private final Path path;
+        private final RandomAccessFile file;
+        private long readPosition;
+
+        SpillFile(Path directory, String name) throws IOException {
+            Files.createDirectories(directory);
+            this.path = Files.createTempFile(directory, name + "-", ".spill");
+            this.path.toFile().deleteOnExit();
+            this.file = new RandomAccessFile(this.path.toFile(), "rw");
+        }
+
+        void append(Delivery delivery) throws IOException {
+            byte[] channel = delivery.channel.getBytes(StandardCharsets.UTF_8);
+            byte[] body = delivery.body;
+            // One write per message, RandomAccessFile isn't buffered
+            ByteBuffer record = ByteBuffer.allocate(8 + channel.length + body.length);
+            record.putInt(channel.length).put(channel).putInt(body.length).put(body);
+            this.file.seek(this.file.length());
+            this.file.write(record.array());
+        }
+
+        Delivery next() throws IOException {
+            this.file.seek(this.readPosition);
+            String channel = new String(readBytes(), StandardCharsets.UTF_8);
+            byte[] body = readBytes();
+            this.readPosition = this.file.getFilePointer();
+            return new Delivery(channel, body);
+        }
+
+        void reset() throws IOException {
+            this.file.setLength(0);
+            this.readPosition = 0;
+        }
+
+        void delete() {
+            try {
+                this.file.close();
+                Files.deleteIfExists(this.path);
+            }
+            catch (IOException ignored) {
+            }
+        }
+
+        private byte[] readBytes() throws IOException {
+            byte[] bytes = new byte[this.file.readInt()];
+            this.file.readFully(bytes);
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package edu.trevecca.flare.core.redis;
+
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.codec.ToByteBufEncoder;
+import io.netty.buffer.ByteBuf;
+import java.nio.ByteBuffer;
+
+/**
+ * Keys and channels as UTF-8 strings, values and message payloads as raw bytes.
+ * <p>
+ * Payloads are copied once into Netty's buffers when sent and once out of them when received, with no charset
+ * conversion either way.
+ */
+class PayloadCodec implements RedisCodec<String, byte[]>, ToByteBufEncoder<String, byte[]> {
+
+    static final PayloadCodec INSTANCE = new PayloadCodec();
+
+    private PayloadCodec() {
+    }
+
+    @Override public String decodeKey(ByteBuffer bytes) {
+        return StringCodec.UTF8.decodeKey(bytes);
+    }
+
+    @Override public byte[] decodeValue(ByteBuffer bytes) {
+        return ByteArrayCodec.INSTANCE.decodeValue(bytes);
+    }
+
+    @Override public ByteBuffer encodeKey(String key) {
+        return StringCodec.UTF8.encodeKey(key);
+    }
+
+    @Override public ByteBuffer encodeValue(byte[] value) {
+        return ByteArrayCodec.INSTANCE.encodeValue(value);
+    }
+
+    @Override public void encodeKey(String key, ByteBuf target) {
+        StringCodec.UTF8.encodeKey(key, target);
+    }
+
+    @Override public void encodeValue(byte[] value, ByteBuf target) {
+        ByteArrayCodec.INSTANCE.encodeValue(value, target);
+    }
+
+    @Override public int estimateSize(Object keyOrValue) {
+        return keyOrValue instanceof byte[] ? ByteArrayCodec.INSTANCE.estimateSize(keyOrValue)
+                                            : StringCodec.UTF8.estimateSize(keyOrValue);
+    }
+}
@@ -0,0 +1,145 @@
+package edu.trevecca.flare.core.redis;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * How an {@link AsyncPublisher} queues, journals and replays messages.
+ */
+public class PublishOptions {
+
+    private final int queueSize;
+    private final int maxInFlight;
+    private final long timeoutMillis;
+    private final Path journalDirectory;
+    private final long segmentBytes;
+    private final long journalBytes;
+    private final double replayRate;
+
+    private PublishOptions(int queueSize, int maxInFlight, long timeoutMillis, Path journalDirectory, long segmentBytes,
+                           long journalBytes, double replayRate) {
+        this.queueSize = queueSize;
+        this.maxInFlight = maxInFlight;
+        this.timeoutMillis = timeoutMillis;
+        this.journalDirectory = journalDirectory;
+        this.segmentBytes = segmentBytes;
+        this.journalBytes = journalBytes;
+        this.replayRate = replayRate;
+    }
+
+    public static PublishOptions.Builder builder() {
+        return new PublishOptions.Builder();
+    }
+
+    public int queueSize() {
+        return this.queueSize;
+    }
+
+    public int maxInFlight() {
+        return this.maxInFlight;
+    }
+
+    public long timeoutMillis() {
+        return this.timeoutMillis;
+    }
+
+    public Path journalDirectory() {
+        return this.journalDirectory;
+    }
+
+    public long segmentBytes() {
+        return this.segmentBytes;
+    }
+
+    public long journalBytes() {
+        return this.journalBytes;
+    }
+
+    public double replayRate() {
+        return this.replayRate;
+    }
+
+    public static class Builder {
+
+        private int queueSize = 64;
+        private int maxInFlight = 16;
+        private long timeoutMillis = 10000;
+        private Path journalDirectory = Paths.get("journal");
+        private long segmentBytes = 64L << 20;
+        private long journalBytes = 1L << 30;
+        private double replayRate = 5;
+
+        /**
+         * @param queueSize maximum number of messages waiting in memory for the publisher thread
+         */
+        public PublishOptions.Builder queueSize(int queueSize) {
+            if (queueSize < 1) {
+                throw new IllegalArgumentException("Queue size must be at least 1");
+            }
+            this.queueSize = queueSize;
+            return this;
+        }
+
+        /**
+         * @param maxInFlight maximum number of pipelined messages waiting for Redis to acknowledge them
+         */
+        public PublishOptions.Builder maxInFlight(int maxInFlight) {
+            if (maxInFlight < 1) {
+                throw new IllegalArgumentException("In flight limit must be at least 1");
+            }
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * @param timeoutMillis how long a message may wait to be acknowledged before Redis is considered down
+         */
+        public PublishOptions.Builder timeoutMillis(long timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        /**
+         * @param journalDirectory where messages which can't be published are journaled
+         */
+        public PublishOptions.Builder journalDirectory(Path journalDirectory) {
+            this.journalDirectory = journalDirectory;
+            return this;
+        }
+
+        /**
+         * @param segmentBytes size of each journal segment
+         */
+        public PublishOptions.Builder segmentBytes(long segmentBytes) {
+            if (segmentBytes < 1024) {
+                throw new IllegalArgumentException("Journal segments must be at least 1 KiB");
+            }
+            this.segmentBytes = segmentBytes;
+            return this;
+        }
+
+        /**
+         * @param journalBytes total size of the journal before its oldest messages are thrown away
+         */
+        public PublishOptions.Builder journalBytes(long journalBytes) {
+            this.journalBytes = journalBytes;
+            return this;
+        }
+
+        /**
+         * @param replayRate journaled messages to publish per second once Redis is back, so the receivers aren't flooded
+         */
+        public PublishOptions.Builder replayRate(double replayRate) {
+            if (replayRate <= 0) {
+                throw new IllegalArgumentException("Replay rate must be positive");
+            }
+            this.replayRate = replayRate;
+            return this;
+        }
+
+        public PublishOptions build() {
+            return new PublishOptions(this.queueSize, this.maxInFlight, this.timeoutMillis, this.journalDirectory,
+                                      this.segmentBytes, this.journalBytes, this.replayRate);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package edu.trevecca.flare.core.redis;
 
+import edu.trevecca.flare.core.metrics.LatencyHistogram;
+import edu.trevecca.flare.core.metrics.MetricsRegistry;
 import io.lettuce.core.ClientOptions;
 import io.lettuce.core.RedisClient;
 import io.lettuce.core.RedisURI;
@@ -7,26 +9,49 @@ import io.lettuce.core.api.StatefulRedisConnection;
 import io.lettuce.core.api.sync.RedisCommands;
 import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
 import io.lettuce.core.pubsub.api.sync.RedisPubSubCommands;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
 public class Redis {
 
+    /**
+     * How long dispatched handlers get to finish their queued messages when unregistered.
+     */
+    private static final long DISPATCH_SHUTDOWN_SECONDS = 60;
+    /**
+     * Time taken to publish a message, including serialising it.
+     */
+    private static final LatencyHistogram publishTime = MetricsRegistry.global().histogram("redis.publish");
+
+    private final RedisURI uri;
+    private final ClientOptions options;
     private final RedisClient client;
-    private Optional<RedisCommands<String, String>> connection;
-    private Optional<RedisPubSubCommands<String, String>> pubSubCommands;
+    /**
+     * Both connections use {@link PayloadCodec}, so payloads stay bytes and only keys and channels are strings.
+     */
+    private Optional<RedisCommands<String, byte[]>> connection;
+    private Optional<RedisPubSubCommands<String, byte[]>> pubSubCommands;
     private final List<RedisHandler> handlers;
+    private final Map<RedisHandler, HandlerDispatcher> dispatchers;
 
     public Redis(RedisURI uri, ClientOptions options) {
+        this.uri = uri;
+        this.options = options;
         this.client = RedisClient.create(uri);
         this.client.setOptions(options);
         this.connection = Optional.empty();
-        this.handlers = new ArrayList();
+        // Read by the pub/sub event loop while handlers are registered from other threads
+        this.handlers = new CopyOnWriteArrayList<>();
+        this.dispatchers = new ConcurrentHashMap<>();
     }
 
     public static Redis.Builder builder(String host, int port) {
@@ -34,23 +59,25 @@ public class Redis {
     }
 
     public boolean hset(String name, String key, String value) {
-        return ((RedisCommands) this.connection.get()).hset(name, key, value);
+        return this.connection.get().hset(name, key, value.getBytes(StandardCharsets.UTF_8));
     }
 
     public String get(String key) {
-        return (String) ((RedisCommands) this.connection.get()).get(key);
+        return decode(this.connection.get().get(key));
     }
 
     public boolean set(String key, String value) {
-        return ((RedisCommands) this.connection.get()).set(key, value) != null;
+        return this.connection.get().set(key, value.getBytes(StandardCharsets.UTF_8)) != null;
     }
 
     public boolean del(String key) {
-        return ((RedisCommands) this.connection.get()).del(new String[]{key}) != null;
+        return this.connection.get().del(key) != null;
     }
 
     public Map<String, String> hgetall(String name) {
-        return ((RedisCommands) this.connection.get()).hgetall(name);
+        Map<String, String> values = new LinkedHashMap<>();
+        this.connection.get().hgetall(name).forEach((key, value) -> values.put(key, decode(value)));
+        return values;
     }
 
     public void reset() {
@@ -68,17 +95,62 @@ public class Redis {
         this.pubSubCommands.get().subscribe(handler.channels());
     }
 
+    /**
+     * Register a handler which is called on its own threads instead of the pub/sub event loop.
+     *
+     * @param handler handler to register
+     * @param options how messages for the handler are queued
+     * @return the handler's dispatcher, for monitoring its queue
+     */
+    public HandlerDispatcher register(RedisHandler handler, DispatchOptions options) {
+        HandlerDispatcher dispatcher = new HandlerDispatcher(handler, options);
+        this.dispatchers.put(handler, dispatcher);
+        register(handler);
+        return dispatcher;
+    }
+
     public void unRegister(RedisHandler handler) {
         this.handlers.remove(handler);
         this.pubSubCommands.get().unsubscribe(handler.channels());
+        HandlerDispatcher dispatcher = this.dispatchers.remove(handler);
+        if (dispatcher != null) {
+            shutdown(dispatcher);
+        }
     }
 
     public Collection<RedisHandler> handlers() {
         return this.handlers;
     }
 
+    /**
+     * @param handler a registered handler
+     * @return the handler's dispatcher, or {@code null} if it is called on the event loop
+     */
+    public HandlerDispatcher dispatcher(RedisHandler handler) {
+        return this.dispatchers.get(handler);
+    }
+
+    public Collection<HandlerDispatcher> dispatchers() {
+        return this.dispatchers.values();
+    }
+
+    /**
+     * Start an {@link AsyncPublisher} on a connection of its own. Its commands fail straight away while Redis is
+     * unreachable, rather than waiting in memory for a reconnect.
+     *
+     * @param options queueing and journaling options
+     */
+    public AsyncPublisher publisher(PublishOptions options) throws IOException {
+        RedisClient client = RedisClient.create(this.uri);
+        client.setOptions(this.options.mutate().disconnectedBehavior(ClientOptions.DisconnectedBehavior.REJECT_COMMANDS)
+                                      .build());
+        return new AsyncPublisher(client, options);
+    }
+
     public void publish(RedisMessage message) {
-        this.connection.get().publish(message.channel(), message.write().toString());
+        long started = System.nanoTime();
+        this.connection.get().publish(message.channel(), message.payload());
+        publishTime.recordSince(started);
     }
 
     public void enable() {
@@ -86,10 +158,10 @@ public class Redis {
             throw new IllegalStateException("Redis has already been enabled.");
         }
         else {
-            StatefulRedisPubSubConnection<String, String> pubsub = this.client.connectPubSub();
+            StatefulRedisPubSubConnection<String, byte[]> pubsub = this.client.connectPubSub(PayloadCodec.INSTANCE);
             pubsub.addListener(new RedisListener(this));
             this.pubSubCommands = Optional.of(pubsub.sync());
-            StatefulRedisConnection<String, String> connection = this.client.connect();
+            StatefulRedisConnection<String, byte[]> connection = this.client.connect(PayloadCodec.INSTANCE);
             this.connection = Optional.ofNullable(connection.sync());
         }
     }
@@ -99,11 +171,28 @@ public class Redis {
             throw new IllegalStateException("Redis hasn't been enabled.");
         }
         else {
-            ((RedisCommands) this.connection.get()).getStatefulConnection().close();
+            // Stop receiving, then let dispatched handlers finish what they were given
+            this.pubSubCommands.get().getStatefulConnection().close();
+            this.dispatchers.values().forEach(this::shutdown);
+            this.dispatchers.clear();
+            this.connection.get().getStatefulConnection().close();
             this.connection = Optional.empty();
         }
     }
 
+    private static String decode(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    private void shutdown(HandlerDispatcher dispatcher) {
+        try {
+            dispatcher.shutdown(DISPATCH_SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     public static class Builder {
 
         private final String host;
@@ -19,4 +19,17 @@ public interface RedisHandler {
     }
 
     void handle(JsonObject object);
+
+    /**
+     * Handle a message as it was received, by default by parsing it and calling {@link #handle(JsonObject)}.
+     * <p>
+     * Handlers of large messages override this to stream-parse the body themselves, so a tree of the whole message is
+     * never built.
+     *
+     * @param channel channel the message arrived on
+     * @param body    raw message body, owned by the handler
+     */
+    default void handle(String channel, byte[] body) {
+        handle(RedisListener.parse(body));
+    }
 }
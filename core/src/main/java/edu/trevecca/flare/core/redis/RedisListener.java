@@ -2,23 +2,63 @@ package edu.trevecca.flare.core.redis;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import edu.trevecca.flare.core.metrics.Counter;
+import edu.trevecca.flare.core.metrics.LatencyHistogram;
+import edu.trevecca.flare.core.metrics.MetricsRegistry;
 import io.lettuce.core.pubsub.RedisPubSubListener;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 
-public class RedisListener implements RedisPubSubListener<String, String> {
+public class RedisListener implements RedisPubSubListener<String, byte[]> {
 
     private static final JsonParser parser = new JsonParser();
+    private static final Counter messages = MetricsRegistry.global().counter("redis.messages");
+    /**
+     * Time the pub/sub event loop spends on a message, which only covers queueing it for dispatched handlers.
+     */
+    private static final LatencyHistogram messageTime = MetricsRegistry.global().histogram("redis.message");
     private final Redis redis;
 
     RedisListener(Redis redis) {
         this.redis = redis;
     }
 
-    public void message(String channel, String body) {
-        JsonObject json = parser.parse(body).getAsJsonObject();
-        this.redis.handlers().stream().filter((handler) -> handler.matches(channel)).forEach((handler) -> handler.handle(json));
+    public void message(String channel, byte[] body) {
+        long started = System.nanoTime();
+        messages.increment();
+        try {
+            deliver(channel, body);
+        }
+        finally {
+            messageTime.recordSince(started);
+        }
     }
 
-    public void message(String s, String k1, String s2) {
+    private void deliver(String channel, byte[] body) {
+        for (RedisHandler handler : this.redis.handlers()) {
+            if (!handler.matches(channel)) {
+                continue;
+            }
+            HandlerDispatcher dispatcher = this.redis.dispatcher(handler);
+            if (dispatcher != null) {
+                // Parsed on the dispatcher's thread
+                dispatcher.offer(channel, body);
+                continue;
+            }
+            handler.handle(channel, body);
+        }
+    }
+
+    public void message(String s, String k1, byte[] s2) {
+    }
+
+    /**
+     * Parse a payload for a handler which doesn't read the body itself.
+     */
+    static JsonObject parse(byte[] body) {
+        return parser.parse(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8))
+                     .getAsJsonObject();
     }
 
     public void subscribed(String s, long l) {
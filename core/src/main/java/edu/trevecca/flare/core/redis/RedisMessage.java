@@ -1,10 +1,45 @@
 package edu.trevecca.flare.core.redis;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 
 public interface RedisMessage {
 
     String channel();
 
     JsonObject write();
+
+    /**
+     * Write the payload as it is published, by default the UTF-8 encoded JSON of {@link #write()} without building a
+     * string of it first.
+     *
+     * @param out where to write the payload, left open
+     */
+    default void write(OutputStream out) throws IOException {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        new Gson().getAdapter(JsonElement.class).write(writer, this.write());
+        writer.flush();
+    }
+
+    /**
+     * @return the payload as it is published, see {@link #write(OutputStream)}
+     */
+    default byte[] payload() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            write(out);
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return out.toByteArray();
+    }
 }
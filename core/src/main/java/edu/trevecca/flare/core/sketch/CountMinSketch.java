@@ -0,0 +1,161 @@
+package edu.trevecca.flare.core.sketch;
+
+import java.util.Arrays;
+
+/**
+ * Count-Min Sketch of per-host counts in fixed memory.
+ * <p>
+ * Each of the {@code depth} rows hashes a host to one of {@code width} counters. The estimate for a host is the smallest
+ * of its counters, which never undercounts and, with probability {@link #confidence()}, overcounts by at most
+ * {@link #errorBound()} ({@code e / width} of the total). Rows are hashed with fixed seeds, so sketches with the same
+ * dimensions can be merged with {@link #addAll(CountMinSketch)}.
+ * <p>
+ * This class is not thread safe.
+ */
+public class CountMinSketch {
+
+    private final int width;
+    private final int depth;
+    private final int mask;
+    private final int[] seeds;
+    private final long[] counters;
+    private long total;
+
+    /**
+     * Constructor.
+     *
+     * @param width counters per row, rounded up to a power of two
+     * @param depth number of rows
+     */
+    public CountMinSketch(int width, int depth) {
+        if (width < 1 || depth < 1) {
+            throw new IllegalArgumentException("Width and depth must be at least 1");
+        }
+        this.width = Integer.highestOneBit(Math.max(2, width) - 1) << 1;
+        this.depth = depth;
+        this.mask = this.width - 1;
+        this.counters = new long[this.width * depth];
+        this.seeds = new int[depth];
+        int seed = 0x2545F491;
+        for (int row = 0; row < depth; row++) {
+            seed = fmix(seed + 0x9E3779B9);
+            this.seeds[row] = seed;
+        }
+    }
+
+    /**
+     * Size a sketch for the given error.
+     *
+     * @param epsilon largest overcount, as a share of the total
+     * @param delta   probability of the overcount being larger than that
+     * @return an empty sketch
+     */
+    public static CountMinSketch withError(double epsilon, double delta) {
+        if (epsilon <= 0 || epsilon >= 1 || delta <= 0 || delta >= 1) {
+            throw new IllegalArgumentException("Epsilon and delta must be between 0 and 1");
+        }
+        return new CountMinSketch((int) Math.ceil(Math.E / epsilon), (int) Math.ceil(Math.log(1 / delta)));
+    }
+
+    /**
+     * @param key   packed IPv4 address
+     * @param count amount to add
+     */
+    public void add(int key, long count) {
+        this.total += count;
+        for (int row = 0; row < this.depth; row++) {
+            this.counters[row * this.width + index(row, key)] += count;
+        }
+    }
+
+    /**
+     * @param key packed IPv4 address
+     * @return estimated count for the key, never lower than the real count
+     */
+    public long estimate(int key) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < this.depth; row++) {
+            estimate = Math.min(estimate, this.counters[row * this.width + index(row, key)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Add the counts of another sketch to this one.
+     *
+     * @param other sketch with the same dimensions
+     */
+    public void addAll(CountMinSketch other) {
+        if (other.width != this.width || other.depth != this.depth) {
+            throw new IllegalArgumentException("Can't merge sketches with different dimensions");
+        }
+        for (int i = 0; i < this.counters.length; i++) {
+            this.counters[i] += other.counters[i];
+        }
+        this.total += other.total;
+    }
+
+    public void clear() {
+        Arrays.fill(this.counters, 0);
+        this.total = 0;
+    }
+
+    /**
+     * @return sum of everything added
+     */
+    public long total() {
+        return this.total;
+    }
+
+    /**
+     * @return largest overcount of an estimate as a share of the total
+     */
+    public double epsilon() {
+        return Math.E / this.width;
+    }
+
+    /**
+     * @return largest overcount of an estimate with probability {@link #confidence()}
+     */
+    public long errorBound() {
+        return (long) Math.ceil(epsilon() * this.total);
+    }
+
+    /**
+     * @return probability of an estimate being within {@link #errorBound()}
+     */
+    public double confidence() {
+        return 1 - Math.exp(-this.depth);
+    }
+
+    public int width() {
+        return this.width;
+    }
+
+    public int depth() {
+        return this.depth;
+    }
+
+    /**
+     * @return bytes used by the counters
+     */
+    public long memoryBytes() {
+        return this.counters.length * 8L;
+    }
+
+    private int index(int row, int key) {
+        return fmix(key ^ this.seeds[row]) & this.mask;
+    }
+
+    /**
+     * MurmurHash3 finaliser, a bijection which spreads every input bit over the whole output.
+     */
+    static int fmix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,108 @@
+package edu.trevecca.flare.core.sketch;
+
+import edu.trevecca.flare.core.stats.TrafficCounter;
+import edu.trevecca.flare.core.stats.TrafficTable;
+
+/**
+ * Fixed-memory {@link TrafficCounter} which only keeps the hosts with the most bytes.
+ * <p>
+ * A {@link SpaceSaving} summary picks candidate hosts and a {@link CountMinSketch} tightens their byte counts: both only
+ * ever overcount, so each host reports the smaller of the two. The sketch also caps the count a new candidate inherits, so
+ * small hosts passing through don't evict bigger ones. The summary tracks several times more candidates than are
+ * wanted, since it only guarantees to find hosts above {@code total / capacity}; ranking the candidates by their tightened
+ * counts then picks out the real top hosts far more reliably. Totals are counted exactly.
+ * <p>
+ * This class is not thread safe.
+ */
+public class HeavyHitters implements TrafficCounter {
+
+    /**
+     * Candidates tracked for every host wanted.
+     */
+    private static final int CANDIDATES_PER_HOST = 8;
+
+    private final int topK;
+    private final SpaceSaving top;
+    private final CountMinSketch sketch;
+    private long totalPackets;
+
+    /**
+     * Constructor.
+     *
+     * @param topK    number of hosts wanted
+     * @param epsilon largest overcount of the sketch, as a share of the total
+     * @param delta   probability of the sketch overcounting by more than that
+     */
+    public HeavyHitters(int topK, double epsilon, double delta) {
+        this.topK = topK;
+        this.top = new SpaceSaving(topK * CANDIDATES_PER_HOST);
+        this.sketch = CountMinSketch.withError(epsilon, delta);
+    }
+
+    @Override public void add(int address, long length) {
+        this.sketch.add(address, length);
+        this.top.add(address, length, 1, this.sketch.estimate(address));
+        this.totalPackets++;
+    }
+
+    /**
+     * Visit every candidate host with its estimated bytes. There are up to {@link #candidates()} of them, the caller picks
+     * the top hosts.
+     */
+    @Override public void forEach(TrafficTable.Visitor visitor) {
+        this.top.forEach((address, bytes, error, packets) -> {
+            visitor.visit(address, Math.min(bytes, this.sketch.estimate(address)), Math.max(1, packets));
+        });
+    }
+
+    /**
+     * @return most any candidate's byte count can be over by, with probability {@link #confidence()}
+     */
+    public long maxError() {
+        // Space-Saving errors are bounded by its minimum and hold for certain, the sketch bound only probably
+        return Math.min(this.top.minimum(), this.sketch.errorBound());
+    }
+
+    /**
+     * @return hosts with more bytes than this are guaranteed to be candidates
+     */
+    public long threshold() {
+        return this.top.minimum();
+    }
+
+    public double confidence() {
+        return this.top.minimum() <= this.sketch.errorBound() ? 1 : this.sketch.confidence();
+    }
+
+    public int topK() {
+        return this.topK;
+    }
+
+    /**
+     * @return most candidate hosts visited by {@link #forEach(TrafficTable.Visitor)}
+     */
+    public int candidates() {
+        return this.top.capacity();
+    }
+
+    public long totalBytes() {
+        return this.sketch.total();
+    }
+
+    public long totalPackets() {
+        return this.totalPackets;
+    }
+
+    /**
+     * @return bytes of counters used, which doesn't change with the number of hosts
+     */
+    public long memoryBytes() {
+        return this.top.memoryBytes() + this.sketch.memoryBytes();
+    }
+
+    @Override public void clear() {
+        this.top.clear();
+        this.sketch.clear();
+        this.totalPackets = 0;
+    }
+}
@@ -0,0 +1,246 @@
+package edu.trevecca.flare.core.sketch;
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog estimate of the number of distinct hosts seen, in {@code 2^precision} bytes.
+ * <p>
+ * Each host is hashed to one of the registers, which keeps the longest run of leading zeros seen in the rest of the hash.
+ * The estimate has a relative standard error of about {@code 1.04 / sqrt(2^precision)}, and small counts fall back to
+ * linear counting so they stay close to exact. Sketches with the same precision can be merged with
+ * {@link #addAll(HyperLogLog)}, giving the estimate of the union, and merging the same sketch twice changes nothing.
+ * <p>
+ * This class is not thread safe.
+ */
+public class HyperLogLog {
+
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 16;
+    private static final int DENSE = 0;
+    private static final int SPARSE = 1;
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * Constructor.
+     *
+     * @param precision number of index bits, between {@link #MIN_PRECISION} and {@link #MAX_PRECISION}
+     */
+    public HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException(
+                "Precision must be between " + MIN_PRECISION + " and " + MAX_PRECISION + ", got " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * @param key packed IPv4 address
+     */
+    public void add(int key) {
+        long hash = fmix64(key & 0xFFFFFFFFL);
+        int index = (int) (hash >>> (64 - this.precision));
+        // The sentinel bit caps the rank once every remaining bit is zero
+        int rank = Long.numberOfLeadingZeros((hash << this.precision) | (1L << (this.precision - 1))) + 1;
+        if (rank > this.registers[index]) {
+            this.registers[index] = (byte) rank;
+        }
+    }
+
+    /**
+     * Merge another sketch into this one, which then estimates the union of both.
+     *
+     * @param other sketch with the same precision
+     */
+    public void addAll(HyperLogLog other) {
+        if (other.precision != this.precision) {
+            throw new IllegalArgumentException("Can't merge sketches with different precisions");
+        }
+        for (int i = 0; i < this.registers.length; i++) {
+            if (other.registers[i] > this.registers[i]) {
+                this.registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /**
+     * @return estimated number of distinct keys added
+     */
+    public long estimate() {
+        int m = this.registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : this.registers) {
+            sum += Double.longBitsToDouble((1023L - register) << 52);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * @return {@code true} if nothing has been added
+     */
+    public boolean isEmpty() {
+        for (byte register : this.registers) {
+            if (register != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(this.registers, (byte) 0);
+    }
+
+    public int precision() {
+        return this.precision;
+    }
+
+    /**
+     * @return relative standard error of {@link #estimate()}
+     */
+    public double standardError() {
+        return 1.04 / Math.sqrt(this.registers.length);
+    }
+
+    /**
+     * @return a copy of this sketch
+     */
+    public HyperLogLog copy() {
+        HyperLogLog copy = new HyperLogLog(this.precision);
+        System.arraycopy(this.registers, 0, copy.registers, 0, this.registers.length);
+        return copy;
+    }
+
+    /**
+     * Serialise the registers. Mostly empty sketches, as with quiet windows, are written as (index delta, value) pairs
+     * instead of every register.
+     *
+     * @return precision, encoding, then the registers
+     */
+    public byte[] toBytes() {
+        int used = 0;
+        for (byte register : this.registers) {
+            if (register != 0) {
+                used++;
+            }
+        }
+        // Index deltas take at most 3 varint bytes with 16 bits of precision
+        if (used * 4 + 3 >= this.registers.length) {
+            byte[] data = new byte[2 + this.registers.length];
+            data[0] = (byte) this.precision;
+            data[1] = DENSE;
+            System.arraycopy(this.registers, 0, data, 2, this.registers.length);
+            return data;
+        }
+
+        byte[] data = new byte[2 + 3 + used * 4];
+        data[0] = (byte) this.precision;
+        data[1] = SPARSE;
+        int position = writeVarInt(data, 2, used);
+        int previous = 0;
+        for (int i = 0; i < this.registers.length; i++) {
+            if (this.registers[i] != 0) {
+                position = writeVarInt(data, position, i - previous);
+                data[position++] = this.registers[i];
+                previous = i;
+            }
+        }
+        return Arrays.copyOf(data, position);
+    }
+
+    /**
+     * Read registers written by {@link #toBytes()}.
+     *
+     * @param data serialised sketch
+     * @return the sketch
+     * @throws IllegalArgumentException if the data is malformed
+     */
+    public static HyperLogLog fromBytes(byte[] data) {
+        if (data.length < 2) {
+            throw new IllegalArgumentException("HyperLogLog data truncated");
+        }
+        HyperLogLog sketch = new HyperLogLog(data[0]);
+        if (data[1] == DENSE) {
+            if (data.length != 2 + sketch.registers.length) {
+                throw new IllegalArgumentException("Expected " + sketch.registers.length + " registers, got "
+                                                   + (data.length - 2));
+            }
+            System.arraycopy(data, 2, sketch.registers, 0, sketch.registers.length);
+            return sketch;
+        }
+        if (data[1] != SPARSE) {
+            throw new IllegalArgumentException("Unknown HyperLogLog encoding " + data[1]);
+        }
+
+        int[] position = {2};
+        int used = readVarInt(data, position);
+        int index = 0;
+        for (int i = 0; i < used; i++) {
+            index += readVarInt(data, position);
+            if (index >= sketch.registers.length || position[0] >= data.length) {
+                throw new IllegalArgumentException("HyperLogLog register " + index + " out of range");
+            }
+            sketch.registers[index] = data[position[0]++];
+        }
+        return sketch;
+    }
+
+    private static int writeVarInt(byte[] data, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            data[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[position++] = (byte) value;
+        return position;
+    }
+
+    private static int readVarInt(byte[] data, int[] position) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (position[0] >= data.length) {
+                throw new IllegalArgumentException("HyperLogLog data truncated");
+            }
+            byte b = data[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint in HyperLogLog data");
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+
+    /**
+     * MurmurHash3 64 bit finaliser, every key bit affects every hash bit.
+     */
+    private static long fmix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE53A85CBL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,63 @@
+package edu.trevecca.flare.core.sketch;
+
+/**
+ * Error bounds of one direction of a dump counted with {@link HeavyHitters}, sent along with the top hosts so the receiver
+ * knows how far to trust them.
+ */
+public class SketchBounds {
+
+    private final int topK;
+    private final long totalBytes;
+    private final long totalPackets;
+    private final long maxError;
+    private final long threshold;
+    private final double confidence;
+
+    /**
+     * Constructor.
+     *
+     * @param topK         most hosts reported
+     * @param totalBytes   exact bytes across every host, reported or not
+     * @param totalPackets exact packets across every host, reported or not
+     * @param maxError     most any reported byte count can be over by
+     * @param threshold    hosts with more bytes than this are guaranteed to be reported
+     * @param confidence   probability of {@code maxError} holding
+     */
+    public SketchBounds(int topK, long totalBytes, long totalPackets, long maxError, long threshold, double confidence) {
+        this.topK = topK;
+        this.totalBytes = totalBytes;
+        this.totalPackets = totalPackets;
+        this.maxError = maxError;
+        this.threshold = threshold;
+        this.confidence = confidence;
+    }
+
+    public int topK() {
+        return this.topK;
+    }
+
+    public long totalBytes() {
+        return this.totalBytes;
+    }
+
+    public long totalPackets() {
+        return this.totalPackets;
+    }
+
+    public long maxError() {
+        return this.maxError;
+    }
+
+    public long threshold() {
+        return this.threshold;
+    }
+
+    public double confidence() {
+        return this.confidence;
+    }
+
+    @Override public String toString() {
+        return "top " + this.topK + " of " + this.totalBytes + " bytes, error <= " + this.maxError + " bytes ("
+               + Math.round(this.confidence * 1000) / 10.0 + "%), complete above " + this.threshold + " bytes";
+    }
+}
@@ -0,0 +1,238 @@
+package edu.trevecca.flare.core.sketch;
+
+import java.util.Arrays;
+
+/**
+ * Space-Saving summary of the hosts with the most traffic, holding at most {@code capacity} hosts.
+ * <p>
+ * A host which isn't tracked while the summary is full takes over the entry with the smallest count, inheriting the largest
+ * count ever evicted as its error. Every count is therefore an overestimate by at most its error, and any host whose real
+ * count is above {@link #minimum()} is guaranteed to be tracked. When an upper bound on the host's total is known, the
+ * inherited count is capped by it, which keeps newcomers from pushing out hosts with more real traffic. Entries are kept
+ * in a min-heap with an index from host to heap position, so updates take {@code O(log capacity)} and never allocate.
+ * <p>
+ * Packet counts are only kept from when a host entered the summary, so they can undercount. This class is not thread safe.
+ */
+public class SpaceSaving {
+
+    private final int capacity;
+    private final int[] keys;
+    private final long[] counts;
+    private final long[] errors;
+    private final long[] packets;
+    private int size;
+    /**
+     * Largest count evicted so far, no untracked host can have more.
+     */
+    private long evicted;
+    /**
+     * Open-addressing index of key -> heap position + 1, {@code 0} marks an empty slot.
+     */
+    private final int[] indexKeys;
+    private final int[] indexPositions;
+    private final int indexMask;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity most hosts to track
+     */
+    public SpaceSaving(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        this.keys = new int[capacity];
+        this.counts = new long[capacity];
+        this.errors = new long[capacity];
+        this.packets = new long[capacity];
+        int indexSize = Integer.highestOneBit(Math.max(2, capacity * 2) - 1) << 1;
+        this.indexKeys = new int[indexSize];
+        this.indexPositions = new int[indexSize];
+        this.indexMask = indexSize - 1;
+    }
+
+    /**
+     * Record traffic for a host.
+     *
+     * @param key     packed IPv4 address
+     * @param count   bytes to add
+     * @param packets packets to add
+     */
+    public void add(int key, long count, long packets) {
+        add(key, count, packets, Long.MAX_VALUE);
+    }
+
+    /**
+     * Record traffic for a host, with a known upper bound on its total.
+     *
+     * @param key     packed IPv4 address
+     * @param count   bytes to add
+     * @param packets packets to add
+     * @param ceiling most bytes the host can have in total (from a {@link CountMinSketch} for example), which caps the
+     *                count inherited when the host takes over the smallest entry
+     */
+    public void add(int key, long count, long packets, long ceiling) {
+        int slot = find(key);
+        if (this.indexPositions[slot] != 0) {
+            int position = this.indexPositions[slot] - 1;
+            this.counts[position] += count;
+            this.packets[position] += packets;
+            siftDown(position);
+            return;
+        }
+
+        if (this.size < this.capacity) {
+            int position = this.size++;
+            this.keys[position] = key;
+            this.counts[position] = count;
+            this.errors[position] = 0;
+            this.packets[position] = packets;
+            this.indexKeys[slot] = key;
+            this.indexPositions[slot] = position + 1;
+            siftUp(position);
+            return;
+        }
+
+        // Take over the smallest entry
+        this.evicted = Math.max(this.evicted, this.counts[0]);
+        long inherited = Math.max(0, Math.min(this.evicted, ceiling - count));
+        remove(find(this.keys[0]));
+        this.keys[0] = key;
+        this.counts[0] = inherited + count;
+        this.errors[0] = inherited;
+        this.packets[0] = packets;
+        slot = find(key);
+        this.indexKeys[slot] = key;
+        this.indexPositions[slot] = 1;
+        siftDown(0);
+    }
+
+    /**
+     * Visit every tracked host, in no particular order.
+     *
+     * @param visitor to call for each host
+     */
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < this.size; i++) {
+            visitor.visit(this.keys[i], this.counts[i], this.errors[i], this.packets[i]);
+        }
+    }
+
+    /**
+     * @return largest count evicted, {@code 0} until the summary overflows. Hosts with more traffic than this are always
+     * tracked, and no count is over by more.
+     */
+    public long minimum() {
+        return this.evicted;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public int capacity() {
+        return this.capacity;
+    }
+
+    public void clear() {
+        this.size = 0;
+        this.evicted = 0;
+        Arrays.fill(this.indexPositions, 0);
+    }
+
+    /**
+     * @return bytes used by the summary
+     */
+    public long memoryBytes() {
+        return this.capacity * 28L + this.indexKeys.length * 8L;
+    }
+
+    private int find(int key) {
+        int slot = CountMinSketch.fmix(key) & this.indexMask;
+        while (this.indexPositions[slot] != 0 && this.indexKeys[slot] != key) {
+            slot = (slot + 1) & this.indexMask;
+        }
+        return slot;
+    }
+
+    /**
+     * Empty an index slot, shifting later entries of the probe sequence back so lookups never stop early.
+     */
+    private void remove(int hole) {
+        this.indexPositions[hole] = 0;
+        int slot = (hole + 1) & this.indexMask;
+        while (this.indexPositions[slot] != 0) {
+            int ideal = CountMinSketch.fmix(this.indexKeys[slot]) & this.indexMask;
+            if (((slot - ideal) & this.indexMask) >= ((slot - hole) & this.indexMask)) {
+                this.indexKeys[hole] = this.indexKeys[slot];
+                this.indexPositions[hole] = this.indexPositions[slot];
+                this.indexPositions[slot] = 0;
+                hole = slot;
+            }
+            slot = (slot + 1) & this.indexMask;
+        }
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (this.counts[parent] <= this.counts[position]) {
+                return;
+            }
+            swap(parent, position);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int smallest = position;
+            int left = position * 2 + 1;
+            int right = left + 1;
+            if (left < this.size && this.counts[left] < this.counts[smallest]) {
+                smallest = left;
+            }
+            if (right < this.size && this.counts[right] < this.counts[smallest]) {
+                smallest = right;
+            }
+            if (smallest == position) {
+                return;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int key = this.keys[a];
+        long count = this.counts[a];
+        long error = this.errors[a];
+        long packets = this.packets[a];
+        this.keys[a] = this.keys[b];
+        this.counts[a] = this.counts[b];
+        this.errors[a] = this.errors[b];
+        this.packets[a] = this.packets[b];
+        this.keys[b] = key;
+        this.counts[b] = count;
+        this.errors[b] = error;
+        this.packets[b] = packets;
+        this.indexPositions[find(this.keys[a])] = a + 1;
+        this.indexPositions[find(this.keys[b])] = b + 1;
+    }
+
+    /**
+     * Receives entries from {@link #forEach(Visitor)}.
+     */
+    @FunctionalInterface
+    public interface Visitor {
+
+        /**
+         * @param address packed IPv4 address
+         * @param bytes   estimated bytes, never lower than the real count
+         * @param error   most the estimate can be over by
+         * @param packets packets counted since the host was last taken into the summary
+         */
+        void visit(int address, long bytes, long error, long packets);
+    }
+}
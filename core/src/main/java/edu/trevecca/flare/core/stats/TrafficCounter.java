@@ -0,0 +1,28 @@
+package edu.trevecca.flare.core.stats;
+
+/**
+ * Something which counts per-host traffic for a stats window, either exactly ({@link TrafficTable}) or approximately in
+ * fixed memory ({@link edu.trevecca.flare.core.sketch.HeavyHitters}).
+ */
+public interface TrafficCounter {
+
+    /**
+     * Record a single packet.
+     *
+     * @param address packed IPv4 address
+     * @param length  number of bytes in the packet
+     */
+    void add(int address, long length);
+
+    /**
+     * Visit every host the counter reports.
+     *
+     * @param visitor to call for each host
+     */
+    void forEach(TrafficTable.Visitor visitor);
+
+    /**
+     * Forget everything, keeping allocated memory.
+     */
+    void clear();
+}
@@ -0,0 +1,285 @@
+package edu.trevecca.flare.core.stats;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table of IPv4 address (packed into an int, see {@link edu.trevecca.flare.core.net.IpAddresses}) to
+ * byte and packet counters.
+ * <p>
+ * Storage is three parallel primitive arrays using linear probing, so recording traffic for a host that is already in the
+ * table never allocates. {@link #clear()} keeps the backing arrays, meaning a table reused across stats windows stops
+ * allocating entirely once it has grown to the working set size.
+ * <p>
+ * A slot is occupied when its packet counter is non-zero. This class is not thread safe.
+ */
+public class TrafficTable implements TrafficCounter {
+
+    /**
+     * Resize when the table is more than this full.
+     */
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private int[] addresses;
+    private long[] bytes;
+    private long[] packets;
+    private int mask;
+    private int size;
+    private int resizeAt;
+    private long totalBytes;
+    private long totalPackets;
+
+    /**
+     * Constructor.
+     *
+     * @param expectedHosts number of hosts the table should hold before it needs to grow
+     */
+    public TrafficTable(int expectedHosts) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedHosts / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    public TrafficTable() {
+        this(1024);
+    }
+
+    /**
+     * Record a single packet.
+     *
+     * @param address packed IPv4 address
+     * @param length  number of bytes in the packet
+     */
+    @Override public void add(int address, long length) {
+        add(address, length, 1);
+    }
+
+    /**
+     * Record traffic for a host.
+     *
+     * @param address packed IPv4 address
+     * @param length  number of bytes to add
+     * @param count   number of packets to add, must be positive
+     */
+    public void add(int address, long length, long count) {
+        int slot = mix(address) & mask;
+        while (packets[slot] != 0) {
+            if (addresses[slot] == address) {
+                bytes[slot] += length;
+                packets[slot] += count;
+                totalBytes += length;
+                totalPackets += count;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        addresses[slot] = address;
+        bytes[slot] = length;
+        packets[slot] = count;
+        totalBytes += length;
+        totalPackets += count;
+        if (++size > resizeAt) {
+            allocate(addresses.length << 1);
+        }
+    }
+
+    /**
+     * Add every entry of another table to this one.
+     *
+     * @param other table to merge in
+     */
+    public void addAll(TrafficTable other) {
+        for (int slot = 0; slot < other.capacity(); slot++) {
+            if (other.isUsed(slot)) {
+                add(other.addresses[slot], other.bytes[slot], other.packets[slot]);
+            }
+        }
+    }
+
+    /**
+     * @param address packed IPv4 address
+     * @return bytes recorded for the address, or {@code 0} if it has not been seen
+     */
+    public long bytesFor(int address) {
+        int slot = mix(address) & mask;
+        while (packets[slot] != 0) {
+            if (addresses[slot] == address) {
+                return bytes[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    /**
+     * Remove all entries while keeping the allocated capacity.
+     */
+    @Override public void clear() {
+        if (size > 0) {
+            Arrays.fill(packets, 0);
+        }
+        size = 0;
+        totalBytes = 0;
+        totalPackets = 0;
+    }
+
+    /**
+     * Visit every entry in table order.
+     *
+     * @param visitor to call for each host
+     */
+    @Override public void forEach(Visitor visitor) {
+        for (int slot = 0; slot < packets.length; slot++) {
+            if (packets[slot] != 0) {
+                visitor.visit(addresses[slot], bytes[slot], packets[slot]);
+            }
+        }
+    }
+
+    /**
+     * Get the occupied slots ordered by byte count, largest first. Use {@link #address(int)}, {@link #bytes(int)} and
+     * {@link #packets(int)} to read each entry.
+     *
+     * @return slot indices, one per host
+     */
+    public int[] slotsByBytes() {
+        int[] slots = new int[size];
+        int i = 0;
+        for (int slot = 0; slot < packets.length; slot++) {
+            if (packets[slot] != 0) {
+                slots[i++] = slot;
+            }
+        }
+        sortDescending(slots, 0, slots.length - 1);
+        return slots;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int capacity() {
+        return addresses.length;
+    }
+
+    public boolean isUsed(int slot) {
+        return packets[slot] != 0;
+    }
+
+    public int address(int slot) {
+        return addresses[slot];
+    }
+
+    public long bytes(int slot) {
+        return bytes[slot];
+    }
+
+    public long packets(int slot) {
+        return packets[slot];
+    }
+
+    /**
+     * @return sum of bytes across every host
+     */
+    public long totalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return sum of packets across every host
+     */
+    public long totalPackets() {
+        return totalPackets;
+    }
+
+    private void allocate(int capacity) {
+        int[] oldAddresses = addresses;
+        long[] oldBytes = bytes;
+        long[] oldPackets = packets;
+
+        addresses = new int[capacity];
+        bytes = new long[capacity];
+        packets = new long[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+
+        if (oldPackets == null) {
+            return;
+        }
+        // Re-insert without touching the totals or size, they don't change
+        for (int i = 0; i < oldPackets.length; i++) {
+            if (oldPackets[i] != 0) {
+                int slot = mix(oldAddresses[i]) & mask;
+                while (packets[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                addresses[slot] = oldAddresses[i];
+                bytes[slot] = oldBytes[i];
+                packets[slot] = oldPackets[i];
+            }
+        }
+    }
+
+    /**
+     * Spread address bits so that hosts in the same subnet don't cluster into neighbouring slots.
+     */
+    private static int mix(int address) {
+        int h = address * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void sortDescending(int[] slots, int low, int high) {
+        while (low < high) {
+            if (high - low < 16) {
+                for (int i = low + 1; i <= high; i++) {
+                    int slot = slots[i];
+                    int j = i - 1;
+                    while (j >= low && bytes[slots[j]] < bytes[slot]) {
+                        slots[j + 1] = slots[j];
+                        j--;
+                    }
+                    slots[j + 1] = slot;
+                }
+                return;
+            }
+
+            long pivot = bytes[slots[(low + high) >>> 1]];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (bytes[slots[i]] > pivot) {
+                    i++;
+                }
+                while (bytes[slots[j]] < pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int tmp = slots[i];
+                    slots[i++] = slots[j];
+                    slots[j--] = tmp;
+                }
+            }
+            // Recurse into the smaller half to bound stack depth
+            if (j - low < high - i) {
+                sortDescending(slots, low, j);
+                low = i;
+            }
+            else {
+                sortDescending(slots, i, high);
+                high = j;
+            }
+        }
+    }
+
+    /**
+     * Receives entries from {@link #forEach(Visitor)}.
+     */
+    @FunctionalInterface
+    public interface Visitor {
+
+        void visit(int address, long bytes, long packets);
+    }
+}
@@ -0,0 +1,167 @@
+package edu.trevecca.flare.core.transfer;
+
+import edu.trevecca.flare.core.sketch.HyperLogLog;
+import edu.trevecca.flare.core.sketch.SketchBounds;
+import java.time.Instant;
+
+/**
+ * A received {@link PacketDumpRedisMessage}, independent of the wire format it arrived in.
+ */
+public class PacketDump {
+
+    private final Instant start;
+    private final int statsWindow;
+    private final int badNets;
+    private final Traffic outbound;
+    private final Traffic inbound;
+    private final Resolutions dns;
+    private final String collector;
+
+    /**
+     * Constructor.
+     *
+     * @param start       when the packet dump started
+     * @param statsWindow time between dumps
+     * @param badNets     number of packets received from net-masks outside of the capture range
+     * @param outbound    traffic going out of the network
+     * @param inbound     traffic coming in to the network
+     * @param dns         resolutions seen during the time period
+     * @param collector   ID of the collector which sent the dump, {@code null} if it didn't say
+     */
+    public PacketDump(Instant start, int statsWindow, int badNets, Traffic outbound, Traffic inbound, Resolutions dns,
+                      String collector) {
+        this.start = start;
+        this.statsWindow = statsWindow;
+        this.badNets = badNets;
+        this.outbound = outbound;
+        this.inbound = inbound;
+        this.dns = dns;
+        this.collector = collector;
+    }
+
+    public Instant start() {
+        return start;
+    }
+
+    public int statsWindow() {
+        return statsWindow;
+    }
+
+    public int badNets() {
+        return badNets;
+    }
+
+    public Traffic outbound() {
+        return outbound;
+    }
+
+    public Traffic inbound() {
+        return inbound;
+    }
+
+    public Resolutions dns() {
+        return dns;
+    }
+
+    /**
+     * @return ID of the collector which sent the dump, {@code null} for collectors from before IDs were sent
+     */
+    public String collector() {
+        return collector;
+    }
+
+    /**
+     * Per-host traffic for one direction, stored as parallel arrays.
+     */
+    public static class Traffic {
+
+        private final int[] addresses;
+        private final long[] bytes;
+        private final double[] percents;
+        private final SketchBounds sketch;
+        private final HyperLogLog hosts;
+
+        /**
+         * Constructor.
+         *
+         * @param addresses packed IPv4 addresses
+         * @param bytes     bytes sent to/from each address
+         * @param percents  share of the direction's total for each address
+         * @param sketch    error bounds if only the top hosts were sent, {@code null} if every host was
+         * @param hosts     distinct hosts of the direction, {@code null} if the collector didn't count them
+         */
+        public Traffic(int[] addresses, long[] bytes, double[] percents, SketchBounds sketch, HyperLogLog hosts) {
+            this.addresses = addresses;
+            this.bytes = bytes;
+            this.percents = percents;
+            this.sketch = sketch;
+            this.hosts = hosts;
+        }
+
+        public int size() {
+            return addresses.length;
+        }
+
+        public int address(int index) {
+            return addresses[index];
+        }
+
+        public long bytes(int index) {
+            return bytes[index];
+        }
+
+        public double percent(int index) {
+            return percents[index];
+        }
+
+        /**
+         * @return error bounds if only the top hosts were sent, {@code null} if every host was
+         */
+        public SketchBounds sketch() {
+            return sketch;
+        }
+
+        /**
+         * @return distinct hosts of the direction, including any which weren't sent, {@code null} if the collector
+         * didn't count them
+         */
+        public HyperLogLog hosts() {
+            return hosts;
+        }
+    }
+
+    /**
+     * Domain -> IP resolutions as (address, domain) pairs. Domains are stored once and referenced by index.
+     */
+    public static class Resolutions {
+
+        private final String[] domains;
+        private final int[] addresses;
+        private final int[] domainIds;
+
+        /**
+         * Constructor.
+         *
+         * @param domains   distinct domain names
+         * @param addresses packed IPv4 address of each resolution
+         * @param domainIds index into {@code domains} of each resolution
+         */
+        public Resolutions(String[] domains, int[] addresses, int[] domainIds) {
+            this.domains = domains;
+            this.addresses = addresses;
+            this.domainIds = domainIds;
+        }
+
+        public int size() {
+            return addresses.length;
+        }
+
+        public int address(int index) {
+            return addresses[index];
+        }
+
+        public String domain(int index) {
+            return domains[domainIds[index]];
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package edu.trevecca.flare.core.transfer;
+
+import com.google.common.collect.Multimap;
+import edu.trevecca.flare.core.net.IpAddresses;
+import edu.trevecca.flare.core.sketch.HyperLogLog;
+import edu.trevecca.flare.core.sketch.SketchBounds;
+import edu.trevecca.flare.core.stats.TrafficTable;
+import java.net.Inet4Address;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of a {@link PacketDumpRedisMessage}.
+ * <p>
+ * Layout (version 4), all integers are unsigned LEB128 varints unless noted:
+ * <pre>
+ * magic "FLRD" (4 bytes), version (1 byte)
+ * start millis, stats window, bad nets, flags (bit 0: traffic is top hosts only, bit 1: distinct host sketches)
+ * collector ID as length + UTF-8 bytes, empty if not known
+ * outbound traffic, inbound traffic:
+ *     host count, then per host ordered by address: address (raw 4 bytes for the first, delta from the previous after
+ *     that), bytes, packets
+ *     if top hosts only: top K, total bytes, total packets, max error, threshold, confidence (raw 8 byte double)
+ *     if distinct host sketches: length + {@link HyperLogLog#toBytes()}
+ * dns:
+ *     domain count, then each domain as length + UTF-8 bytes
+ *     resolution count, then per resolution ordered by address: address (as above), domain index
+ * </pre>
+ * Only the current version is read, collectors and the aggregator are upgraded together.
+ */
+public class PacketDumpCodec {
+
+    /**
+     * Current format version, bump this whenever the layout changes.
+     */
+    public static final int VERSION = 4;
+    private static final byte[] MAGIC = {'F', 'L', 'R', 'D'};
+    private static final int FLAG_SKETCHED = 1;
+    private static final int FLAG_HOSTS = 2;
+
+    private PacketDumpCodec() {
+    }
+
+    /**
+     * Encode a dump.
+     *
+     * @param start           when the packet dump started
+     * @param outboundTraffic traffic going out of the network
+     * @param inboundTraffic  traffic coming in to the network
+     * @param dnsResolutions  map of domain -> resolved IPs during the time period
+     * @param statsWindow     time between dumps
+     * @param badNets         number of packets received from net-masks outside of the capture range
+     * @param outboundSketch  error bounds if the outbound traffic is only the top hosts, {@code null} otherwise
+     * @param inboundSketch   error bounds if the inbound traffic is only the top hosts, {@code null} otherwise
+     * @param outboundHosts   distinct outbound hosts, {@code null} if not counted
+     * @param inboundHosts    distinct inbound hosts, {@code null} if not counted
+     * @param collector       ID of the collector sending the dump, {@code null} if not known
+     * @return the encoded dump
+     */
+    public static byte[] encode(Instant start, TrafficTable outboundTraffic, TrafficTable inboundTraffic,
+                                Multimap<String, Inet4Address> dnsResolutions, int statsWindow, int badNets,
+                                SketchBounds outboundSketch, SketchBounds inboundSketch,
+                                HyperLogLog outboundHosts, HyperLogLog inboundHosts, String collector) {
+        if ((outboundSketch == null) != (inboundSketch == null)) {
+            throw new IllegalArgumentException("Either both or neither direction can be sketched");
+        }
+        if ((outboundHosts == null) != (inboundHosts == null)) {
+            throw new IllegalArgumentException("Either both or neither direction can count distinct hosts");
+        }
+        boolean sketched = outboundSketch != null;
+
+        Output out = new Output(64 + (outboundTraffic.size() + inboundTraffic.size()) * 8 + dnsResolutions.size() * 16);
+        out.writeBytes(MAGIC);
+        out.writeByte(VERSION);
+        out.writeVarLong(start.toEpochMilli());
+        out.writeVarLong(statsWindow);
+        out.writeVarLong(badNets);
+        out.writeVarLong((sketched ? FLAG_SKETCHED : 0) | (outboundHosts != null ? FLAG_HOSTS : 0));
+        out.writeString(collector != null ? collector : "");
+
+        writeTraffic(out, outboundTraffic, outboundSketch, outboundHosts);
+        writeTraffic(out, inboundTraffic, inboundSketch, inboundHosts);
+        writeDns(out, dnsResolutions);
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a dump.
+     *
+     * @param data encoded dump
+     * @return the decoded dump
+     * @throws IllegalArgumentException if the data is not a dump or uses an unsupported version
+     */
+    public static PacketDump decode(byte[] data) {
+        if (!isBinary(data)) {
+            throw new IllegalArgumentException("Not a binary packet dump");
+        }
+        int version = data[MAGIC.length] & 0xFF;
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported packet dump version " + version);
+        }
+
+        Input in = new Input(data, MAGIC.length + 1);
+        Instant start = Instant.ofEpochMilli(in.readVarLong());
+        int statsWindow = (int) in.readVarLong();
+        int badNets = (int) in.readVarLong();
+        long flags = in.readVarLong();
+        boolean sketched = (flags & FLAG_SKETCHED) != 0;
+        boolean hosts = (flags & FLAG_HOSTS) != 0;
+        String collector = in.readString();
+        PacketDump.Traffic outbound = readTraffic(in, sketched, hosts);
+        PacketDump.Traffic inbound = readTraffic(in, sketched, hosts);
+        PacketDump.Resolutions dns = readDns(in);
+
+        return new PacketDump(start, statsWindow, badNets, outbound, inbound, dns, collector.isEmpty() ? null : collector);
+    }
+
+    /**
+     * @param data received bytes
+     * @return {@code true} if the data starts with the binary dump magic
+     */
+    public static boolean isBinary(byte[] data) {
+        if (data.length <= MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeTraffic(Output out, TrafficTable table, SketchBounds sketch, HyperLogLog hosts) {
+        // Sort slots by address, packing the slot into the low bits so a plain long sort does the work
+        long[] order = new long[table.size()];
+        int count = 0;
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            if (table.isUsed(slot)) {
+                order[count++] = sortKey(table.address(slot), slot);
+            }
+        }
+        Arrays.sort(order);
+
+        out.writeVarLong(count);
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            int slot = (int) order[i];
+            int address = sortedAddress(order[i]);
+            writeAddress(out, address, previous, i == 0);
+            out.writeVarLong(table.bytes(slot));
+            out.writeVarLong(table.packets(slot));
+            previous = address;
+        }
+
+        if (sketch != null) {
+            out.writeVarLong(sketch.topK());
+            out.writeVarLong(sketch.totalBytes());
+            out.writeVarLong(sketch.totalPackets());
+            out.writeVarLong(sketch.maxError());
+            out.writeVarLong(sketch.threshold());
+            out.writeLong(Double.doubleToLongBits(sketch.confidence()));
+        }
+        if (hosts != null) {
+            byte[] registers = hosts.toBytes();
+            out.writeVarLong(registers.length);
+            out.writeBytes(registers);
+        }
+    }
+
+    private static PacketDump.Traffic readTraffic(Input in, boolean sketched, boolean hosts) {
+        int count = in.readCount();
+        int[] addresses = new int[count];
+        long[] bytes = new long[count];
+        double[] percents = new double[count];
+        long total = 0;
+
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            previous = readAddress(in, previous, i == 0);
+            addresses[i] = previous;
+            bytes[i] = in.readVarLong();
+            total += bytes[i];
+            // Packet count, not used by the dump model yet
+            in.readVarLong();
+        }
+
+        SketchBounds sketch = null;
+        if (sketched) {
+            sketch = new SketchBounds((int) in.readVarLong(), in.readVarLong(), in.readVarLong(), in.readVarLong(),
+                                      in.readVarLong(), Double.longBitsToDouble(in.readLong())
+            );
+            // Shares are of everything seen, not just the hosts which were sent
+            total = sketch.totalBytes();
+        }
+        for (int i = 0; i < count; i++) {
+            percents[i] = (double) bytes[i] / total;
+        }
+        HyperLogLog distinct = hosts ? HyperLogLog.fromBytes(in.readBytes(in.readCount())) : null;
+
+        return new PacketDump.Traffic(addresses, bytes, percents, sketch, distinct);
+    }
+
+    private static void writeDns(Output out, Multimap<String, Inet4Address> dns) {
+        Map<String, Collection<Inet4Address>> domains = dns.asMap();
+        out.writeVarLong(domains.size());
+        long[] order = new long[dns.size()];
+        int count = 0;
+        int id = 0;
+        for (Map.Entry<String, Collection<Inet4Address>> entry : domains.entrySet()) {
+            out.writeString(entry.getKey());
+            for (Inet4Address address : entry.getValue()) {
+                order[count++] = sortKey(IpAddresses.toInt(address.getAddress()), id);
+            }
+            id++;
+        }
+        Arrays.sort(order, 0, count);
+
+        out.writeVarLong(count);
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            int address = sortedAddress(order[i]);
+            writeAddress(out, address, previous, i == 0);
+            out.writeVarLong((int) order[i]);
+            previous = address;
+        }
+    }
+
+    private static PacketDump.Resolutions readDns(Input in) {
+        String[] domains = new String[in.readCount()];
+        for (int i = 0; i < domains.length; i++) {
+            domains[i] = in.readString();
+        }
+
+        int count = in.readCount();
+        int[] addresses = new int[count];
+        int[] domainIds = new int[count];
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            previous = readAddress(in, previous, i == 0);
+            addresses[i] = previous;
+            long domain = in.readVarLong();
+            if (domain < 0 || domain >= domains.length) {
+                throw new IllegalArgumentException("Domain index " + domain + " out of range");
+            }
+            domainIds[i] = (int) domain;
+        }
+
+        return new PacketDump.Resolutions(domains, addresses, domainIds);
+    }
+
+    /**
+     * Build a key which sorts by unsigned address (flipping the sign bit makes signed order match), with a non-negative
+     * value carried in the low 32 bits.
+     */
+    private static long sortKey(int address, int value) {
+        return ((long) (address ^ Integer.MIN_VALUE) << 32) | value;
+    }
+
+    private static int sortedAddress(long key) {
+        return (int) (key >>> 32) ^ Integer.MIN_VALUE;
+    }
+
+    private static void writeAddress(Output out, int address, int previous, boolean first) {
+        if (first) {
+            out.writeInt(address);
+        }
+        else {
+            out.writeVarLong((address & 0xFFFFFFFFL) - (previous & 0xFFFFFFFFL));
+        }
+    }
+
+    private static int readAddress(Input in, int previous, boolean first) {
+        return first ? in.readInt() : (int) ((previous & 0xFFFFFFFFL) + in.readVarLong());
+    }
+
+    /**
+     * Growable byte sink.
+     */
+    private static class Output {
+
+        private byte[] buffer;
+        private int position;
+
+        Output(int capacity) {
+            this.buffer = new byte[Math.max(16, capacity)];
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeBytes(byte[] value) {
+            ensure(value.length);
+            System.arraycopy(value, 0, buffer, position, value.length);
+            position += value.length;
+        }
+
+        void writeInt(int value) {
+            ensure(4);
+            buffer[position++] = (byte) (value >>> 24);
+            buffer[position++] = (byte) (value >>> 16);
+            buffer[position++] = (byte) (value >>> 8);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            writeBytes(bytes);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+
+        private void ensure(int bytes) {
+            if (position + bytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, position + bytes));
+            }
+        }
+    }
+
+    /**
+     * Bounds checked reader over a byte array.
+     */
+    private static class Input {
+
+        private final byte[] buffer;
+        private int position;
+
+        Input(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        int readInt() {
+            require(4);
+            int value = ((buffer[position] & 0xFF) << 24) | ((buffer[position + 1] & 0xFF) << 16)
+                        | ((buffer[position + 2] & 0xFF) << 8) | (buffer[position + 3] & 0xFF);
+            position += 4;
+            return value;
+        }
+
+        long readLong() {
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                require(1);
+                byte b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint at " + position);
+        }
+
+        /**
+         * Read a varint used as an element count, rejecting values which can't possibly fit in the remaining data.
+         */
+        int readCount() {
+            long value = readVarLong();
+            if (value < 0 || value > buffer.length - position) {
+                throw new IllegalArgumentException("Count " + value + " out of range");
+            }
+            return (int) value;
+        }
+
+        String readString() {
+            int length = readCount();
+            require(length);
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        byte[] readBytes(int length) {
+            require(length);
+            byte[] value = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return value;
+        }
+
+        private void require(int bytes) {
+            if (bytes < 0 || position + bytes > buffer.length) {
+                throw new IllegalArgumentException("Packet dump truncated at " + position);
+            }
+        }
+    }
+}
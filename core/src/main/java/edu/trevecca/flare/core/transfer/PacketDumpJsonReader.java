@@ -0,0 +1,253 @@
+package edu.trevecca.flare.core.transfer;
+
+import com.google.gson.stream.JsonReader;
+import edu.trevecca.flare.core.sketch.HyperLogLog;
+import edu.trevecca.flare.core.sketch.SketchBounds;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads a {@link PacketDumpRedisMessage} token by token, straight into the arrays of a {@link PacketDump}.
+ * <p>
+ * Unlike parsing into a {@link com.google.gson.JsonObject} first, no tree of the whole message is built, so a dump with a
+ * million hosts costs its parallel arrays rather than a million small maps. Fields may come in any order and unknown
+ * fields are skipped.
+ */
+class PacketDumpJsonReader {
+
+    private final JsonReader reader;
+    private String format;
+    private String data;
+    private Long start;
+    private Integer window;
+    private Integer badNets;
+    private String collector;
+    private final Entries outbound = new Entries();
+    private final Entries inbound = new Entries();
+    private SketchBounds outboundSketch;
+    private SketchBounds inboundSketch;
+    private HyperLogLog outboundHosts;
+    private HyperLogLog inboundHosts;
+    private final Map<String, Integer> domainIds = new LinkedHashMap<>();
+    private int[] dnsAddresses = new int[16];
+    private int[] dnsDomains = new int[16];
+    private int dnsSize;
+
+    PacketDumpJsonReader(JsonReader reader) {
+        this.reader = reader;
+        // Same as JsonParser, which the tree based reader goes through
+        this.reader.setLenient(true);
+    }
+
+    PacketDump read() throws IOException {
+        this.reader.beginObject();
+        while (this.reader.hasNext()) {
+            switch (this.reader.nextName()) {
+                case "format":
+                    this.format = this.reader.nextString();
+                    break;
+                case "data":
+                    this.data = this.reader.nextString();
+                    break;
+                case "start":
+                    this.start = this.reader.nextLong();
+                    break;
+                case "window":
+                    this.window = this.reader.nextInt();
+                    break;
+                case "bad-nets":
+                    this.badNets = this.reader.nextInt();
+                    break;
+                case "collector":
+                    this.collector = this.reader.nextString();
+                    break;
+                case "outbound":
+                    readData(this.outbound);
+                    break;
+                case "inbound":
+                    readData(this.inbound);
+                    break;
+                case "outbound-sketch":
+                    this.outboundSketch = readSketch();
+                    break;
+                case "inbound-sketch":
+                    this.inboundSketch = readSketch();
+                    break;
+                case "outbound-hosts":
+                    this.outboundHosts = HyperLogLog.fromBytes(Base64.getDecoder().decode(this.reader.nextString()));
+                    break;
+                case "inbound-hosts":
+                    this.inboundHosts = HyperLogLog.fromBytes(Base64.getDecoder().decode(this.reader.nextString()));
+                    break;
+                case "dns":
+                    readDns();
+                    break;
+                default:
+                    this.reader.skipValue();
+            }
+        }
+        this.reader.endObject();
+
+        if (PacketDumpRedisMessage.Format.BINARY.id().equals(this.format)) {
+            if (this.data == null) {
+                throw new IllegalArgumentException("Binary packet dump has no data");
+            }
+            return PacketDumpCodec.decode(Base64.getDecoder().decode(this.data));
+        }
+        if (this.start == null || this.window == null || this.badNets == null) {
+            throw new IllegalArgumentException("Packet dump is missing its start, window or bad nets");
+        }
+
+        PacketDump.Resolutions dns = new PacketDump.Resolutions(this.domainIds.keySet().toArray(new String[0]),
+                                                                Arrays.copyOf(this.dnsAddresses, this.dnsSize),
+                                                                Arrays.copyOf(this.dnsDomains, this.dnsSize)
+        );
+        return new PacketDump(Instant.ofEpochMilli(this.start), this.window, this.badNets,
+                              this.outbound.toTraffic(this.outboundSketch, this.outboundHosts),
+                              this.inbound.toTraffic(this.inboundSketch, this.inboundHosts), dns, this.collector
+        );
+    }
+
+    private void readData(Entries entries) throws IOException {
+        this.reader.beginArray();
+        while (this.reader.hasNext()) {
+            int address = 0;
+            boolean hasHost = false;
+            long bytes = 0;
+            double percent = 0;
+            this.reader.beginObject();
+            while (this.reader.hasNext()) {
+                switch (this.reader.nextName()) {
+                    case "host":
+                        address = PacketDumpRedisMessage.readAddress(this.reader.nextString());
+                        hasHost = true;
+                        break;
+                    case "total":
+                        bytes = this.reader.nextLong();
+                        break;
+                    case "percent":
+                        percent = this.reader.nextDouble();
+                        break;
+                    default:
+                        this.reader.skipValue();
+                }
+            }
+            this.reader.endObject();
+            if (!hasHost) {
+                throw new IllegalArgumentException("Packet dump entry has no host");
+            }
+            entries.add(address, bytes, percent);
+        }
+        this.reader.endArray();
+    }
+
+    private SketchBounds readSketch() throws IOException {
+        int topK = 0;
+        long totalBytes = 0;
+        long totalPackets = 0;
+        long maxError = 0;
+        long threshold = 0;
+        double confidence = 0;
+        this.reader.beginObject();
+        while (this.reader.hasNext()) {
+            switch (this.reader.nextName()) {
+                case "top-k":
+                    topK = this.reader.nextInt();
+                    break;
+                case "total-bytes":
+                    totalBytes = this.reader.nextLong();
+                    break;
+                case "total-packets":
+                    totalPackets = this.reader.nextLong();
+                    break;
+                case "max-error":
+                    maxError = this.reader.nextLong();
+                    break;
+                case "threshold":
+                    threshold = this.reader.nextLong();
+                    break;
+                case "confidence":
+                    confidence = this.reader.nextDouble();
+                    break;
+                default:
+                    this.reader.skipValue();
+            }
+        }
+        this.reader.endObject();
+        return new SketchBounds(topK, totalBytes, totalPackets, maxError, threshold, confidence);
+    }
+
+    private void readDns() throws IOException {
+        this.reader.beginArray();
+        while (this.reader.hasNext()) {
+            // The domain can come after its addresses, so they are held until the entry ends
+            String domain = null;
+            int first = this.dnsSize;
+            this.reader.beginObject();
+            while (this.reader.hasNext()) {
+                switch (this.reader.nextName()) {
+                    case "domain":
+                        domain = this.reader.nextString();
+                        break;
+                    case "ips":
+                        this.reader.beginArray();
+                        while (this.reader.hasNext()) {
+                            addResolution(PacketDumpRedisMessage.readAddress(this.reader.nextString()));
+                        }
+                        this.reader.endArray();
+                        break;
+                    default:
+                        this.reader.skipValue();
+                }
+            }
+            this.reader.endObject();
+            if (domain == null) {
+                throw new IllegalArgumentException("DNS entry has no domain");
+            }
+            Integer id = this.domainIds.computeIfAbsent(domain, k -> this.domainIds.size());
+            Arrays.fill(this.dnsDomains, first, this.dnsSize, id);
+        }
+        this.reader.endArray();
+    }
+
+    private void addResolution(int address) {
+        if (this.dnsSize == this.dnsAddresses.length) {
+            this.dnsAddresses = Arrays.copyOf(this.dnsAddresses, this.dnsSize << 1);
+            this.dnsDomains = Arrays.copyOf(this.dnsDomains, this.dnsSize << 1);
+        }
+        this.dnsAddresses[this.dnsSize++] = address;
+    }
+
+    /**
+     * Growable parallel arrays of one direction's hosts.
+     */
+    private static class Entries {
+
+        private int[] addresses = new int[16];
+        private long[] bytes = new long[16];
+        private double[] percents = new double[16];
+        private int size;
+
+        void add(int address, long bytes, double percent) {
+            if (this.size == this.addresses.length) {
+                this.addresses = Arrays.copyOf(this.addresses, this.size << 1);
+                this.bytes = Arrays.copyOf(this.bytes, this.size << 1);
+                this.percents = Arrays.copyOf(this.percents, this.size << 1);
+            }
+            this.addresses[this.size] = address;
+            this.bytes[this.size] = bytes;
+            this.percents[this.size] = percent;
+            this.size++;
+        }
+
+        PacketDump.Traffic toTraffic(SketchBounds sketch, HyperLogLog hosts) {
+            return new PacketDump.Traffic(Arrays.copyOf(this.addresses, this.size), Arrays.copyOf(this.bytes, this.size),
+                                          Arrays.copyOf(this.percents, this.size), sketch, hosts
+            );
+        }
+    }
+}
@@ -1,66 +1,258 @@
 package edu.trevecca.flare.core.transfer;
 
+import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Multimap;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import edu.trevecca.flare.core.net.IpAddresses;
 import edu.trevecca.flare.core.redis.RedisMessage;
+import edu.trevecca.flare.core.sketch.HyperLogLog;
+import edu.trevecca.flare.core.sketch.SketchBounds;
+import edu.trevecca.flare.core.stats.TrafficTable;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.net.Inet4Address;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
-import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 public class PacketDumpRedisMessage implements RedisMessage {
 
     private static final Random RANDOM = new Random();
     private static final int MULTIPLIER_MIN = 1;
     private static final int MULTIPLIER_MAX = 100;
+    /**
+     * Number of times JSON entries are repeated to load test aggregators, from the {@code flare.dump.multiplier} system
+     * property, {@code 0} for a random multiplier for each list. Binary dumps are never repeated, so anything but the
+     * default {@code 1} makes the formats disagree and inflates every total the aggregator records.
+     */
+    private static final int MULTIPLIER = Integer.getInteger("flare.dump.multiplier", 1);
 
     private final Instant start;
-    private final Map<Inet4Address, AtomicInteger> outboundTraffic;
-    private final Map<Inet4Address, AtomicInteger> inboundTraffic;
+    private final TrafficTable outboundTraffic;
+    private final TrafficTable inboundTraffic;
     private final Multimap<String, Inet4Address> dnsResolutions;
     private final int statsWindow;
     private final int badNets;
+    private final Format format;
+    private final SketchBounds outboundSketch;
+    private final SketchBounds inboundSketch;
+    private final HyperLogLog outboundHosts;
+    private final HyperLogLog inboundHosts;
+    private final String collector;
+
+    private PacketDumpRedisMessage(PacketDumpRedisMessage.Builder builder) {
+        this.start = builder.start;
+        this.outboundTraffic = builder.outboundTraffic;
+        this.inboundTraffic = builder.inboundTraffic;
+        this.dnsResolutions = builder.dnsResolutions;
+        this.statsWindow = builder.statsWindow;
+        this.badNets = builder.badNets;
+        this.format = builder.format;
+        this.outboundSketch = builder.outboundSketch;
+        this.inboundSketch = builder.inboundSketch;
+        this.outboundHosts = builder.outboundHosts;
+        this.inboundHosts = builder.inboundHosts;
+        this.collector = builder.collector;
+    }
 
     /**
-     * Constructor.
+     * Start building a dump, sent in the {@link Format#JSON} format with every host, no DNS resolutions and no bad nets
+     * unless told otherwise.
      *
      * @param start           when the packet dump started
+     * @param statsWindow     time between dumps
      * @param outboundTraffic traffic going out of the network
      * @param inboundTraffic  traffic coming in to the network
-     * @param dnsResolutions  map of domain -> resolved IPs during the time period
-     * @param statsWindow     time between dumps
-     * @param badNets         number of packets received from net-masks outside of the capture range
+     * @return the builder
      */
-    public PacketDumpRedisMessage(Instant start,
-                                  Map<Inet4Address, AtomicInteger> outboundTraffic,
-                                  Map<Inet4Address, AtomicInteger> inboundTraffic,
-                                  Multimap<String, Inet4Address> dnsResolutions,
-                                  int statsWindow, int badNets) {
-        this.start = start;
-        this.outboundTraffic = outboundTraffic;
-        this.inboundTraffic = inboundTraffic;
-        this.dnsResolutions = dnsResolutions;
-        this.statsWindow = statsWindow;
-        this.badNets = badNets;
+    public static PacketDumpRedisMessage.Builder builder(Instant start, int statsWindow, TrafficTable outboundTraffic,
+                                                         TrafficTable inboundTraffic) {
+        return new PacketDumpRedisMessage.Builder(start, statsWindow, outboundTraffic, inboundTraffic);
+    }
+
+    /**
+     * Read a received dump in either format.
+     *
+     * @param json the received message
+     * @return the decoded dump
+     */
+    public static PacketDump read(JsonObject json) {
+        if (json.has("format") && json.get("format").getAsString().equals(Format.BINARY.id)) {
+            return PacketDumpCodec.decode(Base64.getDecoder().decode(json.get("data").getAsString()));
+        }
+
+        PacketDump.Traffic outbound = readData(json.get("outbound").getAsJsonArray(), readSketch(json, "outbound-sketch"),
+                                               readHosts(json, "outbound-hosts")
+                                              );
+        PacketDump.Traffic inbound = readData(json.get("inbound").getAsJsonArray(), readSketch(json, "inbound-sketch"),
+                                              readHosts(json, "inbound-hosts")
+                                             );
+
+        Map<String, Integer> domainIds = new LinkedHashMap<>();
+        List<Integer> addresses = new ArrayList<>();
+        List<Integer> ids = new ArrayList<>();
+        for (JsonElement dnsEl : json.get("dns").getAsJsonArray()) {
+            JsonObject data = dnsEl.getAsJsonObject();
+            Integer id = domainIds.computeIfAbsent(data.get("domain").getAsString(), k -> domainIds.size());
+            for (JsonElement ip : data.get("ips").getAsJsonArray()) {
+                addresses.add(readAddress(ip.getAsString()));
+                ids.add(id);
+            }
+        }
+        PacketDump.Resolutions dns = new PacketDump.Resolutions(domainIds.keySet().toArray(new String[0]),
+                                                                addresses.stream().mapToInt(i -> i).toArray(),
+                                                                ids.stream().mapToInt(i -> i).toArray()
+        );
+
+        return new PacketDump(Instant.ofEpochMilli(json.get("start").getAsLong()), json.get("window").getAsInt(),
+                              json.get("bad-nets").getAsInt(), outbound, inbound, dns,
+                              json.has("collector") ? json.get("collector").getAsString() : null
+        );
+    }
+
+    /**
+     * Read a received payload in any format: a raw {@link PacketDumpCodec} dump, or JSON which is read without building a
+     * tree of the whole message.
+     *
+     * @param payload the received payload
+     * @return the decoded dump
+     * @throws IOException if the payload is neither a binary dump nor valid JSON
+     */
+    public static PacketDump read(byte[] payload) throws IOException {
+        if (PacketDumpCodec.isBinary(payload)) {
+            return PacketDumpCodec.decode(payload);
+        }
+        return read(new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read a received JSON dump in either format without building a tree of the whole message, see
+     * {@link PacketDumpJsonReader}.
+     *
+     * @param message the received message
+     * @return the decoded dump
+     * @throws IOException if the message isn't valid JSON
+     */
+    public static PacketDump read(Reader message) throws IOException {
+        return new PacketDumpJsonReader(new JsonReader(message)).read();
+    }
+
+    /**
+     * Read an address sent by a collector, which only ever sends IPv4 literals.
+     *
+     * @param host the address as sent
+     * @return the packed address
+     * @throws IllegalArgumentException if the host isn't an IPv4 literal, rather than recording a made up address
+     */
+    static int readAddress(String host) {
+        long address = IpAddresses.parse(host);
+        if (address < 0) {
+            throw new IllegalArgumentException("Packet dump has a host which isn't an IPv4 address: " + host);
+        }
+        return (int) address;
+    }
+
+    private static SketchBounds readSketch(JsonObject json, String key) {
+        if (!json.has(key)) {
+            return null;
+        }
+        JsonObject sketch = json.get(key).getAsJsonObject();
+        return new SketchBounds(sketch.get("top-k").getAsInt(), sketch.get("total-bytes").getAsLong(),
+                                sketch.get("total-packets").getAsLong(), sketch.get("max-error").getAsLong(),
+                                sketch.get("threshold").getAsLong(), sketch.get("confidence").getAsDouble()
+        );
+    }
+
+    private static HyperLogLog readHosts(JsonObject json, String key) {
+        return json.has(key) ? HyperLogLog.fromBytes(Base64.getDecoder().decode(json.get(key).getAsString())) : null;
+    }
+
+    private static PacketDump.Traffic readData(JsonArray data, SketchBounds sketch, HyperLogLog hosts) {
+        int[] addresses = new int[data.size()];
+        long[] bytes = new long[data.size()];
+        double[] percents = new double[data.size()];
+        for (int i = 0; i < data.size(); i++) {
+            JsonObject packet = data.get(i).getAsJsonObject();
+            if (!packet.has("host")) {
+                throw new IllegalArgumentException("Packet dump entry has no host");
+            }
+            addresses[i] = readAddress(packet.get("host").getAsString());
+            bytes[i] = packet.get("total").getAsLong();
+            percents[i] = packet.get("percent").getAsDouble();
+        }
+        return new PacketDump.Traffic(addresses, bytes, percents, sketch, hosts);
     }
 
     @Override public String channel() {
         return "packet-data";
     }
 
+    /**
+     * Binary dumps are published as the raw {@link PacketDumpCodec} bytes.
+     */
+    @Override public void write(OutputStream out) throws IOException {
+        if (this.format == Format.BINARY) {
+            out.write(encode());
+        }
+        else {
+            RedisMessage.super.write(out);
+        }
+    }
+
+    @Override public byte[] payload() {
+        // Skips copying the encoded dump through a stream
+        return this.format == Format.BINARY ? encode() : RedisMessage.super.payload();
+    }
+
+    /**
+     * Binary dumps are wrapped in an object with the encoded dump in base64, the form they took before payloads were
+     * published as bytes. {@link #read(byte[])} reads both.
+     */
     @Override public JsonObject write() {
         JsonObject object = new JsonObject();
 
+        if (this.format == Format.BINARY) {
+            object.addProperty("format", Format.BINARY.id);
+            object.addProperty("version", PacketDumpCodec.VERSION);
+            object.addProperty("data", Base64.getEncoder().encodeToString(encode()));
+            return object;
+        }
+
         // Generic Info
         object.addProperty("start", this.start.toEpochMilli());
         object.addProperty("window", this.statsWindow);
         object.addProperty("bad-nets", this.badNets);
+        if (this.collector != null) {
+            object.addProperty("collector", this.collector);
+        }
 
         // Traffic
-        object.add("outbound", writeData(this.outboundTraffic));
-        object.add("inbound", writeData(this.inboundTraffic));
+        object.add("outbound", writeData(this.outboundTraffic, this.outboundSketch));
+        object.add("inbound", writeData(this.inboundTraffic, this.inboundSketch));
+        if (this.outboundSketch != null) {
+            object.add("outbound-sketch", writeSketch(this.outboundSketch));
+        }
+        if (this.inboundSketch != null) {
+            object.add("inbound-sketch", writeSketch(this.inboundSketch));
+        }
+        if (this.outboundHosts != null) {
+            object.addProperty("outbound-hosts", Base64.getEncoder().encodeToString(this.outboundHosts.toBytes()));
+        }
+        if (this.inboundHosts != null) {
+            object.addProperty("inbound-hosts", Base64.getEncoder().encodeToString(this.inboundHosts.toBytes()));
+        }
 
         // DNS
         object.add("dns", writeDNS());
@@ -68,16 +260,27 @@ public class PacketDumpRedisMessage implements RedisMessage {
         return object;
     }
 
-    private int randomMultiplier() {
+    private byte[] encode() {
+        return PacketDumpCodec.encode(this.start, this.outboundTraffic, this.inboundTraffic, this.dnsResolutions,
+                                      this.statsWindow, this.badNets, this.outboundSketch, this.inboundSketch,
+                                      this.outboundHosts, this.inboundHosts, this.collector
+                                     );
+    }
+
+    private int multiplier() {
+        if (MULTIPLIER > 0) {
+            return MULTIPLIER;
+        }
         return Math.max(0, RANDOM.nextInt(MULTIPLIER_MAX - MULTIPLIER_MIN) + MULTIPLIER_MIN);
     }
 
     private JsonArray writeDNS() {
         JsonArray dns = new JsonArray();
 
-        int multiplier = randomMultiplier();
+        int multiplier = multiplier();
         for (int lol = 0; lol < multiplier; lol++) {
-            for (String domain : dnsResolutions.keys()) {
+            // Each domain once, like binary dumps
+            for (String domain : dnsResolutions.keySet()) {
                 JsonObject resolution = new JsonObject();
                 resolution.addProperty("domain", domain);
                 JsonArray ips = new JsonArray();
@@ -92,30 +295,140 @@ public class PacketDumpRedisMessage implements RedisMessage {
         return dns;
     }
 
-    private JsonArray writeData(Map<Inet4Address, AtomicInteger> data) {
+    private static JsonObject writeSketch(SketchBounds sketch) {
+        JsonObject object = new JsonObject();
+        object.addProperty("top-k", sketch.topK());
+        object.addProperty("total-bytes", sketch.totalBytes());
+        object.addProperty("total-packets", sketch.totalPackets());
+        object.addProperty("max-error", sketch.maxError());
+        object.addProperty("threshold", sketch.threshold());
+        object.addProperty("confidence", sketch.confidence());
+        return object;
+    }
+
+    private JsonArray writeData(TrafficTable data, SketchBounds sketch) {
         JsonArray packetData = new JsonArray();
-        Map<Inet4Address, AtomicInteger> traffic = data.entrySet()
-                                                       .stream()
-                                                       .sorted((a, b) -> Integer.compare(b.getValue().get(), a.getValue().get()))
-                                                       .collect(
-                                                           Collectors
-                                                               .toMap(
-                                                                   Map.Entry::getKey, Map.Entry::getValue, (e1, e2) -> e1,
-                                                                   LinkedHashMap::new
-                                                                     ));
-
-        double total = traffic.values().stream().mapToInt(AtomicInteger::get).sum();
-        int multiplier = randomMultiplier();
+        int[] slots = data.slotsByBytes();
+
+        // Shares are of everything seen, not just the hosts which are sent
+        double total = sketch != null ? sketch.totalBytes() : data.totalBytes();
+        int multiplier = multiplier();
         for (int lol = 0; lol < multiplier; lol++) {
-            traffic.forEach((k, v) -> {
+            for (int slot : slots) {
                 JsonObject packet = new JsonObject();
-                packet.addProperty("host", k.getHostAddress());
-                packet.addProperty("total", v.get());
-                packet.addProperty("percent", (double) v.get() / total);
+                packet.addProperty("host", IpAddresses.toString(data.address(slot)));
+                packet.addProperty("total", data.bytes(slot));
+                packet.addProperty("percent", (double) data.bytes(slot) / total);
                 packetData.add(packet);
-            });
+            }
         }
 
         return packetData;
     }
+
+    public static class Builder {
+
+        private final Instant start;
+        private final int statsWindow;
+        private final TrafficTable outboundTraffic;
+        private final TrafficTable inboundTraffic;
+        private Multimap<String, Inet4Address> dnsResolutions = ImmutableMultimap.of();
+        private int badNets;
+        private Format format = Format.JSON;
+        private SketchBounds outboundSketch;
+        private SketchBounds inboundSketch;
+        private HyperLogLog outboundHosts;
+        private HyperLogLog inboundHosts;
+        private String collector;
+
+        private Builder(Instant start, int statsWindow, TrafficTable outboundTraffic, TrafficTable inboundTraffic) {
+            this.start = start;
+            this.statsWindow = statsWindow;
+            this.outboundTraffic = outboundTraffic;
+            this.inboundTraffic = inboundTraffic;
+        }
+
+        /**
+         * @param dnsResolutions map of domain -> resolved IPs during the time period
+         */
+        public PacketDumpRedisMessage.Builder dnsResolutions(Multimap<String, Inet4Address> dnsResolutions) {
+            this.dnsResolutions = dnsResolutions;
+            return this;
+        }
+
+        /**
+         * @param badNets number of packets received from net-masks outside of the capture range
+         */
+        public PacketDumpRedisMessage.Builder badNets(int badNets) {
+            this.badNets = badNets;
+            return this;
+        }
+
+        /**
+         * @param format how the dump is encoded on the wire
+         */
+        public PacketDumpRedisMessage.Builder format(Format format) {
+            this.format = format;
+            return this;
+        }
+
+        /**
+         * For dumps which only carry the top hosts of each direction.
+         *
+         * @param outboundSketch error bounds of the outbound hosts, {@code null} if every host is included
+         * @param inboundSketch  error bounds of the inbound hosts, {@code null} if every host is included
+         */
+        public PacketDumpRedisMessage.Builder sketches(SketchBounds outboundSketch, SketchBounds inboundSketch) {
+            this.outboundSketch = outboundSketch;
+            this.inboundSketch = inboundSketch;
+            return this;
+        }
+
+        /**
+         * @param outboundHosts distinct hosts of the outbound traffic, {@code null} if not counted
+         * @param inboundHosts  distinct hosts of the inbound traffic, {@code null} if not counted
+         */
+        public PacketDumpRedisMessage.Builder hosts(HyperLogLog outboundHosts, HyperLogLog inboundHosts) {
+            this.outboundHosts = outboundHosts;
+            this.inboundHosts = inboundHosts;
+            return this;
+        }
+
+        /**
+         * @param collector ID of the sending collector, which aggregators partition their work by
+         */
+        public PacketDumpRedisMessage.Builder collector(String collector) {
+            this.collector = collector;
+            return this;
+        }
+
+        public PacketDumpRedisMessage build() {
+            return new PacketDumpRedisMessage(this);
+        }
+    }
+
+    /**
+     * Wire formats a dump can be sent in.
+     */
+    public enum Format {
+        /**
+         * One JSON object per host, readable by every aggregator version.
+         */
+        JSON("json"),
+        /**
+         * {@link PacketDumpCodec}, much smaller and cheaper to build and parse. Published as the raw bytes, which only
+         * aggregators that read byte payloads understand.
+         */
+        BINARY("binary");
+
+        private final String id;
+
+        Format(String id) {
+            this.id = id;
+        }
+
+        String id() {
+            return this.id;
+        }
+    }
 }
@@ -0,0 +1,165 @@
+package edu.trevecca.flare.core.transfer;
+
+import com.google.gson.JsonObject;
+import edu.trevecca.flare.core.redis.RedisMessage;
+import java.util.UUID;
+
+/**
+ * Asks the aggregator for the busiest hosts or root domains of the last few minutes, answered from memory with a
+ * {@link TopTalkersReply} published to the query's reply channel.
+ * <p>
+ * The asker subscribes to the reply channel before publishing the query. Each query gets a channel of its own by
+ * default, so replies never have to be told apart, and the ID is echoed in the reply for askers which share one.
+ */
+public class TopTalkersQuery implements RedisMessage {
+
+    /**
+     * Channel queries are published to.
+     */
+    public static final String CHANNEL = "top-talkers";
+    /**
+     * Prefix of the default reply channels, followed by the query's ID.
+     */
+    public static final String REPLY_PREFIX = "top-talkers:";
+    /**
+     * Most results a query may ask for.
+     */
+    public static final int MAX_LIMIT = 10000;
+    /**
+     * Furthest back a query may look, a week.
+     */
+    public static final int MAX_MINUTES = 7 * 24 * 60;
+
+    private final String id;
+    private final String replyTo;
+    private final GroupBy groupBy;
+    private final Direction direction;
+    private final int minutes;
+    private final int limit;
+
+    /**
+     * Constructor, for a new query with a random ID and a reply channel of its own.
+     *
+     * @param groupBy   what traffic is summed by
+     * @param direction which traffic is summed
+     * @param minutes   how far back to look
+     * @param limit     maximum number of results
+     */
+    public TopTalkersQuery(GroupBy groupBy, Direction direction, int minutes, int limit) {
+        this(UUID.randomUUID().toString(), null, groupBy, direction, minutes, limit);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param id        echoed in the reply
+     * @param replyTo   channel to reply on, {@code null} for {@link #REPLY_PREFIX} followed by the ID
+     * @param groupBy   what traffic is summed by
+     * @param direction which traffic is summed
+     * @param minutes   how far back to look
+     * @param limit     maximum number of results
+     * @throws IllegalArgumentException if minutes or limit is out of range
+     */
+    public TopTalkersQuery(String id, String replyTo, GroupBy groupBy, Direction direction, int minutes, int limit) {
+        if (minutes < 1 || minutes > MAX_MINUTES) {
+            throw new IllegalArgumentException("Minutes must be between 1 and " + MAX_MINUTES);
+        }
+        if (limit < 1 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("Limit must be between 1 and " + MAX_LIMIT);
+        }
+        this.id = id;
+        this.replyTo = replyTo != null ? replyTo : REPLY_PREFIX + id;
+        this.groupBy = groupBy;
+        this.direction = direction;
+        this.minutes = minutes;
+        this.limit = limit;
+    }
+
+    /**
+     * Read a received query. Only the ID is required, everything else defaults to the top 20 root domains by outbound
+     * bytes over the last 15 minutes.
+     *
+     * @param json the received message
+     * @return the query
+     * @throws IllegalArgumentException if the query is missing its ID, asks for something unknown or out of range
+     */
+    public static TopTalkersQuery read(JsonObject json) {
+        if (!json.has("id")) {
+            throw new IllegalArgumentException("Query has no ID");
+        }
+        return new TopTalkersQuery(json.get("id").getAsString(),
+                                   json.has("reply-to") ? json.get("reply-to").getAsString() : null,
+                                   json.has("group-by") ? GroupBy.valueOf(json.get("group-by").getAsString())
+                                                        : GroupBy.ROOT_DOMAIN,
+                                   json.has("direction") ? Direction.valueOf(json.get("direction").getAsString())
+                                                         : Direction.OUTBOUND,
+                                   json.has("minutes") ? json.get("minutes").getAsInt() : 15,
+                                   json.has("limit") ? json.get("limit").getAsInt() : 20
+        );
+    }
+
+    public String id() {
+        return this.id;
+    }
+
+    /**
+     * @return channel the reply is published to
+     */
+    public String replyTo() {
+        return this.replyTo;
+    }
+
+    public GroupBy groupBy() {
+        return this.groupBy;
+    }
+
+    public Direction direction() {
+        return this.direction;
+    }
+
+    public int minutes() {
+        return this.minutes;
+    }
+
+    public int limit() {
+        return this.limit;
+    }
+
+    @Override public String channel() {
+        return CHANNEL;
+    }
+
+    @Override public JsonObject write() {
+        JsonObject object = new JsonObject();
+        object.addProperty("id", this.id);
+        object.addProperty("reply-to", this.replyTo);
+        object.addProperty("group-by", this.groupBy.name());
+        object.addProperty("direction", this.direction.name());
+        object.addProperty("minutes", this.minutes);
+        object.addProperty("limit", this.limit);
+        return object;
+    }
+
+    /**
+     * What traffic is summed by.
+     */
+    public enum GroupBy {
+        /**
+         * IP address, as in {@code dump_info.ip_address}.
+         */
+        HOST,
+        /**
+         * Root domain of the host's latest resolution, or its IP if it has none, as in {@code dump_info.dns_root}.
+         */
+        ROOT_DOMAIN
+    }
+
+    /**
+     * Which traffic is summed.
+     */
+    public enum Direction {
+        OUTBOUND,
+        INBOUND,
+        BOTH
+    }
+}
@@ -0,0 +1,162 @@
+package edu.trevecca.flare.core.transfer;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import edu.trevecca.flare.core.redis.RedisMessage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The answer to a {@link TopTalkersQuery}, published to its reply channel.
+ * <p>
+ * Results cover the windows which started between {@link #from()} and {@link #to()}, busiest first. A query which
+ * couldn't be answered gets a reply with an error and no results.
+ */
+public class TopTalkersReply implements RedisMessage {
+
+    private final String channel;
+    private final String id;
+    private final long from;
+    private final long to;
+    private final List<Talker> talkers;
+    private final String error;
+
+    /**
+     * Constructor, for an answered query.
+     *
+     * @param query   query being answered
+     * @param from    start (epoch millis) of the first window covered
+     * @param to      end (epoch millis) of the last window covered
+     * @param talkers results, busiest first
+     */
+    public TopTalkersReply(TopTalkersQuery query, long from, long to, List<Talker> talkers) {
+        this(query.replyTo(), query.id(), from, to, talkers, null);
+    }
+
+    /**
+     * Constructor, for a query which couldn't be answered.
+     *
+     * @param channel reply channel of the query
+     * @param id      ID of the query
+     * @param error   why it wasn't answered
+     */
+    public TopTalkersReply(String channel, String id, String error) {
+        this(channel, id, 0, 0, Collections.emptyList(), error);
+    }
+
+    private TopTalkersReply(String channel, String id, long from, long to, List<Talker> talkers, String error) {
+        this.channel = channel;
+        this.id = id;
+        this.from = from;
+        this.to = to;
+        this.talkers = talkers;
+        this.error = error;
+    }
+
+    /**
+     * Read a received reply.
+     *
+     * @param channel channel the reply arrived on
+     * @param json    the received message
+     * @return the reply
+     */
+    public static TopTalkersReply read(String channel, JsonObject json) {
+        List<Talker> talkers = new ArrayList<>();
+        for (JsonElement element : json.get("results").getAsJsonArray()) {
+            JsonObject result = element.getAsJsonObject();
+            talkers.add(new Talker(result.get("key").getAsString(), result.get("bytes").getAsLong()));
+        }
+        return new TopTalkersReply(channel, json.get("id").getAsString(), json.get("from").getAsLong(),
+                                   json.get("to").getAsLong(), talkers,
+                                   json.has("error") ? json.get("error").getAsString() : null
+        );
+    }
+
+    /**
+     * @return ID of the query being answered
+     */
+    public String id() {
+        return this.id;
+    }
+
+    /**
+     * @return start (epoch millis) of the first window covered
+     */
+    public long from() {
+        return this.from;
+    }
+
+    /**
+     * @return end (epoch millis) of the last window covered
+     */
+    public long to() {
+        return this.to;
+    }
+
+    /**
+     * @return results, busiest first
+     */
+    public List<Talker> talkers() {
+        return this.talkers;
+    }
+
+    /**
+     * @return why the query wasn't answered, {@code null} if it was
+     */
+    public String error() {
+        return this.error;
+    }
+
+    @Override public String channel() {
+        return this.channel;
+    }
+
+    @Override public JsonObject write() {
+        JsonObject object = new JsonObject();
+        object.addProperty("id", this.id);
+        object.addProperty("from", this.from);
+        object.addProperty("to", this.to);
+        JsonArray results = new JsonArray();
+        for (Talker talker : this.talkers) {
+            JsonObject result = new JsonObject();
+            result.addProperty("key", talker.key());
+            result.addProperty("bytes", talker.bytes());
+            results.add(result);
+        }
+        object.add("results", results);
+        if (this.error != null) {
+            object.addProperty("error", this.error);
+        }
+        return object;
+    }
+
+    /**
+     * A host or root domain and the bytes it moved.
+     */
+    public static class Talker {
+
+        private final String key;
+        private final long bytes;
+
+        /**
+         * Constructor.
+         *
+         * @param key   IP address or root domain
+         * @param bytes bytes moved over the covered windows
+         */
+        public Talker(String key, long bytes) {
+            this.key = key;
+            this.bytes = bytes;
+        }
+
+        public String key() {
+            return this.key;
+        }
+
+        public long bytes() {
+            return this.bytes;
+        }
+    }
+}
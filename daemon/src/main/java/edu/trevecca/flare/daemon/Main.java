@@ -2,9 +2,12 @@ package edu.trevecca.flare.daemon;
 
 import static edu.trevecca.flare.core.logging.Logging.getLogger;
 
+import edu.trevecca.flare.core.metrics.MetricsRegistry;
+import edu.trevecca.flare.core.metrics.PrometheusEndpoint;
 import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 import picocli.CommandLine;
+import picocli.CommandLine.Option;
 
 public class Main implements Callable<Void> {
 
@@ -16,6 +19,15 @@ public class Main implements Callable<Void> {
      * Set to false by a shutdown handler which ends the main program loop.
      */
     private boolean doLoop = true;
+    /**
+     * Metrics HTTP port
+     */
+    @Option(names = {"-mp", "--metrics-port"}, defaultValue = "0",
+            description = "Port to serve Prometheus metrics on, 0 to disable") private int metricsPort;
+    /**
+     * Serves metrics over HTTP, if enabled
+     */
+    private PrometheusEndpoint metricsEndpoint;
 
     public static void main(String[] args) throws Exception {
         // Parse args (see above)
@@ -29,6 +41,12 @@ public class Main implements Callable<Void> {
         // Run this when the process is terminated.
         Runtime.getRuntime().addShutdownHook(new Thread(this::finish));
 
+        // The daemon has no redis connection, so its metrics are only served over HTTP
+        if (metricsPort > 0) {
+            MetricsRegistry.global().registerJvm();
+            metricsEndpoint = new PrometheusEndpoint(metricsPort, MetricsRegistry.global());
+        }
+
         while (doLoop) {
 
         }
@@ -41,5 +59,8 @@ public class Main implements Callable<Void> {
      */
     private void finish() {
         this.doLoop = false;
+        if (metricsEndpoint != null) {
+            metricsEndpoint.close();
+        }
     }
 }